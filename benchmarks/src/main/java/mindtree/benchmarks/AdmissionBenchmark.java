@@ -0,0 +1,74 @@
+package main.java.mindtree.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import main.java.mindtree.service.AdmissionControl;
+
+/**
+ * Measures what admission control adds to every API call, with concurrent callers.
+ *
+ * In {@link #manyUsers} every thread is its own user, mostly over budget, so the calls mix
+ * admissions, rejections and memcache syncs. In {@link #oneUser} all threads call as the same
+ * user and contend on its lock, the worst case for one abusive user.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class AdmissionBenchmark {
+  private final LocalDatastore datastore = new LocalDatastore();
+  private final AdmissionControl admission = AdmissionControl.get();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    datastore.setUp();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    datastore.tearDown();
+  }
+
+  /**
+   * The user of one benchmark thread.
+   */
+  @State(Scope.Thread)
+  public static class Caller {
+    private static final AtomicInteger USERS = new AtomicInteger();
+
+    final String userId = "user" + USERS.incrementAndGet();
+
+    @Setup(Level.Trial)
+    public void attach(AdmissionBenchmark benchmark) {
+      benchmark.datastore.attach();
+    }
+  }
+
+  @Benchmark
+  public long manyUsers(Caller caller) {
+    return admission.admit(caller.userId, 1);
+  }
+
+  @Benchmark
+  public long oneUser(Caller caller) {
+    return admission.admit(LocalDatastore.USER.getUserId(), 1);
+  }
+}
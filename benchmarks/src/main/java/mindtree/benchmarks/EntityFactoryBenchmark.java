@@ -0,0 +1,102 @@
+package main.java.mindtree.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.MindTreeEntity;
+import main.java.mindtree.form.EdgeForm;
+import main.java.mindtree.form.KnowledgeNodeForm;
+import main.java.mindtree.service.OfyService;
+
+/**
+ * Compares how entities are built on the create path: the reflective constructor lookup that
+ * ApiUtils.createEntity used to do per request, the factories registered in OfyService, and the
+ * cached MethodHandle used for classes without a factory. Runs with concurrent callers since
+ * creates come from many request threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class EntityFactoryBenchmark {
+  /**
+   * An entity class without a registered factory, built through the MethodHandle fallback.
+   */
+  public static class UnregisteredEntity
+      extends MindTreeEntity<UnregisteredEntity, KnowledgeNodeForm> {
+    private final Long id;
+
+    public UnregisteredEntity(Long id, String createdBy, KnowledgeNodeForm form) {
+      this.id = id;
+    }
+
+    @Override
+    public String getWebsafeKey() {
+      return String.valueOf(id);
+    }
+
+    @Override
+    public String getCreatedBy() {
+      return null;
+    }
+
+    @Override
+    public void updateWithForm(KnowledgeNodeForm form) {}
+  }
+
+  private static final Long ID = 42L;
+  private static final String USER_ID = "benchmark-user";
+
+  private final KnowledgeNodeForm nodeForm = new KnowledgeNodeForm();
+  private final EdgeForm edgeForm = new EdgeForm();
+
+  @Benchmark
+  public Object reflectionKnowledgeNode() throws Exception {
+    return reflect(KnowledgeNode.class, nodeForm);
+  }
+
+  @Benchmark
+  public Object reflectionEdge() throws Exception {
+    return reflect(Edge.class, edgeForm);
+  }
+
+  @Benchmark
+  public Object registryKnowledgeNode() {
+    return OfyService.createEntity(KnowledgeNode.class, ID, USER_ID, nodeForm);
+  }
+
+  @Benchmark
+  public Object registryEdge() {
+    return OfyService.createEntity(Edge.class, ID, USER_ID, edgeForm);
+  }
+
+  @Benchmark
+  public Object methodHandleFallback() {
+    return OfyService.createEntity(UnregisteredEntity.class, ID, USER_ID, nodeForm);
+  }
+
+  // The lookup ApiUtils.createEntity did on every create before the factory registry.
+  private static Object reflect(Class<? extends MindTreeEntity<?, ?>> entityClass, Object form)
+      throws Exception {
+    Class<?>[] cArg = new Class<?>[3];
+    cArg[0] = Long.class;
+    cArg[1] = String.class;
+    cArg[2] = form.getClass();
+    return entityClass.getDeclaredConstructor(cArg).newInstance(ID, USER_ID, form);
+  }
+}
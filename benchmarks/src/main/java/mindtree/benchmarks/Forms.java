@@ -0,0 +1,29 @@
+package main.java.mindtree.benchmarks;
+
+import java.lang.reflect.Field;
+
+/**
+ * Builds client forms, which only the endpoints framework populates, for benchmarks.
+ */
+final class Forms {
+  private Forms() {}
+
+  /**
+   * @param formClass the form class.
+   * @param fieldValues alternating field names and values.
+   * @return a new form with the given fields set.
+   */
+  static <F> F create(Class<F> formClass, Object... fieldValues) {
+    try {
+      F form = formClass.getDeclaredConstructor().newInstance();
+      for (int i = 0; i < fieldValues.length; i += 2) {
+        Field field = formClass.getDeclaredField((String) fieldValues[i]);
+        field.setAccessible(true);
+        field.set(form, fieldValues[i + 1]);
+      }
+      return form;
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
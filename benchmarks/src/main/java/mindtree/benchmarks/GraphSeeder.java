@@ -0,0 +1,150 @@
+package main.java.mindtree.benchmarks;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.util.Closeable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.MindTreeEntity;
+import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.domain.Quiz;
+import main.java.mindtree.form.EdgeForm;
+import main.java.mindtree.form.KnowledgeNodeForm;
+import main.java.mindtree.form.MindTreeForm;
+import main.java.mindtree.form.QuestionTagForm;
+import main.java.mindtree.form.QuizForm;
+import main.java.mindtree.service.OfyService;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Writes a reproducible knowledge graph into the datastore.
+ *
+ * The same size and seed always produce the same graph: every node but the first depends on one
+ * earlier node, half of them on a second one, one quiz exists per ten nodes and each quiz is
+ * tagged with three nodes.
+ */
+final class GraphSeeder {
+  static final long SEED = 20161201L;
+
+  private static final int SAVE_CHUNK_SIZE = 500;
+  private static final int TAGS_PER_QUIZ = 3;
+
+  private final Random random = new Random(SEED);
+
+  private final List<String> nodeKeys = new ArrayList<>();
+  private final List<String> quizKeys = new ArrayList<>();
+
+  /**
+   * @param nodeCount the number of knowledge nodes to write.
+   */
+  GraphSeeder seed(int nodeCount) {
+    Closeable session = LocalDatastore.beginRequest();
+    try {
+      List<KnowledgeNodeForm> nodeForms = new ArrayList<>();
+      for (int i = 0; i < nodeCount; i++) {
+        nodeForms.add(Forms.create(KnowledgeNodeForm.class,
+            "name", "Node " + i,
+            "description", "Seeded knowledge node number " + i));
+      }
+      List<KnowledgeNode> nodes = build(KnowledgeNode.class, nodeForms);
+      for (KnowledgeNode node : nodes) {
+        nodeKeys.add(node.getWebsafeKey());
+      }
+      save(nodes);
+
+      List<EdgeForm> edgeForms = new ArrayList<>();
+      for (int child = 1; child < nodeCount; child++) {
+        edgeForms.add(edgeForm(random.nextInt(child), child));
+        if (child > 1 && random.nextBoolean()) {
+          edgeForms.add(edgeForm(random.nextInt(child), child));
+        }
+      }
+      save(build(Edge.class, edgeForms));
+
+      List<QuizForm> quizForms = new ArrayList<>();
+      for (int i = 0; i < Math.max(1, nodeCount / 10); i++) {
+        quizForms.add(Forms.create(QuizForm.class, "name", "Quiz " + i));
+      }
+      List<Quiz> quizzes = build(Quiz.class, quizForms);
+      save(quizzes);
+
+      List<QuestionTagForm> tagForms = new ArrayList<>();
+      for (Quiz quiz : quizzes) {
+        quizKeys.add(quiz.getWebsafeKey());
+        for (int i = 0; i < TAGS_PER_QUIZ; i++) {
+          tagForms.add(Forms.create(QuestionTagForm.class,
+              "questionKey", quiz.getWebsafeKey(),
+              "nodeKey", randomNodeKey()));
+        }
+      }
+      save(build(QuestionTag.class, tagForms));
+    } finally {
+      session.close();
+    }
+    return this;
+  }
+
+  String randomNodeKey() {
+    return nodeKeys.get(random.nextInt(nodeKeys.size()));
+  }
+
+  /**
+   * Seeded edges always point from a lower node number to a higher one, so a new edge that does
+   * the same keeps the graph acyclic.
+   *
+   * @return the key of a random node numbered from {@code from} inclusive to {@code to} exclusive.
+   */
+  String randomNodeKey(int from, int to) {
+    return nodeKeys.get(from + random.nextInt(to - from));
+  }
+
+  String nodeKey(int node) {
+    return nodeKeys.get(node);
+  }
+
+  int nodeCount() {
+    return nodeKeys.size();
+  }
+
+  String randomQuizKey() {
+    return quizKeys.get(random.nextInt(quizKeys.size()));
+  }
+
+  Random random() {
+    return random;
+  }
+
+  private EdgeForm edgeForm(int parent, int child) {
+    return Forms.create(EdgeForm.class,
+        "parentKey", nodeKeys.get(parent),
+        "childKey", nodeKeys.get(child));
+  }
+
+  /**
+   * Builds entities the way the batch create endpoints do, with one id allocation.
+   */
+  static <E extends MindTreeEntity<?, ?>> List<E> build(
+      Class<E> entityClass, List<? extends MindTreeForm> forms) {
+    List<E> entities = new ArrayList<>(forms.size());
+    Iterator<? extends Key<?>> keys = OfyService.allocateIds(forms.size()).iterator();
+    for (MindTreeForm form : forms) {
+      entities.add(OfyService.createEntity(
+          entityClass, keys.next().getId(), LocalDatastore.USER.getUserId(), form));
+    }
+    return entities;
+  }
+
+  static void save(List<?> entities) {
+    for (int from = 0; from < entities.size(); from += SAVE_CHUNK_SIZE) {
+      int to = Math.min(from + SAVE_CHUNK_SIZE, entities.size());
+      ofy().save().entities(entities.subList(from, to)).now();
+    }
+    ofy().clear();
+  }
+}
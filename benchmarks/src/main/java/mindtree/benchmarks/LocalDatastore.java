@@ -0,0 +1,55 @@
+package main.java.mindtree.benchmarks;
+
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.util.Closeable;
+
+/**
+ * The local datastore, memcache and task queue stubs the API benchmarks run against.
+ *
+ * The stubs are shared by all benchmark threads, but App Engine environments and Objectify
+ * sessions are per thread: every thread calls {@link #attach()} once, and every benchmarked call
+ * runs in its own Objectify session like a request behind the ObjectifyFilter.
+ */
+final class LocalDatastore {
+  static final User USER = new User("bench@example.com", "example.com", "bench-user");
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig()
+          .setNoStorage(true)
+          .setApplyAllHighRepJobPolicy(),
+      new LocalMemcacheServiceTestConfig(),
+      // Tasks are enqueued but never run.
+      new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+  private ApiProxy.Environment environment;
+
+  void setUp() {
+    helper.setUp();
+    environment = ApiProxy.getCurrentEnvironment();
+  }
+
+  void tearDown() {
+    attach();
+    helper.tearDown();
+  }
+
+  /**
+   * Makes the stubs usable from the current thread.
+   */
+  void attach() {
+    ApiProxy.setEnvironmentForCurrentThread(environment);
+  }
+
+  /**
+   * Starts a fresh Objectify session, as the ObjectifyFilter does for each request.
+   */
+  static Closeable beginRequest() {
+    return ObjectifyService.begin();
+  }
+}
@@ -0,0 +1,45 @@
+package main.java.mindtree.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import main.java.mindtree.service.Metrics;
+
+/**
+ * Measures what MetricsFilter adds to every request: looking up the endpoint, recording the
+ * request, and counting the API calls made while serving it. Runs with concurrent callers since
+ * the counters are shared by all request threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class MetricsBenchmark {
+  private final Metrics metrics = Metrics.get();
+
+  @Benchmark
+  public void recordRequest() {
+    Metrics.Endpoint endpoint = metrics.endpoint("getNodeView");
+    metrics.begin(endpoint);
+    metrics.end();
+    endpoint.record(1500, 200, 120, 2048);
+  }
+
+  @Benchmark
+  public void recordApiCall() {
+    metrics.recordApiCall("datastore_v3", "Get");
+  }
+}
@@ -0,0 +1,257 @@
+package main.java.mindtree.benchmarks;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.util.Closeable;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.form.EdgeForm;
+import main.java.mindtree.form.KnowledgeNodeForm;
+import main.java.mindtree.form.QuizResultForm;
+import main.java.mindtree.service.AdmissionControl;
+import main.java.mindtree.service.DatastoreOps;
+import main.java.mindtree.service.Neighborhoods;
+import main.java.mindtree.spi.MindTreeApi;
+
+/**
+ * Benchmarks the hot MindTreeApi methods against the local datastore and memcache stubs, on a
+ * seeded graph of {@code graphSize} knowledge nodes.
+ *
+ * Each benchmarked call runs in a fresh Objectify session, like a request, so the session cache
+ * never serves repeated reads. Seeding 100k nodes takes a while and needs the larger heap.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx4g"})
+public class MindTreeApiBenchmark {
+  /**
+   * The seeded datastore, shared by all benchmark threads.
+   */
+  @State(Scope.Benchmark)
+  public static class Graph {
+    @Param({"1000", "10000", "100000"})
+    public int graphSize;
+
+    final LocalDatastore datastore = new LocalDatastore();
+    final MindTreeApi api = new MindTreeApi();
+    GraphSeeder seeder;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      datastore.setUp();
+      // All calls come from one user, far beyond the budget of a real one.
+      AdmissionControl.get().setEnabled(false);
+      seeder = new GraphSeeder().seed(graphSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+      datastore.tearDown();
+    }
+  }
+
+  /**
+   * One simulated request per benchmarked call.
+   *
+   * The public fields count the datastore operations the calls issue, reported next to the
+   * score. Divided by the score they give the operations per call, which should only change when
+   * the access pattern of an endpoint does.
+   */
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Request {
+    public long datastoreGets;
+    public long datastoreQueries;
+    public long datastorePuts;
+    public long datastoreDeletes;
+
+    private Closeable session;
+    private DatastoreOps ops;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      datastoreGets = 0;
+      datastoreQueries = 0;
+      datastorePuts = 0;
+      datastoreDeletes = 0;
+    }
+
+    @Setup(Level.Invocation)
+    public void begin(Graph graph) {
+      graph.datastore.attach();
+      session = LocalDatastore.beginRequest();
+      ops = DatastoreOps.begin("benchmark");
+    }
+
+    @TearDown(Level.Invocation)
+    public void end() {
+      ops.end();
+      datastoreGets += ops.getGets();
+      datastoreQueries += ops.getQueries();
+      datastorePuts += ops.getPuts();
+      datastoreDeletes += ops.getDeletes();
+      session.close();
+    }
+  }
+
+  /**
+   * The page size of the list benchmarks.
+   */
+  @State(Scope.Benchmark)
+  public static class Page {
+    @Param({"10", "100", "1000"})
+    public int limit;
+  }
+
+  /**
+   * The neighborhoods of the first {@code nodes} nodes, built before the getNodeView benchmark.
+   */
+  @State(Scope.Benchmark)
+  public static class NodePages {
+    final int nodes = 1000;
+
+    @Setup(Level.Trial)
+    public void build(Graph graph) {
+      graph.datastore.attach();
+      for (int i = 0; i < Math.min(nodes, graph.seeder.nodeCount()); i++) {
+        Closeable session = LocalDatastore.beginRequest();
+        try {
+          Neighborhoods.get().rebuild(Key.<KnowledgeNode>create(graph.seeder.nodeKey(i)).getId());
+        } finally {
+          session.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * A fresh node with {@code edgesPerNode} edges to random nodes, created before each delete.
+   */
+  @State(Scope.Thread)
+  public static class AttachedNode {
+    @Param({"10", "100", "1000"})
+    public int edgesPerNode;
+
+    String nodeKey;
+
+    @Setup(Level.Invocation)
+    public void create(Graph graph) {
+      graph.datastore.attach();
+      Closeable session = LocalDatastore.beginRequest();
+      try {
+        List<KnowledgeNodeForm> nodeForms = new ArrayList<>();
+        nodeForms.add(Forms.create(KnowledgeNodeForm.class, "name", "Doomed node"));
+        List<KnowledgeNode> nodes = GraphSeeder.build(KnowledgeNode.class, nodeForms);
+        nodeKey = nodes.get(0).getWebsafeKey();
+        GraphSeeder.save(nodes);
+
+        // Parents from the lower half and children from the upper half keep the graph acyclic.
+        int middle = graph.seeder.nodeCount() / 2;
+        List<EdgeForm> edgeForms = new ArrayList<>();
+        for (int i = 0; i < edgesPerNode; i++) {
+          edgeForms.add(i % 2 == 0
+              ? Forms.create(EdgeForm.class,
+                  "parentKey", nodeKey,
+                  "childKey", graph.seeder.randomNodeKey(middle, graph.seeder.nodeCount()))
+              : Forms.create(EdgeForm.class,
+                  "parentKey", graph.seeder.randomNodeKey(0, middle),
+                  "childKey", nodeKey));
+        }
+        GraphSeeder.save(GraphSeeder.build(Edge.class, edgeForms));
+      } finally {
+        session.close();
+      }
+    }
+  }
+
+  @Benchmark
+  public Object createKnowledgeNode(Graph graph, Request request) throws Exception {
+    return graph.api.createKnowledgeNode(LocalDatastore.USER,
+        Forms.create(KnowledgeNodeForm.class, "name", "New node", "description", "Benchmark"));
+  }
+
+  @Benchmark
+  public Object createEdge(Graph graph, Request request) throws Exception {
+    // A lower numbered parent never closes a cycle, but may duplicate an edge.
+    int parent = graph.seeder.random().nextInt(graph.seeder.nodeCount() - 1);
+    try {
+      return graph.api.createEdge(LocalDatastore.USER, Forms.create(EdgeForm.class,
+          "parentKey", graph.seeder.nodeKey(parent),
+          "childKey", graph.seeder.randomNodeKey(parent + 1, graph.seeder.nodeCount())));
+    } catch (ConflictException e) {
+      return e;
+    }
+  }
+
+  @Benchmark
+  public Object deleteKnowledgeNode(Graph graph, AttachedNode node, Request request)
+      throws Exception {
+    return graph.api.deleteKnowledgeNode(LocalDatastore.USER, node.nodeKey);
+  }
+
+  @Benchmark
+  public Object getAllKnowledgeNodes(Graph graph, Page page, Request request) throws Exception {
+    return graph.api.getAllKnowledgeNodes(LocalDatastore.USER, null, page.limit, null);
+  }
+
+  @Benchmark
+  public Object getQuestionTags(Graph graph, Request request) throws Exception {
+    return graph.api.getQuestionTags(
+        LocalDatastore.USER, null, graph.seeder.randomQuizKey(), 10, null, null);
+  }
+
+  @Benchmark
+  public Object getQuestionTagsProjected(Graph graph, Request request) throws Exception {
+    return graph.api.getQuestionTags(
+        LocalDatastore.USER, null, graph.seeder.randomQuizKey(), 10, null, "nodeKey,strength");
+  }
+
+  @Benchmark
+  public Object getLearningPath(Graph graph, Request request) throws Exception {
+    return graph.api.getLearningPath(LocalDatastore.USER, null, graph.seeder.randomNodeKey());
+  }
+
+  @Benchmark
+  public Object getNodeView(Graph graph, NodePages pages, Request request) throws Exception {
+    return graph.api.getNodeView(
+        LocalDatastore.USER, null, graph.seeder.randomNodeKey(0, pages.nodes));
+  }
+
+  @Benchmark
+  public Object submitQuizResult(Graph graph, Request request) throws Exception {
+    return graph.api.submitQuizResult(LocalDatastore.USER, Forms.create(QuizResultForm.class,
+        "quizKey", graph.seeder.randomQuizKey(),
+        "score", graph.seeder.random().nextDouble()));
+  }
+
+  @Benchmark
+  public Object searchKnowledgeNodes(Graph graph, Request request) throws Exception {
+    // Every seeded node is named "Node <number>", typing more digits narrows the hits.
+    String number = String.valueOf(graph.seeder.random().nextInt(graph.seeder.nodeCount()));
+    int typed = Math.min(number.length(), 1 + graph.seeder.random().nextInt(3));
+    return graph.api.searchKnowledgeNodes(
+        LocalDatastore.USER, null, "node " + number.substring(0, typed), 10);
+  }
+}
@@ -0,0 +1,39 @@
+package main.java.mindtree.domain;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import java.util.Date;
+
+/**
+ * Records that a chunk of counter deltas was added, saved in the transaction that adds it so that
+ * applying the same deltas again skips the chunk. Keyed by the batch id of the deltas and the
+ * index of the chunk, see {@link main.java.mindtree.service.Counters#apply}.
+ */
+@Entity
+public class AppliedCounts {
+  @Id
+  private String id;
+
+  /**
+   * When the chunk was added, to purge the records no retry can need anymore.
+   */
+  @Index
+  private Date appliedAt;
+
+  public AppliedCounts(String id, Date appliedAt) {
+    this.id = id;
+    this.appliedAt = appliedAt;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public Date getAppliedAt() {
+    return appliedAt;
+  }
+
+  private AppliedCounts() {}
+}
@@ -0,0 +1,38 @@
+package main.java.mindtree.domain;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import java.util.Date;
+
+/**
+ * Records that the strength delta of an edge was applied, saved in the transaction that applies
+ * it so that a retried task skips the edge. Keyed by the batch id of the task and the edge id.
+ */
+@Entity
+public class AppliedStrengths {
+  @Id
+  private String id;
+
+  /**
+   * When the delta was applied, to purge the records of tasks that can no longer be retried.
+   */
+  @Index
+  private Date appliedAt;
+
+  public AppliedStrengths(String id, Date appliedAt) {
+    this.id = id;
+    this.appliedAt = appliedAt;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public Date getAppliedAt() {
+    return appliedAt;
+  }
+
+  private AppliedStrengths() {}
+}
@@ -0,0 +1,65 @@
+package main.java.mindtree.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import java.util.Date;
+
+/**
+ * The cold copy of an entity moved out of its kind, such as an expired quiz or one of its
+ * question tags. Keyed by the web safe key of the archived entity, so archiving it twice keeps
+ * one copy.
+ *
+ * The entity is kept as one {@link main.java.mindtree.util.EntityJson} line, the format of the
+ * export, so that archived entities can be imported back. Only the quiz they were archived with
+ * is indexed.
+ */
+@Entity
+public class Archive {
+  @Id
+  private String archivedKey;
+
+  private String kind;
+
+  /**
+   * The web safe key of the quiz archived together with the entity.
+   */
+  @Index
+  private String quizKey;
+
+  private Date archivedAt;
+
+  private String json;
+
+  public Archive(Key<?> archived, Key<Quiz> quiz, Date archivedAt, String json) {
+    this.archivedKey = archived.getString();
+    this.kind = archived.getKind();
+    this.quizKey = quiz.getString();
+    this.archivedAt = archivedAt;
+    this.json = json;
+  }
+
+  public String getArchivedKey() {
+    return archivedKey;
+  }
+
+  public String getKind() {
+    return kind;
+  }
+
+  public String getQuizKey() {
+    return quizKey;
+  }
+
+  public Date getArchivedAt() {
+    return archivedAt;
+  }
+
+  public String getJson() {
+    return json;
+  }
+
+  private Archive() {}
+}
@@ -0,0 +1,123 @@
+package main.java.mindtree.domain;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * The checkpoint of a compaction, saved after every batch so that a compaction stopped by a
+ * failure continues where it stopped, and so that only one runs at a time.
+ */
+@Entity
+public class CompactionJob {
+  /**
+   * The name of the compaction, such as expiredQuizzes.
+   */
+  @Id
+  private String name;
+
+  /**
+   * When the current run started, in milliseconds. Names the tasks of the run.
+   */
+  private long run;
+
+  /**
+   * When the current pass over the entities started, in milliseconds. A run continuing from the
+   * checkpoint of a stopped run keeps the pass.
+   */
+  private long pass;
+
+  /**
+   * The query cursor after the last batch, null before the first one.
+   */
+  private String cursor;
+
+  /**
+   * The number of batches of the current pass done, over all of its runs.
+   */
+  private int batches;
+
+  private long archivedQuizzes;
+
+  private long archivedQuestionTags;
+
+  /**
+   * When the last batch was done, in milliseconds.
+   */
+  private long updatedMillis;
+
+  private boolean done;
+
+  public CompactionJob(String name) {
+    this.name = name;
+    this.done = true;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getRun() {
+    return run;
+  }
+
+  public long getPass() {
+    return pass;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public int getBatches() {
+    return batches;
+  }
+
+  public long getArchivedQuizzes() {
+    return archivedQuizzes;
+  }
+
+  public long getArchivedQuestionTags() {
+    return archivedQuestionTags;
+  }
+
+  public long getUpdatedMillis() {
+    return updatedMillis;
+  }
+
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Starts a new run, from the checkpoint when the last run did not finish, otherwise from the
+   * start.
+   */
+  public void start(long nowMillis) {
+    if (done) {
+      pass = nowMillis;
+      cursor = null;
+      batches = 0;
+      archivedQuizzes = 0;
+      archivedQuestionTags = 0;
+    }
+    run = nowMillis;
+    updatedMillis = nowMillis;
+    done = false;
+  }
+
+  /**
+   * Records a batch whose entities are all archived and deleted.
+   *
+   * @param nextCursor the cursor after the batch, null when it was the last one.
+   */
+  public void advance(String nextCursor, int quizzes, int questionTags, long nowMillis) {
+    cursor = nextCursor;
+    batches++;
+    archivedQuizzes += quizzes;
+    archivedQuestionTags += questionTags;
+    updatedMillis = nowMillis;
+    done = nextCursor == null;
+  }
+
+  private CompactionJob() {}
+}
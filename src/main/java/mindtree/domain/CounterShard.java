@@ -0,0 +1,45 @@
+package main.java.mindtree.domain;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * One shard of a counter, see {@link main.java.mindtree.service.Counters}. Every shard is its own
+ * entity group, so writes to different shards of a counter never contend.
+ */
+@Entity
+public class CounterShard {
+  /**
+   * The name of the counter and the number of the shard.
+   */
+  @Id
+  private String id;
+
+  /**
+   * The kind of the counted entities, to find the shards of a kind for a recount.
+   */
+  @Index
+  private String kind;
+
+  private long count;
+
+  public CounterShard(String id, String kind) {
+    this.id = id;
+    this.kind = kind;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public void add(long delta) {
+    count += delta;
+  }
+
+  private CounterShard() {}
+}
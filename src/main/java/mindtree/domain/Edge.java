@@ -3,12 +3,17 @@ package main.java.mindtree.domain;
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Ref;
+import com.googlecode.objectify.annotation.AlsoLoad;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Load;
 
 import main.java.mindtree.form.EdgeForm;
+import main.java.mindtree.util.Keys;
 
 /**
  * The edge entity connection parent and child knowledge node.
@@ -16,6 +21,11 @@ import main.java.mindtree.form.EdgeForm;
 @Entity
 @Cache
 public class Edge extends MindTreeEntity<Edge, EdgeForm> {
+  /**
+   * Load group fetching the parent and child nodes together with the edge.
+   */
+  public static class Nodes {}
+
   /**
    * Use automatic id assignment.
    */
@@ -24,19 +34,23 @@ public class Edge extends MindTreeEntity<Edge, EdgeForm> {
   private Long id;
 
   /**
-   * The parent node key.
+   * The parent node.
    */
   @Index
-  private String parentKey;
+  @Load(Nodes.class)
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private Ref<KnowledgeNode> parent;
 
   /**
-   * The child node key.
+   * The child node.
    */
   @Index
-  private String childKey;
+  @Load(Nodes.class)
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private Ref<KnowledgeNode> child;
 
   /**
-   * How strong the parent node depends on the child node.
+   * How strong the parent node depends on the child node, between 0 and 1.
    * Default is 1.0.
    */
   @Index
@@ -49,6 +63,18 @@ public class Edge extends MindTreeEntity<Edge, EdgeForm> {
   @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
   private String createdBy;
 
+  /**
+   * The web safe keys of the edge and its nodes, encoded on first use.
+   */
+  @Ignore
+  private String websafeKey;
+
+  @Ignore
+  private String parentKey;
+
+  @Ignore
+  private String childKey;
+
   /**
    * Constructor
    * @param id the id of the edge
@@ -67,25 +93,78 @@ public class Edge extends MindTreeEntity<Edge, EdgeForm> {
 
   @Override
   public void updateWithForm(EdgeForm edgeForm) {
-    this.parentKey = edgeForm.getParentKey();
-    this.childKey = edgeForm.getChildKey();
+    this.parent = Ref.create(Keys.parse(KnowledgeNode.class, edgeForm.getParentKey()));
+    this.child = Ref.create(Keys.parse(KnowledgeNode.class, edgeForm.getChildKey()));
+    this.parentKey = null;
+    this.childKey = null;
+    Double formStrength = edgeForm.getStrength();
+    if (formStrength != null) {
+      if (!(formStrength >= 0 && formStrength <= 1)) {
+        throw new IllegalArgumentException("strength must be within 0 and 1");
+      }
+      this.strength = formStrength;
+    }
+  }
+
+  /**
+   * Nudges the strength by a delta, keeping it within 0 and 1.
+   */
+  public void addStrength(double delta) {
+    this.strength = Math.max(0, Math.min(1, strength + delta));
+  }
+
+  // Edges saved before the typed references stored the node keys as web safe strings.
+  private void importParentKey(@AlsoLoad("parentKey") String websafeParentKey) {
+    this.parent = importNode(websafeParentKey);
+  }
+
+  private void importChildKey(@AlsoLoad("childKey") String websafeChildKey) {
+    this.child = importNode(websafeChildKey);
+  }
+
+  private static Ref<KnowledgeNode> importNode(String websafeNodeKey) {
+    try {
+      return Ref.create(Keys.parse(KnowledgeNode.class, websafeNodeKey));
+    } catch (IllegalArgumentException e) {
+      // Leave malformed legacy keys unset rather than failing the whole load.
+      return null;
+    }
   }
 
   // Get a String version of the key
   @Override
   public String getWebsafeKey() {
-    return Key.create(Edge.class, this.id).getString();
+    if (websafeKey == null) {
+      websafeKey = Key.create(Edge.class, this.id).getString();
+    }
+    return websafeKey;
   }
 
   public Long getId() {
     return id;
   }
 
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public Ref<KnowledgeNode> getParent() {
+    return parent;
+  }
+
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public Ref<KnowledgeNode> getChild() {
+    return child;
+  }
+
   public String getParentKey() {
+    if (parentKey == null && parent != null) {
+      parentKey = parent.getKey().getString();
+    }
     return parentKey;
   }
 
   public String getChildKey() {
+    if (childKey == null && child != null) {
+      childKey = child.getKey().getString();
+    }
     return childKey;
   }
 
@@ -97,5 +176,16 @@ public class Edge extends MindTreeEntity<Edge, EdgeForm> {
     return createdBy;
   }
 
+  // Edges are equal when they are the same datastore entity.
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof Edge && id != null && id.equals(((Edge) other).id);
+  }
+
+  @Override
+  public int hashCode() {
+    return id == null ? 0 : id.hashCode();
+  }
+
   private Edge() {}
 }
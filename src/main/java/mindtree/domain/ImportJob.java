@@ -0,0 +1,59 @@
+package main.java.mindtree.domain;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * The checkpoint of a bulk import, saved after every batch so that an import cut short by the
+ * request deadline can continue where it stopped.
+ */
+@Entity
+public class ImportJob {
+  /**
+   * Use automatic id assignment.
+   */
+  @Id
+  private Long id;
+
+  /**
+   * The number of leading entity lines of the input already imported.
+   */
+  private long records;
+
+  /**
+   * The number of references to entities that were not part of the input.
+   */
+  private long unresolvedReferences;
+
+  private boolean done;
+
+  public ImportJob() {}
+
+  public Long getId() {
+    return id;
+  }
+
+  public long getRecords() {
+    return records;
+  }
+
+  public long getUnresolvedReferences() {
+    return unresolvedReferences;
+  }
+
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Records a batch whose entities are all saved.
+   */
+  public void advance(int batchRecords, int batchUnresolvedReferences) {
+    records += batchRecords;
+    unresolvedReferences += batchUnresolvedReferences;
+  }
+
+  public void finish() {
+    done = true;
+  }
+}
@@ -6,6 +6,7 @@ import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 
 import main.java.mindtree.form.KnowledgeNodeForm;
@@ -41,6 +42,12 @@ public class KnowledgeNode extends MindTreeEntity<KnowledgeNode, KnowledgeNodeFo
   @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
   private String createdBy;
 
+  /**
+   * The web safe key, encoded on first use.
+   */
+  @Ignore
+  private String websafeKey;
+
   /**
    * Constructor.
    * @param id the id of the node
@@ -65,7 +72,10 @@ public class KnowledgeNode extends MindTreeEntity<KnowledgeNode, KnowledgeNodeFo
   // Get a String version of the key
   @Override
   public String getWebsafeKey() {
-    return Key.create(KnowledgeNode.class, this.id).getString();
+    if (websafeKey == null) {
+      websafeKey = Key.create(KnowledgeNode.class, this.id).getString();
+    }
+    return websafeKey;
   }
 
   public String getName() {
@@ -0,0 +1,151 @@
+package main.java.mindtree.domain;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.OnLoad;
+import com.googlecode.objectify.annotation.OnSave;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The mastery of one user over the knowledge nodes, packed into a single entity.
+ *
+ * Per node it keeps the evidence, the running score of the quizzes tagged with the node, and the
+ * mastery, which also accounts for the mastery of the prerequisites. Nodes with neither evidence
+ * nor mastery are not stored. At 16 bytes per node one entity holds about 60000 nodes.
+ */
+@Entity
+@Cache
+public class Mastery {
+  private static final int RECORD_BYTES = 16;
+
+  /**
+   *  Use userId as the datastore key.
+   */
+  @Id
+  private String userId;
+
+  /**
+   * The nodes as (long id, float evidence, float mastery) records in ascending id order.
+   */
+  private byte[] records;
+
+  @Ignore
+  private long[] nodeIds = new long[0];
+
+  @Ignore
+  private float[] evidence = new float[0];
+
+  @Ignore
+  private float[] mastery = new float[0];
+
+  @Ignore
+  private int size;
+
+  public Mastery(String userId) {
+    this.userId = userId;
+  }
+
+  @OnLoad
+  private void unpack() {
+    ByteBuffer buffer = ByteBuffer.wrap(records == null ? new byte[0] : records);
+    size = buffer.remaining() / RECORD_BYTES;
+    nodeIds = new long[size];
+    evidence = new float[size];
+    mastery = new float[size];
+    for (int i = 0; i < size; i++) {
+      nodeIds[i] = buffer.getLong();
+      evidence[i] = buffer.getFloat();
+      mastery[i] = buffer.getFloat();
+    }
+  }
+
+  @OnSave
+  private void pack() {
+    ByteBuffer buffer = ByteBuffer.allocate(size * RECORD_BYTES);
+    for (int i = 0; i < size; i++) {
+      buffer.putLong(nodeIds[i]).putFloat(evidence[i]).putFloat(mastery[i]);
+    }
+    records = buffer.array();
+  }
+
+  public String getUserId() {
+    return userId;
+  }
+
+  /**
+   * @return the number of nodes stored.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * @return the id of the i-th node in ascending id order.
+   */
+  public long nodeId(int i) {
+    return nodeIds[i];
+  }
+
+  /**
+   * @return the mastery of the node, 0 when none is stored.
+   */
+  public float getMastery(long nodeId) {
+    int i = Arrays.binarySearch(nodeIds, 0, size, nodeId);
+    return i < 0 ? 0f : mastery[i];
+  }
+
+  /**
+   * @return the evidence for the node, NaN when no quiz tagged with it was submitted.
+   */
+  public float getEvidence(long nodeId) {
+    int i = Arrays.binarySearch(nodeIds, 0, size, nodeId);
+    return i < 0 ? Float.NaN : evidence[i];
+  }
+
+  /**
+   * Stores the evidence and mastery of a node, or drops the node when both are empty.
+   *
+   * @param evidence the evidence, NaN for none.
+   */
+  public void put(long nodeId, float evidence, float mastery) {
+    int i = Arrays.binarySearch(nodeIds, 0, size, nodeId);
+    boolean empty = Float.isNaN(evidence) && mastery == 0f;
+    if (i >= 0) {
+      if (empty) {
+        int moved = size - i - 1;
+        System.arraycopy(nodeIds, i + 1, nodeIds, i, moved);
+        System.arraycopy(this.evidence, i + 1, this.evidence, i, moved);
+        System.arraycopy(this.mastery, i + 1, this.mastery, i, moved);
+        size--;
+      } else {
+        this.evidence[i] = evidence;
+        this.mastery[i] = mastery;
+      }
+      return;
+    }
+    if (empty) {
+      return;
+    }
+    i = -i - 1;
+    if (size == nodeIds.length) {
+      int capacity = Math.max(16, size * 2);
+      nodeIds = Arrays.copyOf(nodeIds, capacity);
+      this.evidence = Arrays.copyOf(this.evidence, capacity);
+      this.mastery = Arrays.copyOf(this.mastery, capacity);
+    }
+    int moved = size - i;
+    System.arraycopy(nodeIds, i, nodeIds, i + 1, moved);
+    System.arraycopy(this.evidence, i, this.evidence, i + 1, moved);
+    System.arraycopy(this.mastery, i, this.mastery, i + 1, moved);
+    nodeIds[i] = nodeId;
+    this.evidence[i] = evidence;
+    this.mastery[i] = mastery;
+    size++;
+  }
+
+  private Mastery() {}
+}
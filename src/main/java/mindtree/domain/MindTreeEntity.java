@@ -1,9 +1,45 @@
 package main.java.mindtree.domain;
 
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnSave;
+
+import main.java.mindtree.util.UpdateSequence;
+
 /**
  * Abstract class for data store Entity.
  */
 public abstract class MindTreeEntity<E, F> {
+  /**
+   * Creates entities of one class from client forms, registered in OfyService so that the create
+   * path needs no reflection.
+   *
+   * @param <E> The type of the entity.
+   * @param <F> The type of the client form.
+   */
+  public interface Factory<E, F> {
+    E create(Long id, String createdBy, F form);
+  }
+
+  /**
+   * The update sequence of the last save, which orders the entity in the change feed. Unset on
+   * rows not saved since it was introduced.
+   */
+  @Index
+  private Long updateSeq;
+
   public abstract String getWebsafeKey();
+  public abstract String getCreatedBy();
   public abstract void updateWithForm(F form);
+
+  @OnSave
+  void stampUpdateSeq() {
+    updateSeq = UpdateSequence.next();
+  }
+
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public Long getUpdateSeq() {
+    return updateSeq;
+  }
 }
@@ -0,0 +1,173 @@
+package main.java.mindtree.domain;
+
+import com.googlecode.objectify.annotation.Cache;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Everything the detail page of a knowledge node shows, materialized into one entity with the id
+ * of the node: the node, its parents and children with their names and the question tags of the
+ * node.
+ *
+ * The neighborhood is rebuilt from the datastore after the node, its edges or its tags change,
+ * see {@link main.java.mindtree.service.Neighborhoods}. At most {@link #MAX_LINKS} parents,
+ * children and tags are kept, the strongest ones; the counts are always complete.
+ */
+@Entity
+@Cache
+public class NodeNeighborhood {
+  public static final int MAX_LINKS = 500;
+
+  /**
+   * An edge seen from the node, with the node on the other end.
+   */
+  public static class Link {
+    private long nodeId;
+    private long edgeId;
+    private String name;
+    private double strength;
+
+    public Link(long nodeId, long edgeId, String name, double strength) {
+      this.nodeId = nodeId;
+      this.edgeId = edgeId;
+      this.name = name;
+      this.strength = strength;
+    }
+
+    public long getNodeId() {
+      return nodeId;
+    }
+
+    public long getEdgeId() {
+      return edgeId;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public double getStrength() {
+      return strength;
+    }
+
+    private Link() {}
+  }
+
+  /**
+   * A question tag of the node.
+   */
+  public static class Tag {
+    private long tagId;
+    private long quizId;
+    private double strength;
+
+    public Tag(long tagId, long quizId, double strength) {
+      this.tagId = tagId;
+      this.quizId = quizId;
+      this.strength = strength;
+    }
+
+    public long getTagId() {
+      return tagId;
+    }
+
+    public long getQuizId() {
+      return quizId;
+    }
+
+    public double getStrength() {
+      return strength;
+    }
+
+    private Tag() {}
+  }
+
+  /**
+   * The id of the knowledge node.
+   */
+  @Id
+  private Long nodeId;
+
+  private String name;
+
+  private String description;
+
+  private List<Link> parents = new ArrayList<>();
+
+  private List<Link> children = new ArrayList<>();
+
+  private List<Tag> tags = new ArrayList<>();
+
+  private int parentCount;
+
+  private int childCount;
+
+  private int tagCount;
+
+  /**
+   * When the rebuild that produced this neighborhood started reading, in milliseconds. A rebuild
+   * never replaces a neighborhood read later than itself.
+   */
+  private long builtAt;
+
+  public NodeNeighborhood(KnowledgeNode node, long builtAt) {
+    this.nodeId = node.getId();
+    this.name = node.getName();
+    this.description = node.getDescription();
+    this.builtAt = builtAt;
+  }
+
+  public Long getNodeId() {
+    return nodeId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public List<Link> getParents() {
+    return parents;
+  }
+
+  public List<Link> getChildren() {
+    return children;
+  }
+
+  public List<Tag> getTags() {
+    return tags;
+  }
+
+  public int getParentCount() {
+    return parentCount;
+  }
+
+  public int getChildCount() {
+    return childCount;
+  }
+
+  public int getTagCount() {
+    return tagCount;
+  }
+
+  public long getBuiltAt() {
+    return builtAt;
+  }
+
+  /**
+   * Sets the total numbers of parents, children and tags, also those not kept.
+   */
+  public void setCounts(int parentCount, int childCount, int tagCount) {
+    this.parentCount = parentCount;
+    this.childCount = childCount;
+    this.tagCount = tagCount;
+  }
+
+  private NodeNeighborhood() {}
+}
@@ -3,17 +3,29 @@ package main.java.mindtree.domain;
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Ref;
+import com.googlecode.objectify.annotation.AlsoLoad;
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Load;
 
 import main.java.mindtree.form.QuestionTagForm;
+import main.java.mindtree.util.Keys;
 
 /**
  * The question tag entity connecting a quiz and a knowledge node.
  */
 @Entity
+@Cache
 public class QuestionTag extends MindTreeEntity<QuestionTag, QuestionTagForm> {
+  /**
+   * Load group fetching the tagged knowledge node together with the tag.
+   */
+  public static class Node {}
+
   /**
    * Use automatic id assignment.
    */
@@ -22,16 +34,19 @@ public class QuestionTag extends MindTreeEntity<QuestionTag, QuestionTagForm> {
   private Long id;
 
   /**
-   * The question key.
+   * The quiz key.
    */
   @Index
-  private String questionKey;
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private Key<Quiz> question;
 
   /**
-   * The knowledge node key.
+   * The knowledge node.
    */
   @Index
-  private String nodeKey;
+  @Load(Node.class)
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  private Ref<KnowledgeNode> node;
 
   /**
    * How strong the quiz testing the knowledge node.
@@ -47,6 +62,18 @@ public class QuestionTag extends MindTreeEntity<QuestionTag, QuestionTagForm> {
   @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
   private String createdBy;
 
+  /**
+   * The web safe keys of the tag, its quiz and its node, encoded on first use.
+   */
+  @Ignore
+  private String websafeKey;
+
+  @Ignore
+  private String questionKey;
+
+  @Ignore
+  private String nodeKey;
+
   /**
    * Constructor
    * @param id the id of the edge
@@ -65,25 +92,63 @@ public class QuestionTag extends MindTreeEntity<QuestionTag, QuestionTagForm> {
 
   @Override
   public void updateWithForm(QuestionTagForm tagForm) {
-    this.questionKey = tagForm.getQuestionKey();
-    this.nodeKey = tagForm.getNodeKey();
+    this.question = Keys.parse(Quiz.class, tagForm.getQuestionKey());
+    this.node = Ref.create(Keys.parse(KnowledgeNode.class, tagForm.getNodeKey()));
+    this.questionKey = null;
+    this.nodeKey = null;
+  }
+
+  // Tags saved before the typed references stored the keys as web safe strings.
+  private void importQuestionKey(@AlsoLoad("questionKey") String websafeQuestionKey) {
+    try {
+      this.question = Keys.parse(Quiz.class, websafeQuestionKey);
+    } catch (IllegalArgumentException e) {
+      // Leave malformed legacy keys unset rather than failing the whole load.
+    }
+  }
+
+  private void importNodeKey(@AlsoLoad("nodeKey") String websafeNodeKey) {
+    try {
+      this.node = Ref.create(Keys.parse(KnowledgeNode.class, websafeNodeKey));
+    } catch (IllegalArgumentException e) {
+      // Leave malformed legacy keys unset rather than failing the whole load.
+    }
   }
 
   // Get a String version of the key
   @Override
   public String getWebsafeKey() {
-    return Key.create(QuestionTag.class, this.id).getString();
+    if (websafeKey == null) {
+      websafeKey = Key.create(QuestionTag.class, this.id).getString();
+    }
+    return websafeKey;
   }
 
   public Long getId() {
     return id;
   }
 
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public Key<Quiz> getQuestion() {
+    return question;
+  }
+
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public Ref<KnowledgeNode> getNode() {
+    return node;
+  }
+
   public String getQuestionKey() {
+    if (questionKey == null && question != null) {
+      questionKey = question.getString();
+    }
     return questionKey;
   }
 
   public String getNodeKey() {
+    if (nodeKey == null && node != null) {
+      nodeKey = node.getKey().getString();
+    }
     return nodeKey;
   }
 
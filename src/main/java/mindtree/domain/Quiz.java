@@ -7,6 +7,7 @@ import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 
 import java.net.MalformedURLException;
@@ -31,6 +32,12 @@ public class Quiz extends MindTreeEntity<Quiz, QuizForm> {
     return new Query.FilterPredicate("status", Query.FilterOperator.EQUAL, Status.ACTIVE.toString());
   }
 
+  // Only get expired quiz, the ones compacted into the archive
+  public static Query.Filter expiredQuizFilter() {
+    return new Query.FilterPredicate(
+        "status", Query.FilterOperator.EQUAL, Status.EXPIRED.toString());
+  }
+
   /**
    * Use automatic id assignment.
    */
@@ -67,6 +74,12 @@ public class Quiz extends MindTreeEntity<Quiz, QuizForm> {
   @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
   private String createdBy;
 
+  /**
+   * The web safe key, encoded on first use.
+   */
+  @Ignore
+  private String websafeKey;
+
   /**
    * Constructor.
    * @param id the id of the quiz
@@ -100,7 +113,10 @@ public class Quiz extends MindTreeEntity<Quiz, QuizForm> {
   // Get a String version of the key
   @Override
   public String getWebsafeKey() {
-    return Key.create(Quiz.class, this.id).getString();
+    if (websafeKey == null) {
+      websafeKey = Key.create(Quiz.class, this.id).getString();
+    }
+    return websafeKey;
   }
 
   // Delete a quiz by setting the status expired
@@ -132,5 +148,10 @@ public class Quiz extends MindTreeEntity<Quiz, QuizForm> {
     return createdBy;
   }
 
+  @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+  public boolean isExpired() {
+    return status == Status.EXPIRED;
+  }
+
   private Quiz() {}
 }
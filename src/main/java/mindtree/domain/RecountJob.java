@@ -0,0 +1,105 @@
+package main.java.mindtree.domain;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * The record of a recount of the entity counters, saved after every batch so that only one runs
+ * at a time and a stopped run can be told from a running one.
+ */
+@Entity
+public class RecountJob {
+  /**
+   * The name of the recount, such as entityCounts.
+   */
+  @Id
+  private String name;
+
+  /**
+   * When the current run started, in milliseconds. Names the tasks of the run.
+   */
+  private long run;
+
+  /**
+   * The kind the next batch counts, null once the run is done.
+   */
+  private String kind;
+
+  /**
+   * The query cursor of the next batch within its kind, null to start the kind.
+   */
+  private String cursor;
+
+  /**
+   * The number of batches of the current run done.
+   */
+  private int batches;
+
+  /**
+   * When the run started or the last batch was done, in milliseconds.
+   */
+  private long updatedMillis;
+
+  private boolean done;
+
+  public RecountJob(String name) {
+    this.name = name;
+    this.done = true;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getRun() {
+    return run;
+  }
+
+  public String getKind() {
+    return kind;
+  }
+
+  public String getCursor() {
+    return cursor;
+  }
+
+  public int getBatches() {
+    return batches;
+  }
+
+  public long getUpdatedMillis() {
+    return updatedMillis;
+  }
+
+  public boolean isDone() {
+    return done;
+  }
+
+  /**
+   * Starts a new run from the start of the given kind.
+   */
+  public void start(String firstKind, long nowMillis) {
+    run = nowMillis;
+    kind = firstKind;
+    cursor = null;
+    batches = 0;
+    updatedMillis = nowMillis;
+    done = false;
+  }
+
+  /**
+   * Records a batch whose counts are all applied.
+   *
+   * @param nextKind the kind of the next batch, null when the batch was the last one.
+   * @param nextCursor the cursor of the next batch within its kind, null to start the kind.
+   */
+  public void advance(String nextKind, String nextCursor, long nowMillis) {
+    kind = nextKind;
+    cursor = nextCursor;
+    batches++;
+    updatedMillis = nowMillis;
+    done = nextKind == null;
+  }
+
+  private RecountJob() {}
+}
@@ -0,0 +1,47 @@
+package main.java.mindtree.domain;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+import main.java.mindtree.util.UpdateSequence;
+
+/**
+ * Records that a knowledge node, edge or question tag was deleted, or that an expired quiz was
+ * moved to the {@link Archive}, so that the change feed can tell clients to drop it. Keyed by the
+ * web safe key of the deleted entity.
+ */
+@Entity
+public class Tombstone {
+  @Id
+  private String deletedKey;
+
+  private String kind;
+
+  /**
+   * The update sequence of the delete, see {@link MindTreeEntity#getUpdateSeq()}.
+   */
+  @Index
+  private long updateSeq;
+
+  public Tombstone(Key<?> deleted) {
+    this.deletedKey = deleted.getString();
+    this.kind = deleted.getKind();
+    this.updateSeq = UpdateSequence.next();
+  }
+
+  public String getDeletedKey() {
+    return deletedKey;
+  }
+
+  public String getKind() {
+    return kind;
+  }
+
+  public long getUpdateSeq() {
+    return updateSeq;
+  }
+
+  private Tombstone() {}
+}
@@ -0,0 +1,18 @@
+package main.java.mindtree.form;
+
+import java.util.List;
+
+/**
+ * Pojo representing a batch of Edge forms on the client side, for creating many edges in one
+ * call.
+ */
+public class EdgeBatchForm implements MindTreeForm {
+  /**
+   * The forms of the edges to create.
+   */
+  private List<EdgeForm> items;
+
+  public List<EdgeForm> getItems() {
+    return items;
+  }
+}
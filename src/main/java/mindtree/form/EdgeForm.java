@@ -15,6 +15,11 @@ public class EdgeForm implements MindTreeForm {
    */
   private String childKey;
 
+  /**
+   * How strong the parent depends on the child, between 0 and 1. Absent for the default.
+   */
+  private Double strength;
+
   public String getParentKey() {
     return parentKey;
   }
@@ -22,4 +27,8 @@ public class EdgeForm implements MindTreeForm {
   public String getChildKey() {
     return childKey;
   }
+
+  public Double getStrength() {
+    return strength;
+  }
 }
@@ -0,0 +1,18 @@
+package main.java.mindtree.form;
+
+import java.util.List;
+
+/**
+ * Pojo representing a batch of KnowledgeNode forms on the client side, for creating many
+ * knowledge nodes in one call.
+ */
+public class KnowledgeNodeBatchForm implements MindTreeForm {
+  /**
+   * The forms of the knowledge nodes to create.
+   */
+  private List<KnowledgeNodeForm> items;
+
+  public List<KnowledgeNodeForm> getItems() {
+    return items;
+  }
+}
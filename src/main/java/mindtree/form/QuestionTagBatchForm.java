@@ -0,0 +1,18 @@
+package main.java.mindtree.form;
+
+import java.util.List;
+
+/**
+ * Pojo representing a batch of QuestionTag forms on the client side, for creating many
+ * question tags in one call.
+ */
+public class QuestionTagBatchForm implements MindTreeForm {
+  /**
+   * The forms of the question tags to create.
+   */
+  private List<QuestionTagForm> items;
+
+  public List<QuestionTagForm> getItems() {
+    return items;
+  }
+}
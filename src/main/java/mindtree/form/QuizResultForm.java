@@ -0,0 +1,24 @@
+package main.java.mindtree.form;
+
+/**
+ * Pojo representing the result of a quiz taken by the user on the client side.
+ */
+public class QuizResultForm implements MindTreeForm {
+  /**
+   * The web safe key of the quiz.
+   */
+  private String quizKey;
+
+  /**
+   * The fraction of the quiz answered correctly, from 0 to 1.
+   */
+  private double score;
+
+  public String getQuizKey() {
+    return quizKey;
+  }
+
+  public double getScore() {
+    return score;
+  }
+}
@@ -0,0 +1,55 @@
+package main.java.mindtree.response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pojo representing the outcome of a batch call sent to the client.
+ */
+public class BatchResult {
+  /**
+   * Why one item of the batch was not written.
+   */
+  public static class ItemError {
+    /**
+     * The position of the item in the request.
+     */
+    private final int index;
+
+    /**
+     * What went wrong.
+     */
+    private final String message;
+
+    public ItemError(int index, String message) {
+      this.index = index;
+      this.message = message;
+    }
+
+    public int getIndex() {
+      return index;
+    }
+
+    public String getMessage() {
+      return message;
+    }
+  }
+
+  /**
+   * The web safe keys of the written entities, one per request item, null for failed items.
+   */
+  private final List<String> keys = new ArrayList<>();
+
+  /**
+   * The items that failed, in request order.
+   */
+  private final List<ItemError> errors = new ArrayList<>();
+
+  public List<String> getKeys() {
+    return keys;
+  }
+
+  public List<ItemError> getErrors() {
+    return errors;
+  }
+}
@@ -0,0 +1,88 @@
+package main.java.mindtree.response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.domain.Quiz;
+
+/**
+ * Pojo representing one page of the change feed sent to the client: the entities saved and the
+ * keys of the entities deleted since the token the client sent.
+ */
+public class Changes {
+  /**
+   * The knowledge nodes created or updated.
+   */
+  private final List<KnowledgeNode> knowledgeNodes = new ArrayList<>();
+
+  private final List<Edge> edges = new ArrayList<>();
+
+  /**
+   * The quizzes created or updated, also those deleted by marking them expired.
+   */
+  private final List<Quiz> quizzes = new ArrayList<>();
+
+  private final List<QuestionTag> questionTags = new ArrayList<>();
+
+  /**
+   * The web safe keys of the deleted knowledge nodes, edges and question tags.
+   */
+  private final List<String> deletedKeys = new ArrayList<>();
+
+  /**
+   * The token to ask for the next changes with.
+   */
+  private final String nextToken;
+
+  /**
+   * Whether this page holds all changes up to now, so the client can wait before asking again.
+   */
+  private final boolean caughtUp;
+
+  /**
+   * Whether the token sent is too old to be served, so the client must drop its copy of the graph
+   * and download it again before asking for the changes since the next token.
+   */
+  private final boolean resyncRequired;
+
+  public Changes(String nextToken, boolean caughtUp, boolean resyncRequired) {
+    this.nextToken = nextToken;
+    this.caughtUp = caughtUp;
+    this.resyncRequired = resyncRequired;
+  }
+
+  public List<KnowledgeNode> getKnowledgeNodes() {
+    return knowledgeNodes;
+  }
+
+  public List<Edge> getEdges() {
+    return edges;
+  }
+
+  public List<Quiz> getQuizzes() {
+    return quizzes;
+  }
+
+  public List<QuestionTag> getQuestionTags() {
+    return questionTags;
+  }
+
+  public List<String> getDeletedKeys() {
+    return deletedKeys;
+  }
+
+  public String getNextToken() {
+    return nextToken;
+  }
+
+  public boolean isCaughtUp() {
+    return caughtUp;
+  }
+
+  public boolean isResyncRequired() {
+    return resyncRequired;
+  }
+}
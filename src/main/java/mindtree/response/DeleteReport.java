@@ -0,0 +1,39 @@
+package main.java.mindtree.response;
+
+/**
+ * Pojo representing how many entities a cascading delete removed, sent to the client.
+ */
+public class DeleteReport {
+  /**
+   * The number of deleted knowledge nodes.
+   */
+  private int nodes;
+
+  /**
+   * The number of deleted edges.
+   */
+  private int edges;
+
+  /**
+   * The number of deleted question tags.
+   */
+  private int questionTags;
+
+  public DeleteReport(int nodes, int edges, int questionTags) {
+    this.nodes = nodes;
+    this.edges = edges;
+    this.questionTags = questionTags;
+  }
+
+  public int getNodes() {
+    return nodes;
+  }
+
+  public int getEdges() {
+    return edges;
+  }
+
+  public int getQuestionTags() {
+    return questionTags;
+  }
+}
@@ -0,0 +1,93 @@
+package main.java.mindtree.response;
+
+import java.util.Map;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.domain.Quiz;
+import main.java.mindtree.service.Counters;
+
+/**
+ * Pojo representing the numbers of entities of each kind sent to the client, in total and
+ * created by the user.
+ */
+public class EntityCounts {
+  /**
+   * The numbers of entities of each kind. Quizzes count while they are not expired.
+   */
+  public static class Counts {
+    private final long knowledgeNodes;
+    private final long edges;
+    private final long quizzes;
+    private final long questionTags;
+
+    Counts(Map<String, Long> counts, String userId) {
+      this.knowledgeNodes = counts.get(name(KnowledgeNode.class, userId));
+      this.edges = counts.get(name(Edge.class, userId));
+      this.quizzes = counts.get(name(Quiz.class, userId));
+      this.questionTags = counts.get(name(QuestionTag.class, userId));
+    }
+
+    public long getKnowledgeNodes() {
+      return knowledgeNodes;
+    }
+
+    public long getEdges() {
+      return edges;
+    }
+
+    public long getQuizzes() {
+      return quizzes;
+    }
+
+    public long getQuestionTags() {
+      return questionTags;
+    }
+  }
+
+  private static final Class<?>[] KINDS = {
+      KnowledgeNode.class, Edge.class, Quiz.class, QuestionTag.class};
+
+  private final Counts total;
+
+  /**
+   * The entities the user created, null when the user is not signed in.
+   */
+  private final Counts mine;
+
+  /**
+   * @param counts the values of the counters named by {@link #counterNames}.
+   * @param userId the user to count, null for totals only.
+   */
+  public EntityCounts(Map<String, Long> counts, String userId) {
+    this.total = new Counts(counts, null);
+    this.mine = userId == null ? null : new Counts(counts, userId);
+  }
+
+  /**
+   * @return the names of the counters to read for the user, null for totals only.
+   */
+  public static String[] counterNames(String userId) {
+    String[] names = new String[userId == null ? KINDS.length : 2 * KINDS.length];
+    for (int i = 0; i < KINDS.length; i++) {
+      names[i] = name(KINDS[i], null);
+      if (userId != null) {
+        names[KINDS.length + i] = name(KINDS[i], userId);
+      }
+    }
+    return names;
+  }
+
+  private static String name(Class<?> kind, String userId) {
+    return userId == null ? Counters.total(kind) : Counters.byUser(kind, userId);
+  }
+
+  public Counts getTotal() {
+    return total;
+  }
+
+  public Counts getMine() {
+    return mine;
+  }
+}
@@ -0,0 +1,69 @@
+package main.java.mindtree.response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pojo representing the order in which to learn the prerequisites of a knowledge node sent to
+ * the client.
+ */
+public class LearningPath {
+  /**
+   * One node of the path.
+   */
+  public static class Step {
+    /**
+     * The web safe key of the node.
+     */
+    private final String nodeKey;
+
+    /**
+     * The product of the edge strengths along the strongest dependency chain from the target.
+     */
+    private final double weight;
+
+    public Step(String nodeKey, double weight) {
+      this.nodeKey = nodeKey;
+      this.weight = weight;
+    }
+
+    public String getNodeKey() {
+      return nodeKey;
+    }
+
+    public double getWeight() {
+      return weight;
+    }
+  }
+
+  /**
+   * The web safe key of the node to learn.
+   */
+  private final String targetKey;
+
+  /**
+   * The prerequisites, each after its own prerequisites, ending with the target.
+   */
+  private final List<Step> steps = new ArrayList<>();
+
+  /**
+   * The prerequisites left out because they are on a dependency cycle or depend on one.
+   */
+  private final List<String> cyclicNodeKeys = new ArrayList<>();
+
+  public LearningPath(String targetKey) {
+    this.targetKey = targetKey;
+  }
+
+  public String getTargetKey() {
+    return targetKey;
+  }
+
+  public List<Step> getSteps() {
+    return steps;
+  }
+
+  public List<String> getCyclicNodeKeys() {
+    return cyclicNodeKeys;
+  }
+}
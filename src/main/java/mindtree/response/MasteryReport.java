@@ -0,0 +1,53 @@
+package main.java.mindtree.response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pojo representing the mastery of the user over knowledge nodes sent to the client.
+ */
+public class MasteryReport {
+  /**
+   * The mastery of one node.
+   */
+  public static class NodeMastery {
+    /**
+     * The web safe key of the node.
+     */
+    private final String nodeKey;
+
+    /**
+     * The mastery from 0 to 1, including the mastery of the prerequisites.
+     */
+    private final double mastery;
+
+    /**
+     * The running score of the quizzes tagged with the node, null when none was submitted.
+     */
+    private final Double evidence;
+
+    public NodeMastery(String nodeKey, double mastery, Double evidence) {
+      this.nodeKey = nodeKey;
+      this.mastery = mastery;
+      this.evidence = evidence;
+    }
+
+    public String getNodeKey() {
+      return nodeKey;
+    }
+
+    public double getMastery() {
+      return mastery;
+    }
+
+    public Double getEvidence() {
+      return evidence;
+    }
+  }
+
+  private final List<NodeMastery> nodes = new ArrayList<>();
+
+  public List<NodeMastery> getNodes() {
+    return nodes;
+  }
+}
@@ -0,0 +1,78 @@
+package main.java.mindtree.response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pojo representing the parents and children of a knowledge node sent to the client.
+ */
+public class NodeAdjacency {
+  /**
+   * One edge seen from the node, pointing to the node on the other end.
+   */
+  public static class Link {
+    /**
+     * The web safe key of the node on the other end.
+     */
+    private final String nodeKey;
+
+    /**
+     * The web safe key of the edge.
+     */
+    private final String edgeKey;
+
+    /**
+     * How strong the parent node depends on the child node.
+     */
+    private final double strength;
+
+    public Link(String nodeKey, String edgeKey, double strength) {
+      this.nodeKey = nodeKey;
+      this.edgeKey = edgeKey;
+      this.strength = strength;
+    }
+
+    public String getNodeKey() {
+      return nodeKey;
+    }
+
+    public String getEdgeKey() {
+      return edgeKey;
+    }
+
+    public double getStrength() {
+      return strength;
+    }
+  }
+
+  /**
+   * The web safe key of the node.
+   */
+  private final String nodeKey;
+
+  /**
+   * The nodes depending on the node.
+   */
+  private final List<Link> parents = new ArrayList<>();
+
+  /**
+   * The nodes the node depends on.
+   */
+  private final List<Link> children = new ArrayList<>();
+
+  public NodeAdjacency(String nodeKey) {
+    this.nodeKey = nodeKey;
+  }
+
+  public String getNodeKey() {
+    return nodeKey;
+  }
+
+  public List<Link> getParents() {
+    return parents;
+  }
+
+  public List<Link> getChildren() {
+    return children;
+  }
+}
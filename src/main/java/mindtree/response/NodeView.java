@@ -0,0 +1,184 @@
+package main.java.mindtree.response;
+
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.NodeNeighborhood;
+import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.domain.Quiz;
+
+/**
+ * Pojo representing the detail page of a knowledge node sent to the client: the node, its
+ * parents and children and its question tags.
+ */
+public class NodeView {
+  /**
+   * One edge seen from the node, pointing to the node on the other end.
+   */
+  public static class Link {
+    /**
+     * The web safe key of the node on the other end.
+     */
+    private final String nodeKey;
+
+    /**
+     * The name of the node on the other end.
+     */
+    private final String name;
+
+    /**
+     * The web safe key of the edge.
+     */
+    private final String edgeKey;
+
+    /**
+     * How strong the parent node depends on the child node.
+     */
+    private final double strength;
+
+    Link(NodeNeighborhood.Link link) {
+      this.nodeKey = Key.create(KnowledgeNode.class, link.getNodeId()).getString();
+      this.name = link.getName();
+      this.edgeKey = Key.create(Edge.class, link.getEdgeId()).getString();
+      this.strength = link.getStrength();
+    }
+
+    public String getNodeKey() {
+      return nodeKey;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getEdgeKey() {
+      return edgeKey;
+    }
+
+    public double getStrength() {
+      return strength;
+    }
+  }
+
+  /**
+   * One question tag of the node.
+   */
+  public static class Tag {
+    /**
+     * The web safe key of the tag.
+     */
+    private final String tagKey;
+
+    /**
+     * The web safe key of the tagged quiz.
+     */
+    private final String questionKey;
+
+    /**
+     * How strong the quiz tests the node.
+     */
+    private final double strength;
+
+    Tag(NodeNeighborhood.Tag tag) {
+      this.tagKey = Key.create(QuestionTag.class, tag.getTagId()).getString();
+      this.questionKey = Key.create(Quiz.class, tag.getQuizId()).getString();
+      this.strength = tag.getStrength();
+    }
+
+    public String getTagKey() {
+      return tagKey;
+    }
+
+    public String getQuestionKey() {
+      return questionKey;
+    }
+
+    public double getStrength() {
+      return strength;
+    }
+  }
+
+  private final String nodeKey;
+  private final String name;
+  private final String description;
+
+  /**
+   * The strongest nodes depending on the node.
+   */
+  private final List<Link> parents = new ArrayList<>();
+
+  /**
+   * The strongest nodes the node depends on.
+   */
+  private final List<Link> children = new ArrayList<>();
+
+  /**
+   * The strongest question tags of the node.
+   */
+  private final List<Tag> tags = new ArrayList<>();
+
+  /**
+   * The numbers of parents, children and tags, also those not listed.
+   */
+  private final int parentCount;
+  private final int childCount;
+  private final int tagCount;
+
+  public NodeView(NodeNeighborhood neighborhood) {
+    this.nodeKey = Key.create(KnowledgeNode.class, neighborhood.getNodeId()).getString();
+    this.name = neighborhood.getName();
+    this.description = neighborhood.getDescription();
+    for (NodeNeighborhood.Link link : neighborhood.getParents()) {
+      parents.add(new Link(link));
+    }
+    for (NodeNeighborhood.Link link : neighborhood.getChildren()) {
+      children.add(new Link(link));
+    }
+    for (NodeNeighborhood.Tag tag : neighborhood.getTags()) {
+      tags.add(new Tag(tag));
+    }
+    this.parentCount = neighborhood.getParentCount();
+    this.childCount = neighborhood.getChildCount();
+    this.tagCount = neighborhood.getTagCount();
+  }
+
+  public String getNodeKey() {
+    return nodeKey;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getDescription() {
+    return description;
+  }
+
+  public List<Link> getParents() {
+    return parents;
+  }
+
+  public List<Link> getChildren() {
+    return children;
+  }
+
+  public List<Tag> getTags() {
+    return tags;
+  }
+
+  public int getParentCount() {
+    return parentCount;
+  }
+
+  public int getChildCount() {
+    return childCount;
+  }
+
+  public int getTagCount() {
+    return tagCount;
+  }
+}
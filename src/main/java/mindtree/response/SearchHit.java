@@ -0,0 +1,39 @@
+package main.java.mindtree.response;
+
+/**
+ * Pojo representing a knowledge node found by a search sent to the client.
+ */
+public class SearchHit {
+  /**
+   * The web safe key of the node.
+   */
+  private final String nodeKey;
+
+  /**
+   * The name of the node.
+   */
+  private final String name;
+
+  /**
+   * How well the node matches the query, higher is better.
+   */
+  private final double score;
+
+  public SearchHit(String nodeKey, String name, double score) {
+    this.nodeKey = nodeKey;
+    this.name = name;
+    this.score = score;
+  }
+
+  public String getNodeKey() {
+    return nodeKey;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public double getScore() {
+    return score;
+  }
+}
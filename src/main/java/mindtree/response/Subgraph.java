@@ -0,0 +1,43 @@
+package main.java.mindtree.response;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+
+/**
+ * Pojo representing a part of the knowledge graph sent to the client.
+ */
+public class Subgraph {
+  /**
+   * The reached nodes in breadth-first order, starting with the root.
+   */
+  private final List<KnowledgeNode> nodes = new ArrayList<>();
+
+  /**
+   * The edges among the reached nodes.
+   */
+  private final List<Edge> edges = new ArrayList<>();
+
+  /**
+   * True when the depth or node limit left out a node linked to a reached one.
+   */
+  private boolean truncated;
+
+  public List<KnowledgeNode> getNodes() {
+    return nodes;
+  }
+
+  public List<Edge> getEdges() {
+    return edges;
+  }
+
+  public boolean isTruncated() {
+    return truncated;
+  }
+
+  public void setTruncated(boolean truncated) {
+    this.truncated = truncated;
+  }
+}
@@ -0,0 +1,345 @@
+package main.java.mindtree.service;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import main.java.mindtree.util.StripedCounter;
+
+/**
+ * Per-user token buckets that admit API calls or reject them with the time to wait. Callers who
+ * are not signed in each have the buckets of one user, keyed by their client address, see
+ * {@link #anonymousCaller}.
+ *
+ * Every user draws one token per call from the {@link Budget#REQUESTS} budget and, for calls that
+ * read or write many entities, a weight from the separate {@link Budget#EXPENSIVE} budget, so
+ * that large pages and cascading deletes cannot crowd out ordinary calls. A rejected call takes
+ * no tokens.
+ *
+ * The buckets live in memory, in a concurrent map locked per user, so admitting a call never
+ * waits on other users or on an API call. About once a second the tokens a user spent are added
+ * to a memcache counter per time window in the background. When the counter shows that the user
+ * spent more than the budget allows across all instances, the buckets of this instance stay
+ * empty until the window ends. Memcache failures admit the call.
+ */
+public class AdmissionControl {
+  private static final Logger LOG = Logger.getLogger(AdmissionControl.class.getName());
+
+  private static final AdmissionControl INSTANCE = new AdmissionControl();
+
+  private static final String NAMESPACE = "AdmissionControl";
+
+  /**
+   * The budgets every user has, each a token bucket.
+   */
+  public enum Budget {
+    /**
+     * One token per call.
+     */
+    REQUESTS(20, 100),
+
+    /**
+     * Tokens weighted by the entities a call reads or writes.
+     */
+    EXPENSIVE(10, 50);
+
+    private final double perSecond;
+    private final int burst;
+
+    Budget(double perSecond, int burst) {
+      this.perSecond = perSecond;
+      this.burst = burst;
+    }
+
+    /**
+     * @return the tokens added back per second.
+     */
+    public double getPerSecond() {
+      return perSecond;
+    }
+
+    /**
+     * @return the tokens a full bucket holds.
+     */
+    public int getBurst() {
+      return burst;
+    }
+  }
+
+  /**
+   * Prefixes the client address of callers who are not signed in, which no user id starts with.
+   */
+  static final String ANONYMOUS_PREFIX = "(anonymous)";
+
+  /**
+   * How often the tokens a user spent are added to the memcache counter.
+   */
+  static final long SYNC_MILLIS = 1000;
+
+  /**
+   * The time window of the memcache counters. The counters of past windows are left to memcache
+   * eviction.
+   */
+  static final long WINDOW_MILLIS = 10000;
+
+  /**
+   * Beyond this number of users, the users whose buckets are full again are forgotten.
+   */
+  private static final int MAX_USERS = 10000;
+
+  /**
+   * One token bucket of one user.
+   */
+  private static class Bucket {
+    private final Budget budget;
+    private final double capacity;
+    private final double perMilli;
+    private double tokens;
+    private long refilledMillis;
+    // Across instances, the user spent the budget of the window ending then.
+    private long blockedUntilMillis;
+    private long unsynced;
+    private long syncedMillis;
+    private Future<Long> sync;
+    private long syncWindow;
+
+    Bucket(Budget budget, long nowMillis) {
+      this.budget = budget;
+      this.capacity = budget.burst;
+      this.perMilli = budget.perSecond / 1000;
+      this.tokens = capacity;
+      this.refilledMillis = nowMillis;
+      this.syncedMillis = nowMillis;
+    }
+
+    void refill(long nowMillis) {
+      if (blockedUntilMillis > nowMillis) {
+        tokens = 0;
+        refilledMillis = nowMillis;
+      } else if (nowMillis > refilledMillis) {
+        tokens = Math.min(capacity, tokens + (nowMillis - refilledMillis) * perMilli);
+        refilledMillis = nowMillis;
+      }
+    }
+
+    /**
+     * @return how long until the bucket holds the tokens, 0 when it does. A cost above the
+     *     capacity waits for a full bucket.
+     */
+    long waitMillis(int cost, long nowMillis) {
+      if (blockedUntilMillis > nowMillis) {
+        return blockedUntilMillis - nowMillis;
+      }
+      double missing = Math.min(cost, capacity) - tokens;
+      return missing <= 0 ? 0 : (long) Math.ceil(missing / perMilli);
+    }
+
+    void take(int cost) {
+      tokens -= Math.min(cost, capacity);
+      unsynced += cost;
+    }
+
+    /**
+     * @return whether the bucket was full at the time, so forgetting it changes nothing.
+     */
+    boolean isIdle(long nowMillis) {
+      return sync == null && unsynced == 0 && blockedUntilMillis <= nowMillis
+          && tokens + (nowMillis - refilledMillis) * perMilli >= capacity;
+    }
+  }
+
+  /**
+   * The buckets of one user, locked together.
+   */
+  private static class UserBuckets {
+    private final String userId;
+    private final Bucket[] buckets = new Bucket[Budget.values().length];
+
+    UserBuckets(String userId, long nowMillis) {
+      this.userId = userId;
+      for (Budget budget : Budget.values()) {
+        buckets[budget.ordinal()] = new Bucket(budget, nowMillis);
+      }
+    }
+  }
+
+  private final ConcurrentMap<String, UserBuckets> users = new ConcurrentHashMap<>(256, 0.75f, 64);
+
+  private final AtomicLong sweptMillis = new AtomicLong();
+
+  private final StripedCounter[] rejected = new StripedCounter[Budget.values().length];
+
+  private final AsyncMemcacheService memcache =
+      MemcacheServiceFactory.getAsyncMemcacheService(NAMESPACE);
+
+  private volatile boolean enabled = true;
+
+  private AdmissionControl() {
+    for (Budget budget : Budget.values()) {
+      rejected[budget.ordinal()] = new StripedCounter();
+    }
+  }
+
+  public static AdmissionControl get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Turns admission control on or off, for load tests and benchmarks that call the API as one
+   * user.
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  /**
+   * @param address the address of the client, null when unknown.
+   * @return the caller to admit the calls of a client that is not signed in under.
+   */
+  public static String anonymousCaller(String address) {
+    return ANONYMOUS_PREFIX + ":" + address;
+  }
+
+  /**
+   * Admits a call of the user when both buckets hold its tokens, and takes them.
+   *
+   * @param userId the user id, or the {@link #anonymousCaller} of a client not signed in.
+   * @param expensiveCost the tokens the call takes from the {@link Budget#EXPENSIVE} budget, 0
+   *     for an ordinary call.
+   * @return 0 when the call is admitted, otherwise how many milliseconds to wait before
+   *     retrying it.
+   */
+  public long admit(String userId, int expensiveCost) {
+    if (!enabled) {
+      return 0;
+    }
+    long nowMillis = System.currentTimeMillis();
+    UserBuckets user = buckets(userId, nowMillis);
+    Bucket requests = user.buckets[Budget.REQUESTS.ordinal()];
+    Bucket expensive = user.buckets[Budget.EXPENSIVE.ordinal()];
+    synchronized (user) {
+      for (Bucket bucket : user.buckets) {
+        checkSync(bucket);
+        bucket.refill(nowMillis);
+      }
+      long waitMillis = requests.waitMillis(1, nowMillis);
+      if (waitMillis > 0) {
+        rejected[Budget.REQUESTS.ordinal()].increment();
+        return waitMillis;
+      }
+      if (expensiveCost > 0) {
+        waitMillis = expensive.waitMillis(expensiveCost, nowMillis);
+        if (waitMillis > 0) {
+          rejected[Budget.EXPENSIVE.ordinal()].increment();
+          return waitMillis;
+        }
+        expensive.take(expensiveCost);
+      }
+      requests.take(1);
+      for (Bucket bucket : user.buckets) {
+        startSync(user.userId, bucket, nowMillis);
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return how many calls the budget rejected since the instance started.
+   */
+  public long getRejected(Budget budget) {
+    return rejected[budget.ordinal()].sum();
+  }
+
+  private UserBuckets buckets(String userId, long nowMillis) {
+    UserBuckets user = users.get(userId);
+    if (user == null) {
+      if (users.size() >= MAX_USERS) {
+        sweep(nowMillis);
+      }
+      UserBuckets created = new UserBuckets(userId, nowMillis);
+      user = users.putIfAbsent(userId, created);
+      if (user == null) {
+        user = created;
+      }
+    }
+    return user;
+  }
+
+  /**
+   * Forgets the users whose buckets are full again, at most once per sync period.
+   */
+  private void sweep(long nowMillis) {
+    long swept = sweptMillis.get();
+    if (nowMillis - swept < SYNC_MILLIS || !sweptMillis.compareAndSet(swept, nowMillis)) {
+      return;
+    }
+    for (Iterator<UserBuckets> it = users.values().iterator(); it.hasNext(); ) {
+      UserBuckets user = it.next();
+      synchronized (user) {
+        boolean idle = true;
+        for (Bucket bucket : user.buckets) {
+          idle &= bucket.isIdle(nowMillis);
+        }
+        if (idle) {
+          it.remove();
+        }
+      }
+    }
+  }
+
+  /**
+   * Adds the tokens spent since the last sync to the counter of the current window without
+   * waiting for memcache.
+   */
+  private void startSync(String userId, Bucket bucket, long nowMillis) {
+    if (bucket.sync != null || bucket.unsynced == 0
+        || nowMillis - bucket.syncedMillis < SYNC_MILLIS) {
+      return;
+    }
+    long window = nowMillis / WINDOW_MILLIS;
+    try {
+      bucket.sync = memcache.increment(
+          bucket.budget.name() + ":" + userId + ":" + window, bucket.unsynced, 0L);
+      bucket.syncWindow = window;
+    } catch (RuntimeException e) {
+      LOG.log(Level.FINE, "Cannot sync the tokens of " + userId, e);
+    }
+    bucket.unsynced = 0;
+    bucket.syncedMillis = nowMillis;
+  }
+
+  /**
+   * Empties the bucket until the end of the window when the finished sync shows that the user
+   * spent more than the budget allows in the window.
+   */
+  private void checkSync(Bucket bucket) {
+    if (bucket.sync == null || !bucket.sync.isDone()) {
+      return;
+    }
+    Future<Long> sync = bucket.sync;
+    bucket.sync = null;
+    Long spent;
+    try {
+      spent = sync.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    } catch (ExecutionException | RuntimeException e) {
+      LOG.log(Level.FINE, "Cannot sync tokens", e);
+      return;
+    }
+    double allowed = bucket.capacity + bucket.perMilli * WINDOW_MILLIS;
+    if (spent != null && spent > allowed) {
+      bucket.tokens = 0;
+      bucket.blockedUntilMillis = (bucket.syncWindow + 1) * WINDOW_MILLIS;
+    }
+  }
+}
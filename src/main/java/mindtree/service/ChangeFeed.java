@@ -0,0 +1,191 @@
+package main.java.mindtree.service;
+
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.MindTreeEntity;
+import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.domain.Quiz;
+import main.java.mindtree.domain.Tombstone;
+import main.java.mindtree.response.Changes;
+import main.java.mindtree.util.UpdateSequence;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Serves the changes to the mind tree since a token, so that clients keep their copy of the graph
+ * current at the cost of the changes instead of downloading the whole graph again.
+ *
+ * Every save stamps the entity with an update sequence and every delete leaves a
+ * {@link Tombstone} with one, see {@link UpdateSequence}. A token is an update sequence; a page
+ * holds the saves and deletes after it in sequence order, read with one query per kind.
+ *
+ * The feed only reaches up to {@link #SETTLE_MILLIS} before now. Writes still in flight, clocks of
+ * other instances running behind and queries not yet seeing new writes would otherwise let a
+ * write land behind a token already handed out, and the client would never see it.
+ *
+ * A client starts with a token asked for without one, then downloads the graph through the list
+ * endpoints and from then on asks for the changes since its last token. Writes between the token
+ * and the download come twice, which is harmless since applying a change is idempotent.
+ *
+ * Tombstones are kept for {@link #TOMBSTONE_RETENTION_MILLIS}. A token older than that could miss
+ * deletes, so it is answered with a fresh token and a resync flag, and the client downloads the
+ * graph again as when it started.
+ */
+public class ChangeFeed {
+  private static final ChangeFeed INSTANCE = new ChangeFeed();
+
+  static final long SETTLE_MILLIS = 5000;
+
+  /**
+   * How long a client can go without syncing before it must download the graph again.
+   */
+  static final long TOMBSTONE_RETENTION_MILLIS = 30L * 24 * 60 * 60 * 1000;
+
+  /**
+   * Tombstones are purged this long after they are no longer served, so that a purge never races
+   * a request still reading them.
+   */
+  static final long PURGE_MARGIN_MILLIS = 24 * 60 * 60 * 1000;
+
+  static final int PURGE_BATCH_SIZE = 500;
+
+  private static final String UPDATE_SEQ = "updateSeq";
+
+  private ChangeFeed() {}
+
+  public static ChangeFeed get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param sinceToken the next token of the previous page, null for a token to start from.
+   * @param limit the largest number of changes to return.
+   * @return the oldest changes after the token, none when there is no token or the token is
+   *     older than the tombstones kept.
+   * @throws IllegalArgumentException when the token is malformed.
+   */
+  public Changes changesSince(String sinceToken, int limit) {
+    long now = System.currentTimeMillis();
+    long upTo = UpdateSequence.at(now - SETTLE_MILLIS);
+    if (sinceToken == null || sinceToken.isEmpty()) {
+      return new Changes(token(upTo), true, false);
+    }
+    long since = Long.parseLong(sinceToken, Character.MAX_RADIX);
+    if (since < UpdateSequence.at(now - TOMBSTONE_RETENTION_MILLIS)) {
+      return new Changes(token(upTo), true, true);
+    }
+    if (since >= upTo) {
+      return new Changes(sinceToken, true, false);
+    }
+
+    // Each query reads one change past a page, to tell whether its kind has more changes.
+    Pipeline pipeline = new Pipeline();
+    Result<List<KnowledgeNode>> nodes = query(pipeline, KnowledgeNode.class, since, upTo, limit);
+    Result<List<Edge>> edges = query(pipeline, Edge.class, since, upTo, limit);
+    Result<List<Quiz>> quizzes = query(pipeline, Quiz.class, since, upTo, limit);
+    Result<List<QuestionTag>> tags = query(pipeline, QuestionTag.class, since, upTo, limit);
+    Result<List<Tombstone>> tombstones = query(pipeline, Tombstone.class, since, upTo, limit);
+    pipeline.join();
+
+    // A kind with more changes than a page is known only up to its limit-th change, so the page
+    // ends there at the latest. Without such a kind, it ends at upTo.
+    long end = upTo;
+    List<Long> sequences = new ArrayList<>();
+    end = addSequences(sequences, nodes.now(), limit, end);
+    end = addSequences(sequences, edges.now(), limit, end);
+    end = addSequences(sequences, quizzes.now(), limit, end);
+    end = addSequences(sequences, tags.now(), limit, end);
+    List<Long> tombstoneSequences = new ArrayList<>();
+    for (Tombstone tombstone : tombstones.now()) {
+      tombstoneSequences.add(tombstone.getUpdateSeq());
+    }
+    end = addKindSequences(sequences, tombstoneSequences, limit, end);
+    // Of the changes up to there, the page holds the oldest limit.
+    Collections.sort(sequences);
+    if (sequences.size() > limit && sequences.get(limit) <= end) {
+      end = sequences.get(limit - 1);
+    }
+    boolean caughtUp = end == upTo;
+
+    Changes changes = new Changes(token(end), caughtUp, false);
+    addUpTo(changes.getKnowledgeNodes(), nodes.now(), end);
+    addUpTo(changes.getEdges(), edges.now(), end);
+    addUpTo(changes.getQuizzes(), quizzes.now(), end);
+    addUpTo(changes.getQuestionTags(), tags.now(), end);
+    for (Tombstone tombstone : tombstones.now()) {
+      if (tombstone.getUpdateSeq() <= end) {
+        changes.getDeletedKeys().add(tombstone.getDeletedKey());
+      }
+    }
+    return changes;
+  }
+
+  /**
+   * Deletes the tombstones no longer served, see {@link #TOMBSTONE_RETENTION_MILLIS}.
+   *
+   * @return the number deleted, {@link #PURGE_BATCH_SIZE} when more are left.
+   */
+  public int purgeTombstones() {
+    long before = UpdateSequence.at(
+        System.currentTimeMillis() - TOMBSTONE_RETENTION_MILLIS - PURGE_MARGIN_MILLIS);
+    List<Key<Tombstone>> keys = ofy().load().type(Tombstone.class)
+        .filter(UPDATE_SEQ + " <", before)
+        .limit(PURGE_BATCH_SIZE)
+        .keys()
+        .list();
+    ofy().delete().keys(keys).now();
+    return keys.size();
+  }
+
+  private static <T> Result<List<T>> query(
+      Pipeline pipeline, Class<T> kind, long since, long upTo, int limit) {
+    return pipeline.query(ofy().load().type(kind)
+        .filter(new FilterPredicate(UPDATE_SEQ, FilterOperator.GREATER_THAN, since))
+        .filter(new FilterPredicate(UPDATE_SEQ, FilterOperator.LESS_THAN_OR_EQUAL, upTo))
+        .order(UPDATE_SEQ)
+        .limit(limit + 1)
+        .iterator());
+  }
+
+  /**
+   * Adds the sequences of the changes of one kind, oldest first, to those of the other kinds.
+   *
+   * @return the end of the page, moved back to the limit-th change when the kind has more.
+   */
+  private static long addSequences(
+      List<Long> sequences, List<? extends MindTreeEntity<?, ?>> entities, int limit, long end) {
+    List<Long> kindSequences = new ArrayList<>();
+    for (MindTreeEntity<?, ?> entity : entities) {
+      kindSequences.add(entity.getUpdateSeq());
+    }
+    return addKindSequences(sequences, kindSequences, limit, end);
+  }
+
+  private static long addKindSequences(
+      List<Long> sequences, List<Long> kindSequences, int limit, long end) {
+    sequences.addAll(kindSequences);
+    return kindSequences.size() > limit ? Math.min(end, kindSequences.get(limit - 1)) : end;
+  }
+
+  private static <E extends MindTreeEntity<?, ?>> void addUpTo(
+      List<E> page, List<E> entities, long end) {
+    for (E entity : entities) {
+      if (entity.getUpdateSeq() <= end) {
+        page.add(entity);
+      }
+    }
+  }
+
+  private static String token(long updateSeq) {
+    return Long.toString(updateSeq, Character.MAX_RADIX);
+  }
+}
@@ -0,0 +1,102 @@
+package main.java.mindtree.service;
+
+import java.util.Arrays;
+
+/**
+ * Immutable snapshot of the knowledge graph in compressed sparse row form.
+ *
+ * Nodes are numbered 0..nodeCount-1 in ascending id order. The links of node i in one direction
+ * are the positions start(i) inclusive to end(i) exclusive of the target and strength arrays of
+ * that direction, so walks touch only primitive arrays. Built by
+ * {@link KnowledgeGraphIndex#compact()}.
+ */
+public class CompactGraph {
+  private final long version;
+
+  private final long[] nodeIds;
+
+  private final int[] childOffsets;
+  private final int[] childTargets;
+  private final float[] childStrengths;
+
+  private final int[] parentOffsets;
+  private final int[] parentTargets;
+  private final float[] parentStrengths;
+
+  CompactGraph(long version, long[] nodeIds,
+      int[] childOffsets, int[] childTargets, float[] childStrengths,
+      int[] parentOffsets, int[] parentTargets, float[] parentStrengths) {
+    this.version = version;
+    this.nodeIds = nodeIds;
+    this.childOffsets = childOffsets;
+    this.childTargets = childTargets;
+    this.childStrengths = childStrengths;
+    this.parentOffsets = parentOffsets;
+    this.parentTargets = parentTargets;
+    this.parentStrengths = parentStrengths;
+  }
+
+  /**
+   * @return the version of the index this snapshot was built from.
+   */
+  long version() {
+    return version;
+  }
+
+  /**
+   * @return the number of nodes with at least one edge.
+   */
+  public int nodeCount() {
+    return nodeIds.length;
+  }
+
+  /**
+   * @return the number of the node with the given id, -1 when it has no edge.
+   */
+  public int indexOf(long nodeId) {
+    int i = Arrays.binarySearch(nodeIds, nodeId);
+    return i < 0 ? -1 : i;
+  }
+
+  public long nodeId(int node) {
+    return nodeIds[node];
+  }
+
+  public int childStart(int node) {
+    return childOffsets[node];
+  }
+
+  public int childEnd(int node) {
+    return childOffsets[node + 1];
+  }
+
+  /**
+   * @return the node the given position of the child arrays points to.
+   */
+  public int child(int position) {
+    return childTargets[position];
+  }
+
+  public float childStrength(int position) {
+    return childStrengths[position];
+  }
+
+  public int parentStart(int node) {
+    return parentOffsets[node];
+  }
+
+  public int parentEnd(int node) {
+    return parentOffsets[node + 1];
+  }
+
+  /**
+   * @return the node the given position of the parent arrays points to.
+   */
+  public int parent(int position) {
+    return parentTargets[position];
+  }
+
+  public float parentStrength(int position) {
+    return parentStrengths[position];
+  }
+}
@@ -0,0 +1,339 @@
+package main.java.mindtree.service;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.RetryOptions;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import main.java.mindtree.domain.AppliedCounts;
+import main.java.mindtree.domain.CounterShard;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Sharded counters of the entities of each kind, in total and per user who created them.
+ *
+ * A counter is split into {@link #SHARDS} shard entities and every write adds to a random one, so
+ * a counter takes about {@link #SHARDS} times the write rate of one entity group. Reading sums the
+ * shards with one batch get and caches the sum in memcache, where later writes increment it, so
+ * most reads cost one memcache get.
+ *
+ * The API updates counts through {@link #applyLater}, off the request path, with a task enqueued
+ * in the transaction of the counted write when there is one. Adding deltas is recorded per batch,
+ * so a task or job that applies the same batch again, after a failure, adds it only once.
+ */
+public class Counters {
+  private static final Logger LOG = Logger.getLogger(Counters.class.getName());
+
+  private static final Counters INSTANCE = new Counters();
+
+  private static final String NAMESPACE = "Counters";
+
+  public static final String TASK_PATH = "/tasks/applyCounters";
+
+  static final int SHARDS = 16;
+
+  // Cross group transactions span at most 25 entity groups, one shard per counter and the
+  // AppliedCounts of the chunk.
+  private static final int TRANSACTION_SIZE = 24;
+
+  /**
+   * Tasks failing for longer than this are dropped, so that their {@link AppliedCounts} can be
+   * purged after {@link #APPLIED_RETENTION_MILLIS}.
+   */
+  private static final long TASK_AGE_LIMIT_SECONDS = 24 * 60 * 60;
+
+  private static final long APPLIED_RETENTION_MILLIS = 2 * TASK_AGE_LIMIT_SECONDS * 1000;
+
+  private static final int PURGE_BATCH_SIZE = 500;
+
+  /**
+   * Bounds how long a cached sum that missed a write, read while the write was in flight, stays.
+   */
+  private static final Expiration SUM_EXPIRATION = Expiration.byDeltaSeconds(60);
+
+  /**
+   * The changes of many counters, applied together.
+   */
+  public static class Deltas {
+    private final Map<String, Long> deltas = new LinkedHashMap<>();
+    private final Map<String, String> kinds = new HashMap<>();
+
+    /**
+     * Adds to the total of the kind and to the count of the user.
+     *
+     * @param userId the user who created the entities, null when unknown.
+     */
+    public Deltas add(Class<?> kind, String userId, long delta) {
+      add(Key.getKind(kind), total(kind), delta);
+      if (userId != null) {
+        add(Key.getKind(kind), byUser(kind, userId), delta);
+      }
+      return this;
+    }
+
+    private void add(String kind, String counter, long delta) {
+      Long sum = deltas.get(counter);
+      deltas.put(counter, sum == null ? delta : sum + delta);
+      kinds.put(counter, kind);
+    }
+
+    public boolean isEmpty() {
+      return deltas.isEmpty();
+    }
+
+    /**
+     * Rebuilds the deltas carried by a task of {@link #applyLater}.
+     *
+     * @throws IllegalArgumentException when the parameters do not match.
+     */
+    public static Deltas parse(String[] kinds, String[] counters, String[] deltas) {
+      Deltas parsed = new Deltas();
+      if (counters == null) {
+        return parsed;
+      }
+      if (kinds == null || deltas == null
+          || kinds.length != counters.length || deltas.length != counters.length) {
+        throw new IllegalArgumentException("Bad counter deltas");
+      }
+      for (int i = 0; i < counters.length; i++) {
+        parsed.add(kinds[i], counters[i], Long.parseLong(deltas[i]));
+      }
+      return parsed;
+    }
+  }
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+  private final AsyncMemcacheService asyncMemcache =
+      MemcacheServiceFactory.getAsyncMemcacheService(NAMESPACE);
+
+  private final Random random = new Random();
+
+  private Counters() {}
+
+  public static Counters get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the name of the counter of all entities of the kind.
+   */
+  public static String total(Class<?> kind) {
+    return Key.getKind(kind);
+  }
+
+  /**
+   * @return the name of the counter of the entities of the kind the user created.
+   */
+  public static String byUser(Class<?> kind, String userId) {
+    return Key.getKind(kind) + "/" + userId;
+  }
+
+  /**
+   * Adds the deltas to their counters in a task, enqueued in the current transaction when there is
+   * one so that the counts change if and only if the counted write commits.
+   */
+  public void applyLater(Deltas deltas) {
+    TaskOptions task = TaskOptions.Builder.withUrl(TASK_PATH)
+        .param("batch", UUID.randomUUID().toString())
+        .retryOptions(RetryOptions.Builder.withTaskAgeLimitSeconds(TASK_AGE_LIMIT_SECONDS));
+    boolean empty = true;
+    for (Map.Entry<String, Long> delta : deltas.deltas.entrySet()) {
+      if (delta.getValue() != 0) {
+        task.param("kind", deltas.kinds.get(delta.getKey()))
+            .param("counter", delta.getKey())
+            .param("delta", String.valueOf(delta.getValue()));
+        empty = false;
+      }
+    }
+    if (!empty) {
+      QueueFactory.getDefaultQueue().add(ofy().getTransaction(), task);
+    }
+  }
+
+  /**
+   * Adds the deltas to their counters, each to a random shard, in transactions of up to
+   * {@link #TRANSACTION_SIZE} counters. Each transaction also saves an {@link AppliedCounts} keyed
+   * by the batch id and the index of the chunk, and a chunk already saved is skipped, so applying
+   * the same deltas again under the same batch id adds each chunk once.
+   *
+   * @param batchId The id of the deltas, the same every time they are applied.
+   * @throws RuntimeException the failure of the first chunk that failed, once the other chunks
+   *     are applied.
+   */
+  public void apply(String batchId, Deltas deltas) {
+    final List<String> counters = new ArrayList<>();
+    for (Map.Entry<String, Long> delta : deltas.deltas.entrySet()) {
+      if (delta.getValue() != 0) {
+        counters.add(delta.getKey());
+      }
+    }
+    RuntimeException failure = null;
+    for (int from = 0; from < counters.size(); from += TRANSACTION_SIZE) {
+      List<String> chunk =
+          counters.subList(from, Math.min(from + TRANSACTION_SIZE, counters.size()));
+      final Map<String, String> shardIds = new LinkedHashMap<>();
+      for (String counter : chunk) {
+        shardIds.put(counter, shardId(counter, random.nextInt(SHARDS)));
+      }
+      Key<AppliedCounts> appliedKey =
+          Key.create(AppliedCounts.class, batchId + "/" + from / TRANSACTION_SIZE);
+      try {
+        if (!add(appliedKey, shardIds, deltas)) {
+          continue;
+        }
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Failed to update the counters " + chunk, e);
+        if (failure == null) {
+          failure = e;
+        }
+        continue;
+      }
+      Map<String, Long> increments = new HashMap<>();
+      for (String counter : chunk) {
+        increments.put(counter, deltas.deltas.get(counter));
+      }
+      // Only sums already cached are incremented, memcache is best effort.
+      asyncMemcache.incrementAll(increments);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  /**
+   * @return whether the chunk was added, false when it was already.
+   */
+  private boolean add(final Key<AppliedCounts> appliedKey, final Map<String, String> shardIds,
+      final Deltas deltas) {
+    return ofy().transact(new Work<Boolean>() {
+      @Override
+      public Boolean run() {
+        Result<AppliedCounts> applied = ofy().load().key(appliedKey);
+        List<Key<CounterShard>> keys = new ArrayList<>();
+        for (String shardId : shardIds.values()) {
+          keys.add(Key.create(CounterShard.class, shardId));
+        }
+        Map<Key<CounterShard>, CounterShard> loaded = ofy().load().keys(keys);
+        if (applied.now() != null) {
+          return false;
+        }
+        List<CounterShard> shards = new ArrayList<>();
+        for (Map.Entry<String, String> shardId : shardIds.entrySet()) {
+          CounterShard shard = loaded.get(Key.create(CounterShard.class, shardId.getValue()));
+          if (shard == null) {
+            shard = new CounterShard(shardId.getValue(), deltas.kinds.get(shardId.getKey()));
+          }
+          shard.add(deltas.deltas.get(shardId.getKey()));
+          shards.add(shard);
+        }
+        ofy().save().entities(shards).now();
+        ofy().save().entity(new AppliedCounts(appliedKey.getName(), new Date())).now();
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Deletes the {@link AppliedCounts} older than any task that can still be retried.
+   *
+   * @return the number deleted, {@link #PURGE_BATCH_SIZE} when more are left.
+   */
+  public int purgeApplied() {
+    Date before = new Date(System.currentTimeMillis() - APPLIED_RETENTION_MILLIS);
+    List<Key<AppliedCounts>> keys = ofy().load().type(AppliedCounts.class)
+        .filter("appliedAt <", before)
+        .limit(PURGE_BATCH_SIZE)
+        .keys()
+        .list();
+    ofy().delete().keys(keys).now();
+    return keys.size();
+  }
+
+  /**
+   * @return the value of the counter, 0 when it was never written.
+   */
+  public long count(String counter) {
+    return counts(Collections.singletonList(counter)).get(counter);
+  }
+
+  /**
+   * @return the values of the counters, read from memcache and else from their shards.
+   */
+  public Map<String, Long> counts(Collection<String> counters) {
+    Map<String, Long> counts = new LinkedHashMap<>();
+    Map<String, Object> cached = memcache.getAll(counters);
+    List<Key<CounterShard>> keys = new ArrayList<>();
+    for (String counter : counters) {
+      Object sum = cached.get(counter);
+      if (sum != null) {
+        counts.put(counter, ((Number) sum).longValue());
+      } else {
+        for (int shard = 0; shard < SHARDS; shard++) {
+          keys.add(Key.create(CounterShard.class, shardId(counter, shard)));
+        }
+      }
+    }
+    if (keys.isEmpty()) {
+      return counts;
+    }
+    Map<Key<CounterShard>, CounterShard> shards = ofy().load().keys(keys);
+    Map<String, Long> sums = new HashMap<>();
+    for (String counter : counters) {
+      if (counts.containsKey(counter)) {
+        continue;
+      }
+      long sum = 0;
+      for (int shard = 0; shard < SHARDS; shard++) {
+        CounterShard counterShard =
+            shards.get(Key.create(CounterShard.class, shardId(counter, shard)));
+        if (counterShard != null) {
+          sum += counterShard.getCount();
+        }
+      }
+      counts.put(counter, sum);
+      sums.put(counter, sum);
+    }
+    asyncMemcache.putAll(sums, SUM_EXPIRATION, MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+    return counts;
+  }
+
+  /**
+   * Deletes the counters of the kind, the first step of a recount. Sums cached before stay for up
+   * to a minute.
+   */
+  public void reset(Class<?> kind) {
+    List<Key<CounterShard>> keys = ofy().load().type(CounterShard.class)
+        .filter("kind", Key.getKind(kind))
+        .keys()
+        .list();
+    // The datastore deletes at most 500 keys per call.
+    for (int from = 0; from < keys.size(); from += 500) {
+      ofy().delete().keys(keys.subList(from, Math.min(from + 500, keys.size()))).now();
+    }
+  }
+
+  private static String shardId(String counter, int shard) {
+    return counter + "#" + shard;
+  }
+}
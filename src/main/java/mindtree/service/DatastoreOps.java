@@ -0,0 +1,390 @@
+package main.java.mindtree.service;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.Ref;
+import com.googlecode.objectify.cmd.DeferredDeleteIds;
+import com.googlecode.objectify.cmd.DeferredDeleter;
+import com.googlecode.objectify.cmd.DeferredSaver;
+import com.googlecode.objectify.cmd.DeleteIds;
+import com.googlecode.objectify.cmd.Deleter;
+import com.googlecode.objectify.cmd.LoadIds;
+import com.googlecode.objectify.cmd.Loader;
+import com.googlecode.objectify.cmd.QueryExecute;
+import com.googlecode.objectify.cmd.Saver;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+/**
+ * Counts the datastore operations one request issues through {@link OfyService#ofy()}.
+ *
+ * While a request is being counted, ofy() hands out an Objectify wrapped in proxies that count
+ * every load, query, save and delete before passing it on. Batch operations count once, with the
+ * number of keys they carry. Repeated single key loads of one kind, the N+1 pattern of loading
+ * the nodes of a path one hop at a time, are flagged in the summary logged when the request ends.
+ *
+ * Operations count when they are issued, so loads the session cache serves count too. Not thread
+ * safe, the counts belong to the request thread.
+ *
+ * The proxies cost a reflective call per command, so only the requests that begin counting pay
+ * for it; {@link main.java.mindtree.servlet.MetricsFilter} counts a sample of the requests.
+ */
+public class DatastoreOps {
+  private static final Logger LOG = Logger.getLogger(DatastoreOps.class.getName());
+
+  /**
+   * Single key loads of one kind from this many on are flagged as N+1.
+   */
+  static final int N_PLUS_ONE_LOADS = 5;
+
+  private static final ThreadLocal<DatastoreOps> CURRENT = new ThreadLocal<>();
+
+  private final String request;
+  private int gets;
+  private int getKeys;
+  private int queries;
+  private int puts;
+  private int putEntities;
+  private int deletes;
+  private int deleteKeys;
+  private final Map<String, Integer> singleGetsByKind = new TreeMap<>();
+  private final Map<String, Integer> queriesByKind = new TreeMap<>();
+
+  // The Objectify last instrumented and its proxy, handed out again until a transaction or its
+  // end changes the Objectify of the thread.
+  private Objectify instrumentedTarget;
+  private Objectify instrumented;
+
+  private DatastoreOps(String request) {
+    this.request = request;
+  }
+
+  /**
+   * Starts counting the operations of the current thread.
+   *
+   * @param request the name of the request, such as the endpoint method.
+   */
+  public static DatastoreOps begin(String request) {
+    DatastoreOps ops = new DatastoreOps(request);
+    CURRENT.set(ops);
+    return ops;
+  }
+
+  /**
+   * @return the counts of the current thread, null when it is not counted.
+   */
+  public static DatastoreOps current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Stops counting. The counts stay readable.
+   */
+  public void end() {
+    if (CURRENT.get() == this) {
+      CURRENT.remove();
+    }
+  }
+
+  /**
+   * Logs the summary, as a warning when the request loads N+1 style.
+   */
+  public void log() {
+    if (gets + queries + puts + deletes == 0) {
+      return;
+    }
+    if (getNPlusOneKinds().isEmpty()) {
+      LOG.info(summary());
+    } else {
+      LOG.warning(summary());
+    }
+  }
+
+  /**
+   * @return how many loads, single or batch, the request issued.
+   */
+  public int getGets() {
+    return gets;
+  }
+
+  /**
+   * @return how many keys the loads asked for.
+   */
+  public int getGetKeys() {
+    return getKeys;
+  }
+
+  public int getQueries() {
+    return queries;
+  }
+
+  /**
+   * @return how many saves, single or batch, the request issued.
+   */
+  public int getPuts() {
+    return puts;
+  }
+
+  public int getPutEntities() {
+    return putEntities;
+  }
+
+  /**
+   * @return how many deletes, single or batch, the request issued.
+   */
+  public int getDeletes() {
+    return deletes;
+  }
+
+  public int getDeleteKeys() {
+    return deleteKeys;
+  }
+
+  /**
+   * @return the kinds loaded one key at a time at least {@link #N_PLUS_ONE_LOADS} times.
+   */
+  public List<String> getNPlusOneKinds() {
+    List<String> kinds = new ArrayList<>();
+    for (Map.Entry<String, Integer> entry : singleGetsByKind.entrySet()) {
+      if (entry.getValue() >= N_PLUS_ONE_LOADS) {
+        kinds.add(entry.getKey());
+      }
+    }
+    return kinds;
+  }
+
+  /**
+   * @return the counts as one line of JSON, so that log queries can pick fields out.
+   */
+  public String summary() {
+    StringBuilder json = new StringBuilder("datastore ops {\"request\":");
+    quote(json, request);
+    json.append(",\"gets\":").append(gets)
+        .append(",\"getKeys\":").append(getKeys)
+        .append(",\"queries\":").append(queries)
+        .append(",\"puts\":").append(puts)
+        .append(",\"putEntities\":").append(putEntities)
+        .append(",\"deletes\":").append(deletes)
+        .append(",\"deleteKeys\":").append(deleteKeys)
+        .append(",\"singleGetsByKind\":");
+    append(json, singleGetsByKind);
+    json.append(",\"queriesByKind\":");
+    append(json, queriesByKind);
+    json.append(",\"nPlusOne\":[");
+    String separator = "";
+    for (String kind : getNPlusOneKinds()) {
+      json.append(separator);
+      quote(json, kind);
+      separator = ",";
+    }
+    return json.append("]}").toString();
+  }
+
+  private static void append(StringBuilder json, Map<String, Integer> counts) {
+    json.append('{');
+    String separator = "";
+    for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+      json.append(separator);
+      quote(json, entry.getKey());
+      json.append(':').append(entry.getValue());
+      separator = ",";
+    }
+    json.append('}');
+  }
+
+  private static void quote(StringBuilder json, String value) {
+    if (value == null) {
+      json.append("null");
+      return;
+    }
+    json.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+  }
+
+  private static void increment(Map<String, Integer> counts, String kind) {
+    String name = kind != null ? kind : "(kindless)";
+    Integer count = counts.get(name);
+    counts.put(name, count == null ? 1 : count + 1);
+  }
+
+  /**
+   * @return the Objectify of the request, counting into these counts.
+   */
+  Objectify instrument(Objectify ofy) {
+    if (ofy != instrumentedTarget) {
+      instrumented = wrap(Objectify.class, ofy, null);
+      instrumentedTarget = ofy;
+    }
+    return instrumented;
+  }
+
+  private <T> T wrap(Class<T> type, Object target, String kind) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type},
+        new Counting(target, type, kind)));
+  }
+
+  /**
+   * Counts the operations issued on one Objectify command object and wraps the command objects
+   * it returns, so a chain like load().type(...).filter(...).list() is counted as a whole.
+   */
+  private class Counting implements InvocationHandler {
+    private final Object target;
+    private final Class<?> type;
+
+    // The kind the command is bound to, null until type() or kind() is called.
+    private final String kind;
+
+    Counting(Object target, Class<?> type, String kind) {
+      this.target = target;
+      this.type = type;
+      this.kind = kind;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      count(name, args);
+      Object result;
+      try {
+        result = method.invoke(target, args);
+      } catch (InvocationTargetException e) {
+        throw e.getCause();
+      }
+      Class<?> returnType = method.getReturnType();
+      if (result == null || !returnType.isInterface() || !isCommand(returnType)) {
+        return result;
+      }
+      String resultKind = kind;
+      if (("type".equals(name) || "kind".equals(name)) && args != null && args.length == 1) {
+        resultKind = args[0] instanceof Class
+            ? Key.getKind((Class<?>) args[0]) : String.valueOf(args[0]);
+      }
+      return wrap(returnType, result, resultKind);
+    }
+
+    private void count(String name, Object[] args) {
+      // The argument tells Loader.keys(...) apart from the query method keys().
+      if ((Loader.class.isAssignableFrom(type) || LoadIds.class.isAssignableFrom(type))
+          && args != null && args.length == 1) {
+        switch (name) {
+          case "key":
+          case "ref":
+          case "entity":
+          case "value":
+          case "now":
+          case "id":
+            gets++;
+            getKeys++;
+            increment(singleGetsByKind, "id".equals(name) ? kind : kindOf(args[0]));
+            return;
+          case "keys":
+          case "refs":
+          case "entities":
+          case "values":
+          case "ids":
+            gets++;
+            getKeys += size(args);
+            return;
+          default:
+            break;
+        }
+      }
+      if (QueryExecute.class.isAssignableFrom(type)) {
+        switch (name) {
+          case "list":
+          case "first":
+          case "iterable":
+          case "iterator":
+          case "count":
+            queries++;
+            increment(queriesByKind, kind);
+            return;
+          default:
+            return;
+        }
+      }
+      if (Saver.class.isAssignableFrom(type) || DeferredSaver.class.isAssignableFrom(type)) {
+        if ("entity".equals(name)) {
+          puts++;
+          putEntities++;
+        } else if ("entities".equals(name)) {
+          puts++;
+          putEntities += size(args);
+        }
+        return;
+      }
+      if (Deleter.class.isAssignableFrom(type) || DeleteIds.class.isAssignableFrom(type)
+          || DeferredDeleter.class.isAssignableFrom(type)
+          || DeferredDeleteIds.class.isAssignableFrom(type)) {
+        switch (name) {
+          case "key":
+          case "entity":
+          case "id":
+            deletes++;
+            deleteKeys++;
+            return;
+          case "keys":
+          case "entities":
+          case "ids":
+            deletes++;
+            deleteKeys += size(args);
+            return;
+          default:
+            return;
+        }
+      }
+    }
+  }
+
+  /**
+   * @return whether values of the type are Objectify commands to wrap, rather than results.
+   */
+  private static boolean isCommand(Class<?> type) {
+    return Objectify.class.isAssignableFrom(type)
+        || type.getName().startsWith("com.googlecode.objectify.cmd.");
+  }
+
+  private static String kindOf(Object value) {
+    if (value instanceof Key) {
+      return ((Key<?>) value).getKind();
+    }
+    if (value instanceof Ref) {
+      return ((Ref<?>) value).key().getKind();
+    }
+    if (value instanceof com.google.appengine.api.datastore.Key) {
+      return ((com.google.appengine.api.datastore.Key) value).getKind();
+    }
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Key.getKind(value.getClass());
+    } catch (IllegalArgumentException e) {
+      return value.getClass().getSimpleName();
+    }
+  }
+
+  /**
+   * @return the number of values passed to a batch operation, as a collection or as varargs.
+   */
+  private static int size(Object[] args) {
+    if (args == null || args.length != 1 || args[0] == null) {
+      return 0;
+    }
+    Object values = args[0];
+    if (values.getClass().isArray()) {
+      return Array.getLength(values);
+    }
+    // Other iterables might only be iterable once, so their size stays unknown.
+    return values instanceof Collection ? ((Collection<?>) values).size() : 0;
+  }
+}
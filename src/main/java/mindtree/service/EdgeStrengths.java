@@ -0,0 +1,338 @@
+package main.java.mindtree.service;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.RetryOptions;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import main.java.mindtree.domain.AppliedStrengths;
+import main.java.mindtree.domain.Edge;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Write-behind buffer of edge strength nudges, kept in memcache so that no instance holds them.
+ *
+ * Nudges are summed per edge and per window of {@link #FLUSH_MILLIS}, with one memcache
+ * increment each, so a hot edge nudged many times costs one write per window instead of one
+ * transaction per nudge. The first nudge of a window an instance serves enqueues the flush task
+ * of the window, named after it so that the instances enqueue it once, to run
+ * {@link #SETTLE_MILLIS} after the window ends. A nudge therefore reaches its edge within
+ * {@link #FLUSH_MILLIS} plus {@link #SETTLE_MILLIS} and the queue delay, also when the instance
+ * that served it is shut down right after. It is lost only when memcache evicts its window before
+ * the flush, or when it reaches memcache more than {@link #SETTLE_MILLIS} after its window ended.
+ *
+ * The flush applies the sums in transactions of up to {@link #TRANSACTION_EDGES} edges, so that
+ * concurrent writes add up. Each transaction also saves an {@link AppliedStrengths} per edge it
+ * updates, so that a flush retried after some edges were applied applies only the others, however
+ * the edges it reads back from memcache are grouped this time.
+ */
+public class EdgeStrengths {
+  private static final Logger LOG = Logger.getLogger(EdgeStrengths.class.getName());
+
+  private static final EdgeStrengths INSTANCE = new EdgeStrengths();
+
+  private static final String NAMESPACE = "EdgeStrengths";
+
+  public static final String TASK_PATH = "/tasks/applyEdgeStrengths";
+
+  /**
+   * The length of a window of nudges written together.
+   */
+  static final long FLUSH_MILLIS = 2000;
+
+  /**
+   * How long after its window ends the flush runs, for nudges still in flight and clock skew
+   * between instances.
+   */
+  static final long SETTLE_MILLIS = 1000;
+
+  /**
+   * The sums are stored in fixed point, offset so that memcache, which does not go below 0,
+   * keeps negative sums.
+   */
+  private static final double SCALE = 1e9;
+
+  private static final long OFFSET = 1L << 62;
+
+  /**
+   * Bounds how long the edge list of a window whose flush never ran occupies memcache.
+   */
+  private static final Expiration WINDOW_EXPIRATION = Expiration.byDeltaSeconds(60 * 60);
+
+  /**
+   * The memcache values read per batch get by a flush.
+   */
+  private static final int READ_BATCH_SIZE = 1000;
+
+  /**
+   * A cross group transaction spans at most 25 entity groups, here the edges and the
+   * {@link AppliedStrengths} of each.
+   */
+  static final int TRANSACTION_EDGES = 12;
+
+  /**
+   * Tasks failing for longer than this are dropped, so that their {@link AppliedStrengths} can be
+   * purged after {@link #APPLIED_RETENTION_MILLIS}.
+   */
+  static final long TASK_AGE_LIMIT_SECONDS = 24 * 60 * 60;
+
+  static final long APPLIED_RETENTION_MILLIS = 2 * TASK_AGE_LIMIT_SECONDS * 1000;
+
+  static final int PURGE_BATCH_SIZE = 500;
+
+  /**
+   * What this instance did in a window: the edges it listed and whether it enqueued the flush.
+   */
+  private static class Window {
+    private final long id;
+    private final ConcurrentMap<Long, Boolean> edges = new ConcurrentHashMap<>();
+    private final AtomicBoolean flushEnqueued = new AtomicBoolean();
+
+    Window(long id) {
+      this.id = id;
+    }
+  }
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+  private final AtomicReference<Window> current = new AtomicReference<>(new Window(-1));
+
+  private EdgeStrengths() {}
+
+  public static EdgeStrengths get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Adds a delta to the strength of an edge, written by the flush of the current window. A delta
+   * for an edge that does not exist is dropped when applied.
+   *
+   * @throws RuntimeException when the flush of the window cannot be enqueued, before the delta
+   *     is added, so that the nudge can be retried.
+   */
+  public void nudge(long edgeId, double delta) {
+    Window window = window(System.currentTimeMillis() / FLUSH_MILLIS);
+    if (window.flushEnqueued.compareAndSet(false, true)) {
+      try {
+        enqueueFlush(window.id);
+      } catch (RuntimeException e) {
+        window.flushEnqueued.set(false);
+        throw e;
+      }
+    }
+    if (window.edges.putIfAbsent(edgeId, Boolean.TRUE) == null) {
+      // Instances list an edge once each, the flush drops the repeats.
+      Long slot = memcache.increment(sizeKey(window.id), 1, 0L);
+      if (slot != null) {
+        memcache.put(slotKey(window.id, slot), edgeId, WINDOW_EXPIRATION);
+      }
+    }
+    memcache.increment(sumKey(window.id, edgeId), Math.round(delta * SCALE), OFFSET);
+  }
+
+  /**
+   * @return what this instance did in the window, a throwaway for a window already replaced.
+   */
+  private Window window(long id) {
+    while (true) {
+      Window window = current.get();
+      if (window.id == id) {
+        return window;
+      }
+      if (window.id > id) {
+        // Repeats at worst the listing of an edge or the enqueueing of the flush.
+        return new Window(id);
+      }
+      current.compareAndSet(window, new Window(id));
+    }
+  }
+
+  private static void enqueueFlush(long window) {
+    long countdown = (window + 1) * FLUSH_MILLIS - System.currentTimeMillis() + SETTLE_MILLIS;
+    try {
+      QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(TASK_PATH)
+          .taskName("edgeStrengths-" + window)
+          .param("window", String.valueOf(window))
+          .countdownMillis(Math.max(0, countdown))
+          .retryOptions(RetryOptions.Builder.withTaskAgeLimitSeconds(TASK_AGE_LIMIT_SECONDS)));
+    } catch (TaskAlreadyExistsException e) {
+      // Enqueued by another instance.
+    }
+  }
+
+  /**
+   * Applies the nudges of a window, run from its flush task, and clears them from memcache.
+   *
+   * @return the number of edges updated.
+   * @throws RuntimeException when a group of edges failed, for the task to retry the window.
+   */
+  public int flush(long window) {
+    Long size = (Long) memcache.get(sizeKey(window));
+    if (size == null) {
+      return 0;
+    }
+    List<String> keys = new ArrayList<>();
+    for (long slot = 1; slot <= size; slot++) {
+      keys.add(slotKey(window, slot));
+    }
+    Set<Long> edgeIds = new LinkedHashSet<>();
+    for (Object edgeId : getAll(keys).values()) {
+      edgeIds.add((Long) edgeId);
+    }
+    List<String> sumKeys = new ArrayList<>();
+    for (Long edgeId : edgeIds) {
+      sumKeys.add(sumKey(window, edgeId));
+    }
+    Map<String, Object> sums = getAll(sumKeys);
+    Map<Long, Double> deltas = new LinkedHashMap<>();
+    for (Long edgeId : edgeIds) {
+      Object sum = sums.get(sumKey(window, edgeId));
+      if (sum != null && (Long) sum != OFFSET) {
+        deltas.put(edgeId, ((Long) sum - OFFSET) / SCALE);
+      }
+    }
+    int updated = apply("window/" + window, deltas);
+    keys.addAll(sumKeys);
+    keys.add(sizeKey(window));
+    memcache.deleteAll(keys);
+    return updated;
+  }
+
+  private Map<String, Object> getAll(List<String> keys) {
+    Map<String, Object> values = new LinkedHashMap<>();
+    for (int from = 0; from < keys.size(); from += READ_BATCH_SIZE) {
+      values.putAll(memcache.getAll(
+          keys.subList(from, Math.min(from + READ_BATCH_SIZE, keys.size()))));
+    }
+    return values;
+  }
+
+  private static String sizeKey(long window) {
+    return window + "/size";
+  }
+
+  private static String slotKey(long window, long slot) {
+    return window + "/slot/" + slot;
+  }
+
+  private static String sumKey(long window, long edgeId) {
+    return window + "/sum/" + edgeId;
+  }
+
+  /**
+   * Adds the deltas to the strengths of the edges.
+   *
+   * The edges of the batch already applied by an earlier attempt are skipped. A group that fails
+   * does not stop the others, and the task is retried for it.
+   *
+   * @param batchId The id shared by the attempts to apply the same deltas.
+   * @return the number of edges updated.
+   * @throws RuntimeException the failure of the first group that failed, once the other groups
+   *     are applied.
+   */
+  public int apply(String batchId, Map<Long, Double> deltas) {
+    List<Long> edgeIds = new ArrayList<>(deltas.keySet());
+    List<Long> nodeIds = new ArrayList<>();
+    List<Edge> applied = new ArrayList<>();
+    RuntimeException failure = null;
+    int updated = 0;
+    for (int from = 0; from < edgeIds.size(); from += TRANSACTION_EDGES) {
+      final Map<Key<Edge>, Double> group = new LinkedHashMap<>();
+      final Map<Key<Edge>, Key<AppliedStrengths>> appliedKeys = new LinkedHashMap<>();
+      for (Long edgeId : edgeIds.subList(from, Math.min(from + TRANSACTION_EDGES,
+          edgeIds.size()))) {
+        Key<Edge> edgeKey = Key.create(Edge.class, edgeId);
+        group.put(edgeKey, deltas.get(edgeId));
+        appliedKeys.put(edgeKey, Key.create(AppliedStrengths.class, batchId + "/" + edgeId));
+      }
+      // Set by the last run of the transaction, which may run again after a conflict.
+      final int[] changed = new int[1];
+      try {
+        List<Edge> edges = ofy().transact(new Work<List<Edge>>() {
+          @Override
+          public List<Edge> run() {
+            Map<Key<AppliedStrengths>, AppliedStrengths> done =
+                ofy().load().keys(appliedKeys.values());
+            List<Edge> edges = new ArrayList<>(ofy().load().keys(group.keySet()).values());
+            // An earlier attempt may have applied some edges, but failed before indexing them.
+            List<Edge> pending = new ArrayList<>();
+            List<AppliedStrengths> records = new ArrayList<>();
+            Date now = new Date();
+            for (Edge edge : edges) {
+              Key<AppliedStrengths> appliedKey = appliedKeys.get(Key.create(edge));
+              if (!done.containsKey(appliedKey)) {
+                edge.addStrength(group.get(Key.create(edge)));
+                pending.add(edge);
+                records.add(new AppliedStrengths(appliedKey.getName(), now));
+              }
+            }
+            changed[0] = pending.size();
+            if (!pending.isEmpty()) {
+              ofy().save().entities(pending).now();
+              ofy().save().entities(records).now();
+            }
+            return edges;
+          }
+        });
+        applied.addAll(edges);
+        updated += changed[0];
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Cannot update the strengths of " + group.size() + " edges", e);
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    for (Edge edge : applied) {
+      KnowledgeGraphIndex.get().addEdge(edge);
+      if (edge.getParent() != null && edge.getChild() != null) {
+        nodeIds.add(edge.getParent().getKey().getId());
+        nodeIds.add(edge.getChild().getKey().getId());
+      }
+    }
+    if (!applied.isEmpty()) {
+      QueryCache.get().invalidate(Edge.class);
+      Neighborhoods.get().refreshLater(nodeIds);
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return updated;
+  }
+
+  /**
+   * Deletes the {@link AppliedStrengths} older than any task that can still be retried.
+   *
+   * @return the number deleted, {@link #PURGE_BATCH_SIZE} when more are left.
+   */
+  public int purgeApplied() {
+    Date before = new Date(System.currentTimeMillis() - APPLIED_RETENTION_MILLIS);
+    List<Key<AppliedStrengths>> keys = ofy().load().type(AppliedStrengths.class)
+        .filter("appliedAt <", before)
+        .limit(PURGE_BATCH_SIZE)
+        .keys()
+        .list();
+    ofy().delete().keys(keys).now();
+    return keys.size();
+  }
+}
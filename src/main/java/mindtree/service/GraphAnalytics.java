@@ -0,0 +1,224 @@
+package main.java.mindtree.service;
+
+import java.util.Arrays;
+
+/**
+ * Whole-graph computations over the {@link CompactGraph} snapshot of the knowledge graph index.
+ *
+ * A parent node depends on its child nodes, with the strength of the edge between them, so the
+ * children of a node are its prerequisites.
+ */
+public class GraphAnalytics {
+  private static final GraphAnalytics INSTANCE = new GraphAnalytics();
+
+  /**
+   * The prerequisites of a target node in learning order, ending with the target.
+   */
+  public static class LearningOrder {
+    private final long[] nodeIds;
+    private final float[] weights;
+    private final long[] cyclicNodeIds;
+
+    private LearningOrder(long[] nodeIds, float[] weights, long[] cyclicNodeIds) {
+      this.nodeIds = nodeIds;
+      this.weights = weights;
+      this.cyclicNodeIds = cyclicNodeIds;
+    }
+
+    public long[] getNodeIds() {
+      return nodeIds;
+    }
+
+    /**
+     * @return per node, the product of the strengths along its strongest dependency chain from
+     *     the target. The target weighs 1.
+     */
+    public float[] getWeights() {
+      return weights;
+    }
+
+    /**
+     * @return the prerequisites left out of the order because they are on a dependency cycle or
+     *     depend on one, in ascending id order.
+     */
+    public long[] getCyclicNodeIds() {
+      return cyclicNodeIds;
+    }
+  }
+
+  /**
+   * Binary heap of local node numbers, heaviest first and smaller id on ties.
+   */
+  private static class ReadyHeap {
+    private final int[] heap;
+    private final float[] weights;
+    private final long[] ids;
+    private int size;
+
+    ReadyHeap(int capacity, float[] weights, long[] ids) {
+      this.heap = new int[capacity];
+      this.weights = weights;
+      this.ids = ids;
+    }
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void add(int node) {
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (!before(node, heap[parent])) {
+          break;
+        }
+        heap[i] = heap[parent];
+        i = parent;
+      }
+      heap[i] = node;
+    }
+
+    int poll() {
+      int first = heap[0];
+      int last = heap[--size];
+      int i = 0;
+      while (true) {
+        int child = 2 * i + 1;
+        if (child >= size) {
+          break;
+        }
+        if (child + 1 < size && before(heap[child + 1], heap[child])) {
+          child++;
+        }
+        if (!before(heap[child], last)) {
+          break;
+        }
+        heap[i] = heap[child];
+        i = child;
+      }
+      heap[i] = last;
+      return first;
+    }
+
+    private boolean before(int a, int b) {
+      if (weights[a] != weights[b]) {
+        return weights[a] > weights[b];
+      }
+      return ids[a] < ids[b];
+    }
+  }
+
+  private GraphAnalytics() {}
+
+  public static GraphAnalytics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Orders the transitive prerequisites of a node so that every node comes after all of its own
+   * prerequisites. Among the nodes that can be learned next, the one with the largest weight
+   * comes first, ties go to the smaller id.
+   *
+   * @param targetId the id of the node to learn.
+   * @return the learning order, the target alone when it has no prerequisites.
+   */
+  public LearningOrder learningOrder(long targetId) {
+    CompactGraph graph = KnowledgeGraphIndex.get().compact();
+    int target = graph.indexOf(targetId);
+    if (target < 0) {
+      return new LearningOrder(new long[] {targetId}, new float[] {1f}, new long[0]);
+    }
+
+    // Collect the prerequisites and number them locally.
+    int[] local = new int[graph.nodeCount()];
+    Arrays.fill(local, -1);
+    int[] nodes = new int[16];
+    int count = 0;
+    local[target] = count;
+    nodes[count++] = target;
+    for (int i = 0; i < count; i++) {
+      int node = nodes[i];
+      for (int k = graph.childStart(node); k < graph.childEnd(node); k++) {
+        int child = graph.child(k);
+        if (local[child] < 0) {
+          if (count == nodes.length) {
+            nodes = Arrays.copyOf(nodes, count * 2);
+          }
+          local[child] = count;
+          nodes[count++] = child;
+        }
+      }
+    }
+
+    // Propagate weights downwards from the target, a node once all its dependents are done.
+    float[] weights = new float[count];
+    int[] pending = new int[count];
+    for (int i = 0; i < count; i++) {
+      int node = nodes[i];
+      for (int k = graph.childStart(node); k < graph.childEnd(node); k++) {
+        pending[local[graph.child(k)]]++;
+      }
+    }
+    weights[0] = 1f;
+    int[] queue = new int[count];
+    int head = 0;
+    int tail = 0;
+    if (pending[0] == 0) {
+      queue[tail++] = 0;
+    }
+    while (head < tail) {
+      int i = queue[head++];
+      int node = nodes[i];
+      for (int k = graph.childStart(node); k < graph.childEnd(node); k++) {
+        int j = local[graph.child(k)];
+        weights[j] = Math.max(weights[j], weights[i] * graph.childStrength(k));
+        if (--pending[j] == 0) {
+          queue[tail++] = j;
+        }
+      }
+    }
+
+    // Emit a node once all its prerequisites are emitted, the heaviest ready node first.
+    long[] ids = new long[count];
+    for (int i = 0; i < count; i++) {
+      ids[i] = graph.nodeId(nodes[i]);
+      pending[i] = graph.childEnd(nodes[i]) - graph.childStart(nodes[i]);
+    }
+    ReadyHeap ready = new ReadyHeap(count, weights, ids);
+    for (int i = 0; i < count; i++) {
+      if (pending[i] == 0) {
+        ready.add(i);
+      }
+    }
+    long[] orderIds = new long[count];
+    float[] orderWeights = new float[count];
+    boolean[] emitted = new boolean[count];
+    int emittedCount = 0;
+    while (!ready.isEmpty()) {
+      int i = ready.poll();
+      emitted[i] = true;
+      orderIds[emittedCount] = ids[i];
+      orderWeights[emittedCount] = weights[i];
+      emittedCount++;
+      int node = nodes[i];
+      for (int k = graph.parentStart(node); k < graph.parentEnd(node); k++) {
+        int j = local[graph.parent(k)];
+        // Parents outside the prerequisites of the target are not part of the order.
+        if (j >= 0 && --pending[j] == 0) {
+          ready.add(j);
+        }
+      }
+    }
+
+    long[] cyclicNodeIds = new long[count - emittedCount];
+    int cyclicCount = 0;
+    for (int i = 0; i < count; i++) {
+      if (!emitted[i]) {
+        cyclicNodeIds[cyclicCount++] = ids[i];
+      }
+    }
+    Arrays.sort(cyclicNodeIds);
+    return new LearningOrder(Arrays.copyOf(orderIds, emittedCount),
+        Arrays.copyOf(orderWeights, emittedCount), cyclicNodeIds);
+  }
+}
@@ -0,0 +1,913 @@
+package main.java.mindtree.service;
+
+import com.googlecode.objectify.Ref;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.util.Keys;
+import main.java.mindtree.util.LongHashMap;
+
+import static main.java.mindtree.service.OfyService.factory;
+
+/**
+ * Per-instance adjacency index of the knowledge graph, keyed by knowledge node id.
+ *
+ * The index is warmed from the Edge kind by the warmup request (or on first use) and kept up to
+ * date by the API methods that create or delete edges and nodes, so neighborhood lookups are
+ * memory reads instead of datastore queries. Writes made through other instances become visible
+ * once the index is rebuilt, by the refresh cron after {@link #MAX_AGE_MILLIS} when it reaches
+ * the instance, else by a read after {@link #MAX_STALE_MILLIS}.
+ */
+public class KnowledgeGraphIndex {
+  private static final Logger LOG = Logger.getLogger(KnowledgeGraphIndex.class.getName());
+
+  /**
+   * How long a warmed index is served before {@link #refresh} rebuilds it from the datastore.
+   */
+  static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  /**
+   * How long a warmed index is served before a read rebuilds it, for instances the refresh cron
+   * has not reached.
+   */
+  static final long MAX_STALE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final int WARM_CHUNK_SIZE = 1000;
+
+  private static final KnowledgeGraphIndex INSTANCE = new KnowledgeGraphIndex();
+
+  /**
+   * Immutable snapshot of the nodes linked to one node in one direction.
+   */
+  public static class Neighbors {
+    private static final Neighbors EMPTY = new Neighbors(new long[0], new long[0], new double[0]);
+
+    private final long[] nodeIds;
+    private final long[] edgeIds;
+    private final double[] strengths;
+
+    private Neighbors(long[] nodeIds, long[] edgeIds, double[] strengths) {
+      this.nodeIds = nodeIds;
+      this.edgeIds = edgeIds;
+      this.strengths = strengths;
+    }
+
+    public int size() {
+      return nodeIds.length;
+    }
+
+    public long nodeId(int i) {
+      return nodeIds[i];
+    }
+
+    public long edgeId(int i) {
+      return edgeIds[i];
+    }
+
+    public double strength(int i) {
+      return strengths[i];
+    }
+  }
+
+  /**
+   * Result of a breadth-first traversal: the reached nodes in visiting order and the edges
+   * between them.
+   */
+  public static class Traversal {
+    private final long[] nodeIds;
+    private final long[] edgeIds;
+    private final boolean truncated;
+
+    private Traversal(long[] nodeIds, long[] edgeIds, boolean truncated) {
+      this.nodeIds = nodeIds;
+      this.edgeIds = edgeIds;
+      this.truncated = truncated;
+    }
+
+    public long[] getNodeIds() {
+      return nodeIds;
+    }
+
+    public long[] getEdgeIds() {
+      return edgeIds;
+    }
+
+    /**
+     * @return true when the depth or node limit left out a node linked to a reached one. Links
+     *     among the reached nodes never count, their edges are part of the result.
+     */
+    public boolean isTruncated() {
+      return truncated;
+    }
+  }
+
+  /**
+   * Mutable, growable link list of one node in one direction.
+   */
+  private static class Links {
+    private long[] nodeIds = new long[2];
+    private long[] edgeIds = new long[2];
+    private double[] strengths = new double[2];
+    private int size;
+
+    void add(long nodeId, long edgeId, double strength) {
+      for (int i = 0; i < size; i++) {
+        if (edgeIds[i] == edgeId) {
+          nodeIds[i] = nodeId;
+          strengths[i] = strength;
+          return;
+        }
+      }
+      if (size == nodeIds.length) {
+        int capacity = size * 2;
+        nodeIds = Arrays.copyOf(nodeIds, capacity);
+        edgeIds = Arrays.copyOf(edgeIds, capacity);
+        strengths = Arrays.copyOf(strengths, capacity);
+      }
+      nodeIds[size] = nodeId;
+      edgeIds[size] = edgeId;
+      strengths[size] = strength;
+      size++;
+    }
+
+    boolean remove(long edgeId) {
+      for (int i = 0; i < size; i++) {
+        if (edgeIds[i] == edgeId) {
+          size--;
+          nodeIds[i] = nodeIds[size];
+          edgeIds[i] = edgeIds[size];
+          strengths[i] = strengths[size];
+          return true;
+        }
+      }
+      return false;
+    }
+
+    Neighbors snapshot() {
+      return new Neighbors(
+          Arrays.copyOf(nodeIds, size),
+          Arrays.copyOf(edgeIds, size),
+          Arrays.copyOf(strengths, size));
+    }
+  }
+
+  /**
+   * The outcome of {@link #tryAddEdge}.
+   */
+  public enum EdgeCheck {
+    ADDED,
+    DUPLICATE,
+    CYCLE,
+  }
+
+  /**
+   * Position of a node in the topological order, parents before children.
+   */
+  private static class Rank {
+    private long value;
+
+    Rank(long value) {
+      this.value = value;
+    }
+  }
+
+  private enum OpType {
+    ADD_EDGE,
+    REMOVE_EDGE,
+    REMOVE_NODE,
+  }
+
+  /**
+   * A mutation recorded while a rebuild is running, replayed on the rebuilt maps.
+   */
+  private static class PendingOp {
+    private final OpType type;
+    private final long edgeId;
+    private final long parentId;
+    private final long childId;
+    private final double strength;
+
+    PendingOp(OpType type, long edgeId, long parentId, long childId, double strength) {
+      this.type = type;
+      this.edgeId = edgeId;
+      this.parentId = parentId;
+      this.childId = childId;
+      this.strength = strength;
+    }
+  }
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final ReentrantLock rebuildLock = new ReentrantLock();
+
+  // Guarded by lock.
+  private LongHashMap<Links> children = new LongHashMap<>();
+  private LongHashMap<Links> parents = new LongHashMap<>();
+  private int edgeCount;
+  private List<PendingOp> pendingOps;
+  // Bumped by every change to the maps.
+  private long version;
+  // A topological order of the nodes with edges, maintained incrementally on edge inserts. Null
+  // until first needed after a rebuild, or while the graph has a cycle.
+  private LongHashMap<Rank> ranks;
+  private long lowestRank;
+  private long highestRank;
+  // True when the last attempt to order the graph found a cycle.
+  private boolean cyclic;
+
+  // The last compact snapshot, reused while the version is unchanged.
+  private volatile CompactGraph compactGraph;
+
+  private volatile long warmedAt;
+
+  private KnowledgeGraphIndex() {}
+
+  /**
+   * @return the index of this instance. Read methods warm it on demand.
+   */
+  public static KnowledgeGraphIndex get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Decodes the datastore id of a knowledge node from its web safe key.
+   *
+   * @param websafeKnowledgeNodeKey the web safe key of a knowledge node.
+   * @return the id of the node.
+   * @throws IllegalArgumentException when the key is not a valid knowledge node key.
+   */
+  public static long nodeId(String websafeKnowledgeNodeKey) {
+    return Keys.parse(KnowledgeNode.class, websafeKnowledgeNodeKey).getId();
+  }
+
+  // Edges migrated from malformed string keys have no node reference.
+  private static long nodeId(Ref<KnowledgeNode> node) {
+    if (node == null) {
+      throw new IllegalArgumentException("Missing knowledge node");
+    }
+    return node.getKey().getId();
+  }
+
+  /**
+   * @return the nodes that the given node depends on.
+   */
+  public Neighbors children(long nodeId) {
+    return neighbors(true, nodeId);
+  }
+
+  /**
+   * @return the nodes that depend on the given node.
+   */
+  public Neighbors parents(long nodeId) {
+    return neighbors(false, nodeId);
+  }
+
+  /**
+   * Walks the graph breadth-first from the given node.
+   *
+   * @param rootId the node to start from, always part of the result.
+   * @param towardsChildren true to walk down to the subtree, false to walk up to the ancestors.
+   * @param maxDepth the number of hops to expand.
+   * @param maxNodes the maximum number of nodes in the result.
+   * @return the reached nodes and the edges among them, truncated when a node linked to a reached
+   *     one was left out.
+   */
+  public Traversal traverse(long rootId, boolean towardsChildren, int maxDepth, int maxNodes) {
+    ensureWarm();
+    LongHashMap<Boolean> visited = new LongHashMap<>();
+    long[] nodeIds = new long[16];
+    long[] edgeIds = new long[16];
+    int nodeCount = 0;
+    int edgeCount = 0;
+    boolean truncated = false;
+    visited.put(rootId, Boolean.TRUE);
+    nodeIds[nodeCount++] = rootId;
+    lock.readLock().lock();
+    try {
+      LongHashMap<Links> direction = towardsChildren ? children : parents;
+      int levelStart = 0;
+      for (int depth = 0; depth < maxDepth && levelStart < nodeCount; depth++) {
+        int levelEnd = nodeCount;
+        for (int i = levelStart; i < levelEnd; i++) {
+          Links links = direction.get(nodeIds[i]);
+          if (links == null) {
+            continue;
+          }
+          for (int j = 0; j < links.size; j++) {
+            long next = links.nodeIds[j];
+            if (!visited.containsKey(next)) {
+              if (nodeCount >= maxNodes) {
+                truncated = true;
+                continue;
+              }
+              visited.put(next, Boolean.TRUE);
+              if (nodeCount == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, nodeCount * 2);
+              }
+              nodeIds[nodeCount++] = next;
+            }
+            if (edgeCount == edgeIds.length) {
+              edgeIds = Arrays.copyOf(edgeIds, edgeCount * 2);
+            }
+            edgeIds[edgeCount++] = links.edgeIds[j];
+          }
+        }
+        levelStart = levelEnd;
+      }
+      // The last level is not expanded. Its links to reached nodes are edges among them, only
+      // the others reach past the depth limit.
+      for (int i = levelStart; i < nodeCount; i++) {
+        Links links = direction.get(nodeIds[i]);
+        if (links == null) {
+          continue;
+        }
+        for (int j = 0; j < links.size; j++) {
+          if (!visited.containsKey(links.nodeIds[j])) {
+            truncated = true;
+            continue;
+          }
+          if (edgeCount == edgeIds.length) {
+            edgeIds = Arrays.copyOf(edgeIds, edgeCount * 2);
+          }
+          edgeIds[edgeCount++] = links.edgeIds[j];
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+    return new Traversal(
+        Arrays.copyOf(nodeIds, nodeCount), Arrays.copyOf(edgeIds, edgeCount), truncated);
+  }
+
+  /**
+   * @return the number of edges currently indexed.
+   */
+  public int edgeCount() {
+    ensureWarm();
+    lock.readLock().lock();
+    try {
+      return edgeCount;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Returns the graph as compressed sparse rows for whole-graph computations.
+   *
+   * The snapshot is rebuilt only after the index changed, so repeated calls between writes share
+   * one copy.
+   */
+  public CompactGraph compact() {
+    ensureWarm();
+    lock.readLock().lock();
+    try {
+      CompactGraph graph = compactGraph;
+      if (graph == null || graph.version() != version) {
+        graph = buildCompactLocked();
+        compactGraph = graph;
+      }
+      return graph;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private CompactGraph buildCompactLocked() {
+    long[] childKeys = children.keys();
+    long[] parentKeys = parents.keys();
+    long[] nodeIds = Arrays.copyOf(childKeys, childKeys.length + parentKeys.length);
+    System.arraycopy(parentKeys, 0, nodeIds, childKeys.length, parentKeys.length);
+    Arrays.sort(nodeIds);
+    int nodeCount = 0;
+    for (int i = 0; i < nodeIds.length; i++) {
+      if (i == 0 || nodeIds[i] != nodeIds[i - 1]) {
+        nodeIds[nodeCount++] = nodeIds[i];
+      }
+    }
+    nodeIds = Arrays.copyOf(nodeIds, nodeCount);
+
+    int[] childOffsets = new int[nodeCount + 1];
+    int[] parentOffsets = new int[nodeCount + 1];
+    for (int i = 0; i < nodeCount; i++) {
+      Links out = children.get(nodeIds[i]);
+      Links in = parents.get(nodeIds[i]);
+      childOffsets[i + 1] = childOffsets[i] + (out == null ? 0 : out.size);
+      parentOffsets[i + 1] = parentOffsets[i] + (in == null ? 0 : in.size);
+    }
+    int[] childTargets = new int[childOffsets[nodeCount]];
+    float[] childStrengths = new float[childTargets.length];
+    int[] parentTargets = new int[parentOffsets[nodeCount]];
+    float[] parentStrengths = new float[parentTargets.length];
+    for (int i = 0; i < nodeCount; i++) {
+      fillRow(children.get(nodeIds[i]), nodeIds, childOffsets[i], childTargets, childStrengths);
+      fillRow(parents.get(nodeIds[i]), nodeIds, parentOffsets[i], parentTargets, parentStrengths);
+    }
+    return new CompactGraph(version, nodeIds,
+        childOffsets, childTargets, childStrengths,
+        parentOffsets, parentTargets, parentStrengths);
+  }
+
+  private static void fillRow(
+      Links links, long[] nodeIds, int offset, int[] targets, float[] strengths) {
+    if (links == null) {
+      return;
+    }
+    for (int j = 0; j < links.size; j++) {
+      targets[offset + j] = Arrays.binarySearch(nodeIds, links.nodeIds[j]);
+      strengths[offset + j] = (float) links.strengths[j];
+    }
+  }
+
+  /**
+   * Adds an edge unless it duplicates an indexed edge or closes a cycle, atomically with the
+   * checks so that concurrent inserts cannot close a cycle together.
+   *
+   * The cycle check uses the dynamic topological order of Pearce and Kelly: an edge that agrees
+   * with the order is accepted at once, otherwise only the nodes ranked between its two ends are
+   * searched and reordered. Edges saved through other instances are only seen after the next
+   * rebuild.
+   *
+   * @param edgeId the id of the new edge, not saved yet.
+   * @param parentId the node depending on the child.
+   * @param childId the prerequisite node.
+   * @param strength how strong the parent depends on the child.
+   * @return ADDED when the edge is now indexed, otherwise why it was rejected.
+   */
+  public EdgeCheck tryAddEdge(long edgeId, long parentId, long childId, double strength) {
+    if (parentId == childId) {
+      return EdgeCheck.CYCLE;
+    }
+    ensureWarm();
+    lock.writeLock().lock();
+    try {
+      Links out = children.get(parentId);
+      if (out != null) {
+        for (int i = 0; i < out.size; i++) {
+          if (out.nodeIds[i] == childId && out.edgeIds[i] != edgeId) {
+            return EdgeCheck.DUPLICATE;
+          }
+        }
+      }
+      if (ranks == null && !cyclic) {
+        rankLocked();
+      }
+      boolean closesCycle = ranks != null
+          ? !reorderLocked(parentId, childId)
+          : reachesLocked(childId, parentId);
+      if (closesCycle) {
+        return EdgeCheck.CYCLE;
+      }
+      apply(new PendingOp(OpType.ADD_EDGE, edgeId, parentId, childId, strength));
+      return EdgeCheck.ADDED;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Adds a newly saved edge. Edges with malformed node keys are ignored.
+   */
+  public void addEdge(Edge edge) {
+    long parentId;
+    long childId;
+    try {
+      parentId = nodeId(edge.getParent());
+      childId = nodeId(edge.getChild());
+    } catch (IllegalArgumentException e) {
+      LOG.warning("Not indexing edge " + edge.getId() + ": " + e.getMessage());
+      return;
+    }
+    apply(new PendingOp(OpType.ADD_EDGE, edge.getId(), parentId, childId, edge.getStrength()));
+  }
+
+  /**
+   * Removes a deleted edge.
+   */
+  public void removeEdge(Edge edge) {
+    try {
+      removeEdge(edge.getId(), nodeId(edge.getParent()), nodeId(edge.getChild()));
+    } catch (IllegalArgumentException e) {
+      // Such an edge was never indexed.
+    }
+  }
+
+  /**
+   * Removes a deleted edge known only by its id and the ids of its nodes.
+   */
+  public void removeEdge(long edgeId, long parentId, long childId) {
+    apply(new PendingOp(OpType.REMOVE_EDGE, edgeId, parentId, childId, 0));
+  }
+
+  /**
+   * Removes a deleted node together with every edge touching it.
+   */
+  public void removeNode(long nodeId) {
+    apply(new PendingOp(OpType.REMOVE_NODE, 0, nodeId, nodeId, 0));
+  }
+
+  /**
+   * Warms the index if it was never built, blocking readers until the first build finishes. An index
+   * older than {@link #MAX_STALE_MILLIS}, or invalidated, is rebuilt by one request while the
+   * others keep reading the stale one.
+   */
+  public void ensureWarm() {
+    rebuildIfOlder(MAX_STALE_MILLIS);
+  }
+
+  /**
+   * Rebuilds the index if it is older than {@link #MAX_AGE_MILLIS}, run from the warmup and cron
+   * requests so that user requests do not pay for the scan.
+   */
+  public void refresh() {
+    rebuildIfOlder(MAX_AGE_MILLIS);
+  }
+
+  private void rebuildIfOlder(long maxAgeMillis) {
+    long age = System.currentTimeMillis() - warmedAt;
+    if (warmedAt != 0 && age < maxAgeMillis) {
+      return;
+    }
+    if (warmedAt == 0) {
+      rebuildLock.lock();
+    } else if (!rebuildLock.tryLock()) {
+      return;
+    }
+    try {
+      if (warmedAt == 0 || System.currentTimeMillis() - warmedAt >= maxAgeMillis) {
+        rebuild();
+      }
+    } finally {
+      rebuildLock.unlock();
+    }
+  }
+
+  /**
+   * Forces a rebuild on the next read.
+   */
+  public void invalidate() {
+    if (warmedAt != 0) {
+      warmedAt = 1;
+    }
+  }
+
+  private void rebuild() {
+    long start = System.currentTimeMillis();
+    lock.writeLock().lock();
+    try {
+      pendingOps = new ArrayList<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    LongHashMap<Links> newChildren = new LongHashMap<>();
+    LongHashMap<Links> newParents = new LongHashMap<>();
+    int newEdgeCount = 0;
+    try {
+      // A session of its own and no memcache, so that the scanned edges stay in neither. Edges
+      // still saved with string keys lack the projected properties until they are migrated.
+      Iterable<Edge> edges = factory().begin().cache(false).load().type(Edge.class)
+          .project("parent", "child", "strength")
+          .chunk(WARM_CHUNK_SIZE);
+      for (Edge edge : edges) {
+        try {
+          long parentId = nodeId(edge.getParent());
+          long childId = nodeId(edge.getChild());
+          link(newChildren, parentId, childId, edge.getId(), edge.getStrength());
+          link(newParents, childId, parentId, edge.getId(), edge.getStrength());
+          newEdgeCount++;
+        } catch (IllegalArgumentException e) {
+          LOG.warning("Not indexing edge " + edge.getId() + ": " + e.getMessage());
+        }
+      }
+    } catch (RuntimeException e) {
+      lock.writeLock().lock();
+      try {
+        pendingOps = null;
+      } finally {
+        lock.writeLock().unlock();
+      }
+      LOG.log(Level.WARNING, "Failed to warm the knowledge graph index", e);
+      throw e;
+    }
+    lock.writeLock().lock();
+    try {
+      children = newChildren;
+      parents = newParents;
+      edgeCount = newEdgeCount;
+      version++;
+      ranks = null;
+      cyclic = false;
+      for (PendingOp op : pendingOps) {
+        applyLocked(op);
+      }
+      pendingOps = null;
+      warmedAt = System.currentTimeMillis();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    LOG.info("Indexed " + newEdgeCount + " edges in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private Neighbors neighbors(boolean outgoing, long nodeId) {
+    ensureWarm();
+    lock.readLock().lock();
+    try {
+      Links links = (outgoing ? children : parents).get(nodeId);
+      return links == null ? Neighbors.EMPTY : links.snapshot();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private void apply(PendingOp op) {
+    lock.writeLock().lock();
+    try {
+      if (pendingOps != null) {
+        pendingOps.add(op);
+      }
+      if (warmedAt != 0) {
+        applyLocked(op);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void applyLocked(PendingOp op) {
+    version++;
+    switch (op.type) {
+      case ADD_EDGE:
+        // Edges added without tryAddEdge may break the order, which is then rebuilt on demand.
+        if (ranks != null && !reorderLocked(op.parentId, op.childId)) {
+          ranks = null;
+        }
+        if (link(children, op.parentId, op.childId, op.edgeId, op.strength)) {
+          edgeCount++;
+        }
+        link(parents, op.childId, op.parentId, op.edgeId, op.strength);
+        break;
+      case REMOVE_EDGE:
+        if (unlink(children, op.parentId, op.edgeId)) {
+          edgeCount--;
+        }
+        unlink(parents, op.childId, op.edgeId);
+        // Removing an edge keeps an order valid, but may break the cycle that prevented one.
+        cyclic = false;
+        break;
+      case REMOVE_NODE:
+        removeNodeLocked(op.parentId);
+        if (ranks != null) {
+          ranks.remove(op.parentId);
+        }
+        cyclic = false;
+        break;
+    }
+  }
+
+  /**
+   * Orders all nodes with edges, parents before children, with Kahn's algorithm. Leaves the
+   * ranks null and sets cyclic when the graph has a cycle.
+   */
+  private void rankLocked() {
+    long[] childKeys = children.keys();
+    LongHashMap<Rank> newRanks = new LongHashMap<>(childKeys.length + parents.size());
+    // Counts the parents of each node that are not ranked yet.
+    LongHashMap<int[]> waiting = new LongHashMap<>(parents.size());
+    long[] queue = new long[16];
+    int tail = 0;
+    for (long nodeId : childKeys) {
+      if (parents.get(nodeId) == null) {
+        if (tail == queue.length) {
+          queue = Arrays.copyOf(queue, tail * 2);
+        }
+        queue[tail++] = nodeId;
+      }
+    }
+    for (long nodeId : parents.keys()) {
+      waiting.put(nodeId, new int[] {parents.get(nodeId).size});
+    }
+    long rank = 0;
+    for (int head = 0; head < tail; head++) {
+      long nodeId = queue[head];
+      newRanks.put(nodeId, new Rank(rank++));
+      Links out = children.get(nodeId);
+      if (out == null) {
+        continue;
+      }
+      for (int i = 0; i < out.size; i++) {
+        int[] count = waiting.get(out.nodeIds[i]);
+        if (--count[0] == 0) {
+          if (tail == queue.length) {
+            queue = Arrays.copyOf(queue, tail * 2);
+          }
+          queue[tail++] = out.nodeIds[i];
+        }
+      }
+    }
+    int nodeCount = childKeys.length;
+    for (long nodeId : parents.keys()) {
+      if (children.get(nodeId) == null) {
+        nodeCount++;
+      }
+    }
+    if (newRanks.size() < nodeCount) {
+      LOG.warning("The knowledge graph has a cycle, cycle checks fall back to searches");
+      cyclic = true;
+      ranks = null;
+      return;
+    }
+    ranks = newRanks;
+    lowestRank = 0;
+    highestRank = rank;
+  }
+
+  /**
+   * Makes room for the edge from parent to child in the topological order (Pearce-Kelly).
+   *
+   * @return false when the edge closes a cycle, the order is then unchanged.
+   */
+  private boolean reorderLocked(long parentId, long childId) {
+    Rank parentRank = ranks.get(parentId);
+    Rank childRank = ranks.get(childId);
+    // New nodes go to the ends of the order, where the edge agrees with it.
+    if (parentRank == null) {
+      parentRank = new Rank(--lowestRank);
+      ranks.put(parentId, parentRank);
+    }
+    if (childRank == null) {
+      childRank = new Rank(highestRank++);
+      ranks.put(childId, childRank);
+    }
+    long lower = childRank.value;
+    long upper = parentRank.value;
+    if (upper < lower) {
+      return true;
+    }
+    // The nodes below the child and above the parent ranked within the affected range.
+    LongHashMap<Boolean> visited = new LongHashMap<>();
+    long[] below = collectLocked(childId, children, upper, false, parentId, visited);
+    if (below == null) {
+      return false;
+    }
+    long[] above = collectLocked(parentId, parents, lower, true, 0, visited);
+    sortByRank(below);
+    sortByRank(above);
+    // Hand the ranks of both sets to the nodes above first, then the nodes below.
+    long[] slots = new long[above.length + below.length];
+    for (int i = 0; i < above.length; i++) {
+      slots[i] = ranks.get(above[i]).value;
+    }
+    for (int i = 0; i < below.length; i++) {
+      slots[above.length + i] = ranks.get(below[i]).value;
+    }
+    Arrays.sort(slots);
+    for (int i = 0; i < above.length; i++) {
+      ranks.get(above[i]).value = slots[i];
+    }
+    for (int i = 0; i < below.length; i++) {
+      ranks.get(below[i]).value = slots[above.length + i];
+    }
+    return true;
+  }
+
+  /**
+   * Depth-first search from a node along one direction, staying within a rank bound.
+   *
+   * @return the visited nodes, or null when the search reaches the target.
+   */
+  private long[] collectLocked(long startId, LongHashMap<Links> direction, long bound,
+      boolean aboveBound, long targetId, LongHashMap<Boolean> visited) {
+    long[] found = new long[16];
+    int count = 0;
+    long[] stack = new long[16];
+    int depth = 0;
+    stack[depth++] = startId;
+    visited.put(startId, Boolean.TRUE);
+    while (depth > 0) {
+      long nodeId = stack[--depth];
+      if (count == found.length) {
+        found = Arrays.copyOf(found, count * 2);
+      }
+      found[count++] = nodeId;
+      Links links = direction.get(nodeId);
+      if (links == null) {
+        continue;
+      }
+      for (int i = 0; i < links.size; i++) {
+        long next = links.nodeIds[i];
+        if (!aboveBound && next == targetId) {
+          return null;
+        }
+        long rank = ranks.get(next).value;
+        boolean inRange = aboveBound ? rank > bound : rank < bound;
+        if (inRange && !visited.containsKey(next)) {
+          visited.put(next, Boolean.TRUE);
+          if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+          }
+          stack[depth++] = next;
+        }
+      }
+    }
+    return Arrays.copyOf(found, count);
+  }
+
+  private void sortByRank(long[] nodeIds) {
+    long[][] pairs = new long[nodeIds.length][];
+    for (int i = 0; i < nodeIds.length; i++) {
+      pairs[i] = new long[] {ranks.get(nodeIds[i]).value, nodeIds[i]};
+    }
+    Arrays.sort(pairs, new Comparator<long[]>() {
+      @Override
+      public int compare(long[] a, long[] b) {
+        return Long.compare(a[0], b[0]);
+      }
+    });
+    for (int i = 0; i < nodeIds.length; i++) {
+      nodeIds[i] = pairs[i][1];
+    }
+  }
+
+  /**
+   * @return true when the target is reachable from the start along child links.
+   */
+  private boolean reachesLocked(long startId, long targetId) {
+    LongHashMap<Boolean> visited = new LongHashMap<>();
+    long[] stack = new long[16];
+    int depth = 0;
+    stack[depth++] = startId;
+    visited.put(startId, Boolean.TRUE);
+    while (depth > 0) {
+      Links links = children.get(stack[--depth]);
+      if (links == null) {
+        continue;
+      }
+      for (int i = 0; i < links.size; i++) {
+        long next = links.nodeIds[i];
+        if (next == targetId) {
+          return true;
+        }
+        if (!visited.containsKey(next)) {
+          visited.put(next, Boolean.TRUE);
+          if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, depth * 2);
+          }
+          stack[depth++] = next;
+        }
+      }
+    }
+    return false;
+  }
+
+  private void removeNodeLocked(long nodeId) {
+    Links out = children.remove(nodeId);
+    if (out != null) {
+      for (int i = 0; i < out.size; i++) {
+        unlink(parents, out.nodeIds[i], out.edgeIds[i]);
+      }
+      edgeCount -= out.size;
+    }
+    Links in = parents.remove(nodeId);
+    if (in != null) {
+      for (int i = 0; i < in.size; i++) {
+        if (unlink(children, in.nodeIds[i], in.edgeIds[i])) {
+          edgeCount--;
+        }
+      }
+    }
+  }
+
+  // Returns true if the edge was not linked before.
+  private static boolean link(
+      LongHashMap<Links> map, long fromId, long toId, long edgeId, double strength) {
+    Links links = map.get(fromId);
+    if (links == null) {
+      links = new Links();
+      map.put(fromId, links);
+    }
+    int before = links.size;
+    links.add(toId, edgeId, strength);
+    return links.size > before;
+  }
+
+  private static boolean unlink(LongHashMap<Links> map, long fromId, long edgeId) {
+    Links links = map.get(fromId);
+    if (links == null || !links.remove(edgeId)) {
+      return false;
+    }
+    if (links.size == 0) {
+      map.remove(fromId);
+    }
+    return true;
+  }
+}
@@ -0,0 +1,181 @@
+package main.java.mindtree.service;
+
+import java.util.Arrays;
+
+import main.java.mindtree.domain.Mastery;
+
+/**
+ * Scores quiz results into the {@link Mastery} of a user.
+ *
+ * A quiz result is evidence for the nodes the quiz is tagged with. The mastery of a node is the
+ * weighted mean of its own evidence, weighing 1, and of the mastery of its children, the
+ * prerequisites, each weighing the strength of its edge. A prerequisite without mastery counts
+ * as 0, a node with neither evidence nor prerequisites has no mastery.
+ *
+ * A submission only recomputes the tagged nodes and the ancestors whose inputs changed, children
+ * before parents, on the {@link CompactGraph} snapshot of the index. Mastery stored for other
+ * nodes is left as it was computed, also when edges changed since.
+ */
+public class MasteryEngine {
+  private static final MasteryEngine INSTANCE = new MasteryEngine();
+
+  /**
+   * How far a result moves the evidence of a node tagged with strength 1 towards its score.
+   */
+  static final float LEARNING_RATE = 0.5f;
+
+  /**
+   * Smaller changes of mastery do not propagate to the parents.
+   */
+  static final float EPSILON = 1e-4f;
+
+  private MasteryEngine() {}
+
+  public static MasteryEngine get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Applies one quiz result.
+   *
+   * The first result for a node sets its evidence to the score, later ones move it towards the
+   * score by the learning rate times the strength of the tag.
+   *
+   * @param graph the snapshot of the knowledge graph, from {@link KnowledgeGraphIndex#compact()}
+   *     taken outside any transaction.
+   * @param mastery the mastery of the user, updated in place.
+   * @param nodeIds the nodes the quiz is tagged with.
+   * @param strengths the strengths of the tags, between 0 and 1.
+   * @param score the fraction of the quiz answered correctly.
+   * @return the ids of the nodes whose mastery changed, in ascending order.
+   */
+  public long[] submit(
+      CompactGraph graph, Mastery mastery, long[] nodeIds, double[] strengths, float score) {
+    for (int t = 0; t < nodeIds.length; t++) {
+      long nodeId = nodeIds[t];
+      float evidence = mastery.getEvidence(nodeId);
+      float rate = LEARNING_RATE * (float) Math.max(0, Math.min(1, strengths[t]));
+      evidence = Float.isNaN(evidence) ? score : evidence + rate * (score - evidence);
+      mastery.put(nodeId, evidence, mastery.getMastery(nodeId));
+    }
+
+    long[] changed = new long[16];
+    int changedCount = 0;
+
+    // Collect the ancestors of the tagged nodes and number them locally.
+    int[] local = new int[graph.nodeCount()];
+    Arrays.fill(local, -1);
+    int[] nodes = new int[16];
+    boolean[] dirty = new boolean[16];
+    int count = 0;
+    for (long nodeId : nodeIds) {
+      int node = graph.indexOf(nodeId);
+      if (node < 0) {
+        // A node without edges depends on its evidence only.
+        if (update(mastery, nodeId, mastery.getEvidence(nodeId))) {
+          changed = append(changed, changedCount++, nodeId);
+        }
+      } else if (local[node] < 0) {
+        if (count == nodes.length) {
+          nodes = Arrays.copyOf(nodes, count * 2);
+          dirty = Arrays.copyOf(dirty, count * 2);
+        }
+        local[node] = count;
+        dirty[count] = true;
+        nodes[count++] = node;
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      int node = nodes[i];
+      for (int k = graph.parentStart(node); k < graph.parentEnd(node); k++) {
+        int parent = graph.parent(k);
+        if (local[parent] < 0) {
+          if (count == nodes.length) {
+            nodes = Arrays.copyOf(nodes, count * 2);
+            dirty = Arrays.copyOf(dirty, count * 2);
+          }
+          local[parent] = count;
+          nodes[count++] = parent;
+        }
+      }
+    }
+
+    // Recompute a node once all its children among the ancestors are done.
+    int[] pending = new int[count];
+    for (int i = 0; i < count; i++) {
+      int node = nodes[i];
+      for (int k = graph.childStart(node); k < graph.childEnd(node); k++) {
+        if (local[graph.child(k)] >= 0) {
+          pending[i]++;
+        }
+      }
+    }
+    int[] queue = new int[count];
+    int head = 0;
+    int tail = 0;
+    for (int i = 0; i < count; i++) {
+      if (pending[i] == 0) {
+        queue[tail++] = i;
+      }
+    }
+    // Ancestors on a dependency cycle never become ready and keep their mastery.
+    while (head < tail) {
+      int i = queue[head++];
+      int node = nodes[i];
+      boolean nodeChanged =
+          dirty[i] && update(mastery, graph.nodeId(node), compute(mastery, graph, node));
+      if (nodeChanged) {
+        changed = append(changed, changedCount++, graph.nodeId(node));
+      }
+      for (int k = graph.parentStart(node); k < graph.parentEnd(node); k++) {
+        int j = local[graph.parent(k)];
+        if (nodeChanged) {
+          dirty[j] = true;
+        }
+        if (--pending[j] == 0) {
+          queue[tail++] = j;
+        }
+      }
+    }
+
+    long[] result = Arrays.copyOf(changed, changedCount);
+    Arrays.sort(result);
+    return result;
+  }
+
+  private static float compute(Mastery mastery, CompactGraph graph, int node) {
+    float evidence = mastery.getEvidence(graph.nodeId(node));
+    double sum = 0;
+    double weight = 0;
+    if (!Float.isNaN(evidence)) {
+      sum = evidence;
+      weight = 1;
+    }
+    for (int k = graph.childStart(node); k < graph.childEnd(node); k++) {
+      float strength = Math.max(0f, graph.childStrength(k));
+      sum += strength * mastery.getMastery(graph.nodeId(graph.child(k)));
+      weight += strength;
+    }
+    return weight > 0 ? (float) (sum / weight) : 0f;
+  }
+
+  /**
+   * @return whether the mastery moved by more than {@link #EPSILON}.
+   */
+  private static boolean update(Mastery mastery, long nodeId, float value) {
+    if (Float.isNaN(value)) {
+      value = 0f;
+    }
+    float old = mastery.getMastery(nodeId);
+    mastery.put(nodeId, mastery.getEvidence(nodeId), value);
+    return Math.abs(value - old) > EPSILON;
+  }
+
+  private static long[] append(long[] array, int size, long value) {
+    if (size == array.length) {
+      array = Arrays.copyOf(array, size * 2);
+    }
+    array[size] = value;
+    return array;
+  }
+}
@@ -0,0 +1,320 @@
+package main.java.mindtree.service;
+
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.impl.EntityMemcacheStats;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+
+import main.java.mindtree.util.LatencyHistogram;
+import main.java.mindtree.util.StripedCounter;
+
+/**
+ * The request metrics of this instance: latency, errors, payload sizes and App Engine API calls
+ * per endpoint, the calls rejected by admission control, and the entity cache hits and misses per
+ * kind.
+ *
+ * Recording only touches lock-free striped counters, so it stays cheap enough to be always on.
+ * The metrics are cumulative since the instance started and are rendered in the Prometheus text
+ * format.
+ */
+public class Metrics {
+  private static final Metrics INSTANCE = new Metrics();
+
+  /**
+   * Endpoints beyond this number are counted together, to bound the memory of odd request paths.
+   */
+  private static final int MAX_ENDPOINTS = 200;
+
+  static final String OTHER = "other";
+
+  /**
+   * The name API calls made outside of any measured request are counted under.
+   */
+  static final String UNATTRIBUTED = "unattributed";
+
+  // The Prometheus histogram buckets, in microseconds. Each is exported as the edge of the latency
+  // histogram bucket it falls in, at most 1/16 above it, so that le counts no slower request.
+  private static final long[] BUCKET_MICROS = {
+      1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000,
+      1000000, 2500000, 5000000, 10000000, 30000000, 60000000};
+
+  private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+  /**
+   * The metrics of one endpoint.
+   */
+  public static class Endpoint {
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final StripedCounter errors = new StripedCounter();
+    private final StripedCounter requestBytes = new StripedCounter();
+    private final StripedCounter responseBytes = new StripedCounter();
+    // By service, then by method, so that counting needs no string concatenation.
+    private final ConcurrentMap<String, ConcurrentMap<String, StripedCounter>> apiCalls =
+        new ConcurrentHashMap<>();
+
+    private Endpoint() {}
+
+    /**
+     * Records a finished request.
+     *
+     * @param requestBytes the size of the request body, negative when unknown.
+     */
+    public void record(long micros, int status, long requestBytes, long responseBytes) {
+      latency.record(micros);
+      if (status >= 400) {
+        errors.increment();
+      }
+      if (requestBytes > 0) {
+        this.requestBytes.add(requestBytes);
+      }
+      if (responseBytes > 0) {
+        this.responseBytes.add(responseBytes);
+      }
+    }
+
+    void recordApiCall(String service, String method) {
+      ConcurrentMap<String, StripedCounter> methods = apiCalls.get(service);
+      if (methods == null) {
+        apiCalls.putIfAbsent(service, new ConcurrentHashMap<String, StripedCounter>());
+        methods = apiCalls.get(service);
+      }
+      StripedCounter counter = methods.get(method);
+      if (counter == null) {
+        methods.putIfAbsent(method, new StripedCounter());
+        counter = methods.get(method);
+      }
+      counter.increment();
+    }
+  }
+
+  private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+  // The endpoint of the request the thread is serving.
+  private final ThreadLocal<Endpoint> current = new ThreadLocal<>();
+
+  private Metrics() {}
+
+  public static Metrics get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the metrics of the endpoint, created on first use.
+   */
+  public Endpoint endpoint(String name) {
+    Endpoint endpoint = endpoints.get(name);
+    if (endpoint == null) {
+      if (endpoints.size() >= MAX_ENDPOINTS) {
+        name = OTHER;
+      }
+      endpoints.putIfAbsent(name, new Endpoint());
+      endpoint = endpoints.get(name);
+    }
+    return endpoint;
+  }
+
+  /**
+   * Attributes the API calls of the current thread to the endpoint until {@link #end()}.
+   */
+  public void begin(Endpoint endpoint) {
+    current.set(endpoint);
+  }
+
+  public void end() {
+    current.remove();
+  }
+
+  /**
+   * Counts an App Engine API call, such as datastore_v3.Get, for the endpoint of the thread.
+   */
+  public void recordApiCall(String service, String method) {
+    Endpoint endpoint = current.get();
+    (endpoint != null ? endpoint : endpoint(UNATTRIBUTED)).recordApiCall(service, method);
+  }
+
+  /**
+   * Wraps the App Engine API delegate of the instance so that every API call is counted. Does
+   * nothing when it is already wrapped or there is no delegate, as in some tests.
+   */
+  @SuppressWarnings("unchecked")
+  public synchronized void instrumentApiProxy() {
+    ApiProxy.Delegate<ApiProxy.Environment> delegate = ApiProxy.getDelegate();
+    if (delegate != null && !(delegate instanceof CountingDelegate)) {
+      ApiProxy.setDelegate(new CountingDelegate(delegate));
+    }
+  }
+
+  /**
+   * Counts the calls passing to the wrapped delegate.
+   */
+  private static class CountingDelegate implements ApiProxy.Delegate<ApiProxy.Environment> {
+    private final ApiProxy.Delegate<ApiProxy.Environment> delegate;
+
+    CountingDelegate(ApiProxy.Delegate<ApiProxy.Environment> delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] makeSyncCall(ApiProxy.Environment environment, String service, String method,
+        byte[] request) {
+      INSTANCE.recordApiCall(service, method);
+      return delegate.makeSyncCall(environment, service, method, request);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String service,
+        String method, byte[] request, ApiProxy.ApiConfig config) {
+      INSTANCE.recordApiCall(service, method);
+      return delegate.makeAsyncCall(environment, service, method, request, config);
+    }
+
+    @Override
+    public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+      delegate.log(environment, record);
+    }
+
+    @Override
+    public void flushLogs(ApiProxy.Environment environment) {
+      delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+      return delegate.getRequestThreads(environment);
+    }
+  }
+
+  /**
+   * Writes all metrics in the Prometheus text exposition format.
+   */
+  public void writePrometheus(Writer out) throws IOException {
+    Map<String, Endpoint> sorted = new TreeMap<>(endpoints);
+    Map<String, LatencyHistogram.Snapshot> latencies = new TreeMap<>();
+    for (Map.Entry<String, Endpoint> endpoint : sorted.entrySet()) {
+      LatencyHistogram.Snapshot latency = endpoint.getValue().latency.snapshot();
+      if (latency.getCount() > 0) {
+        latencies.put(endpoint.getKey(), latency);
+      }
+    }
+
+    header(out, "mindtree_request_duration_seconds", "histogram",
+        "Latency of the requests per endpoint.");
+    for (Map.Entry<String, LatencyHistogram.Snapshot> entry : latencies.entrySet()) {
+      String method = label("method", entry.getKey());
+      LatencyHistogram.Snapshot latency = entry.getValue();
+      for (long bucket : BUCKET_MICROS) {
+        long bound = LatencyHistogram.bucketEdge(bucket);
+        sample(out, "mindtree_request_duration_seconds_bucket",
+            method + "," + label("le", seconds(bound)), latency.countAtMost(bound));
+      }
+      sample(out, "mindtree_request_duration_seconds_bucket",
+          method + "," + label("le", "+Inf"), latency.getCount());
+      sample(out, "mindtree_request_duration_seconds_sum", method,
+          seconds(latency.getSumMicros()));
+      sample(out, "mindtree_request_duration_seconds_count", method, latency.getCount());
+    }
+
+    header(out, "mindtree_request_latency_seconds", "summary",
+        "Latency quantiles of the requests per endpoint since the instance started.");
+    for (Map.Entry<String, LatencyHistogram.Snapshot> entry : latencies.entrySet()) {
+      String method = label("method", entry.getKey());
+      LatencyHistogram.Snapshot latency = entry.getValue();
+      for (double quantile : QUANTILES) {
+        sample(out, "mindtree_request_latency_seconds",
+            method + "," + label("quantile", String.valueOf(quantile)),
+            seconds(latency.quantileMicros(quantile)));
+      }
+      sample(out, "mindtree_request_latency_seconds_sum", method,
+          seconds(latency.getSumMicros()));
+      sample(out, "mindtree_request_latency_seconds_count", method, latency.getCount());
+    }
+
+    header(out, "mindtree_request_errors_total", "counter",
+        "Requests per endpoint answered with a 4xx or 5xx status.");
+    for (String name : latencies.keySet()) {
+      sample(out, "mindtree_request_errors_total", label("method", name),
+          sorted.get(name).errors.sum());
+    }
+
+    header(out, "mindtree_request_bytes_total", "counter",
+        "Request body bytes per endpoint.");
+    for (String name : latencies.keySet()) {
+      sample(out, "mindtree_request_bytes_total", label("method", name),
+          sorted.get(name).requestBytes.sum());
+    }
+
+    header(out, "mindtree_response_bytes_total", "counter",
+        "Response body bytes per endpoint.");
+    for (String name : latencies.keySet()) {
+      sample(out, "mindtree_response_bytes_total", label("method", name),
+          sorted.get(name).responseBytes.sum());
+    }
+
+    header(out, "mindtree_api_calls_total", "counter",
+        "App Engine API calls, such as datastore_v3.Get, per endpoint.");
+    for (Map.Entry<String, Endpoint> endpoint : sorted.entrySet()) {
+      Map<String, ConcurrentMap<String, StripedCounter>> services =
+          new TreeMap<>(endpoint.getValue().apiCalls);
+      for (Map.Entry<String, ConcurrentMap<String, StripedCounter>> service
+          : services.entrySet()) {
+        for (Map.Entry<String, StripedCounter> call
+            : new TreeMap<>(service.getValue()).entrySet()) {
+          sample(out, "mindtree_api_calls_total",
+              label("method", endpoint.getKey()) + ","
+                  + label("call", service.getKey() + "." + call.getKey()),
+              call.getValue().sum());
+        }
+      }
+    }
+
+    header(out, "mindtree_admission_rejected_total", "counter",
+        "Calls rejected because the user was over the budget.");
+    for (AdmissionControl.Budget budget : AdmissionControl.Budget.values()) {
+      sample(out, "mindtree_admission_rejected_total", label("budget", budget.name()),
+          AdmissionControl.get().getRejected(budget));
+    }
+
+    // Objectify counts the hits and misses of its entity cache per kind.
+    Map<String, EntityMemcacheStats.Stat> cacheStats =
+        new TreeMap<>(OfyService.factory().getMemcacheStats().getStats());
+    header(out, "mindtree_entity_cache_hits_total", "counter",
+        "Entity loads served from the Objectify memcache cache, per kind.");
+    for (Map.Entry<String, EntityMemcacheStats.Stat> stat : cacheStats.entrySet()) {
+      sample(out, "mindtree_entity_cache_hits_total", label("kind", stat.getKey()),
+          stat.getValue().getHits());
+    }
+    header(out, "mindtree_entity_cache_misses_total", "counter",
+        "Entity loads that missed the Objectify memcache cache, per kind.");
+    for (Map.Entry<String, EntityMemcacheStats.Stat> stat : cacheStats.entrySet()) {
+      sample(out, "mindtree_entity_cache_misses_total", label("kind", stat.getKey()),
+          stat.getValue().getMisses());
+    }
+  }
+
+  private static void header(Writer out, String name, String type, String help)
+      throws IOException {
+    out.write("# HELP " + name + " " + help + "\n");
+    out.write("# TYPE " + name + " " + type + "\n");
+  }
+
+  private static void sample(Writer out, String name, String labels, Object value)
+      throws IOException {
+    out.write(name + "{" + labels + "} " + value + "\n");
+  }
+
+  private static String label(String name, String value) {
+    return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+        + "\"";
+  }
+
+  private static String seconds(long micros) {
+    return String.valueOf(micros / 1e6);
+  }
+}
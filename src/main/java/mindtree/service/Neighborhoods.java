@@ -0,0 +1,236 @@
+package main.java.mindtree.service;
+
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueConstants;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.Work;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.NodeNeighborhood;
+import main.java.mindtree.domain.QuestionTag;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Keeps the {@link NodeNeighborhood} entities up to date.
+ *
+ * Endpoints that change a node, an edge or a question tag call {@link #refreshLater} for the
+ * nodes whose neighborhood shows the change. The refresh runs in a task that rebuilds the
+ * neighborhood from the datastore, so the write itself pays for one enqueue only. Tasks are named
+ * after the node and a one second window, so a burst of changes to one node costs one rebuild,
+ * which runs after the window closed and sees all of them.
+ */
+public class Neighborhoods {
+  private static final Neighborhoods INSTANCE = new Neighborhoods();
+
+  public static final String TASK_PATH = "/tasks/refreshNeighborhood";
+
+  private static final long WINDOW_MILLIS = 1000;
+
+  // Gives the queries of the rebuild time to see the writes of the window.
+  private static final long SETTLE_MILLIS = 1000;
+
+  private static final int CHUNK_SIZE = 500;
+
+  private static final Comparator<Edge> STRONGEST_FIRST = new Comparator<Edge>() {
+    @Override
+    public int compare(Edge a, Edge b) {
+      return Double.compare(b.getStrength(), a.getStrength());
+    }
+  };
+
+  private static final Comparator<QuestionTag> STRONGEST_TAG_FIRST =
+      new Comparator<QuestionTag>() {
+        @Override
+        public int compare(QuestionTag a, QuestionTag b) {
+          return Double.compare(b.getStrength(), a.getStrength());
+        }
+      };
+
+  private Neighborhoods() {}
+
+  public static Neighborhoods get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Enqueues the rebuild of the neighborhoods of the given nodes.
+   */
+  public void refreshLater(Collection<Long> nodeIds) {
+    long now = System.currentTimeMillis();
+    long window = now / WINDOW_MILLIS;
+    long countdown = (window + 1) * WINDOW_MILLIS - now + SETTLE_MILLIS;
+    List<TaskOptions> tasks = new ArrayList<>();
+    for (Long nodeId : new LinkedHashSet<>(nodeIds)) {
+      tasks.add(TaskOptions.Builder.withUrl(TASK_PATH)
+          .param("node", String.valueOf(nodeId))
+          .taskName("neighborhood-" + nodeId + "-" + window)
+          .countdownMillis(countdown));
+    }
+    Queue queue = QueueFactory.getDefaultQueue();
+    int batchSize = QueueConstants.maxTasksPerAdd();
+    for (int from = 0; from < tasks.size(); from += batchSize) {
+      try {
+        queue.add(tasks.subList(from, Math.min(from + batchSize, tasks.size())));
+      } catch (TaskAlreadyExistsException e) {
+        // The rebuild of this window is already enqueued, the other tasks were added.
+      }
+    }
+  }
+
+  /**
+   * Enqueues the rebuild of the neighborhoods of the given nodes.
+   */
+  public void refreshLater(Long... nodeIds) {
+    refreshLater(Arrays.asList(nodeIds));
+  }
+
+  /**
+   * Enqueues the rebuild of the neighborhoods of a node and of its parents and children, which
+   * show its name.
+   */
+  public void refreshWithNeighbors(long nodeId) {
+    Set<Long> nodeIds = new LinkedHashSet<>();
+    nodeIds.add(nodeId);
+    KnowledgeGraphIndex index = KnowledgeGraphIndex.get();
+    addAll(nodeIds, index.parents(nodeId));
+    addAll(nodeIds, index.children(nodeId));
+    refreshLater(nodeIds);
+  }
+
+  private static void addAll(Set<Long> nodeIds, KnowledgeGraphIndex.Neighbors neighbors) {
+    for (int i = 0; i < neighbors.size(); i++) {
+      nodeIds.add(neighbors.nodeId(i));
+    }
+  }
+
+  /**
+   * Rebuilds the neighborhood of a node from the datastore and saves it, or deletes it when the
+   * node no longer exists.
+   *
+   * @return the saved neighborhood, or a newer one saved meanwhile; null when there is no node
+   *     with the given id.
+   */
+  public NodeNeighborhood rebuild(long nodeId) {
+    long builtAt = System.currentTimeMillis();
+    Key<KnowledgeNode> nodeKey = Key.create(KnowledgeNode.class, nodeId);
+    String websafeNodeKey = nodeKey.getString();
+
+    // Rows not yet rewritten by MigrateKeysServlet still hold the node key as a string.
+    Pipeline pipeline = new Pipeline();
+    Result<KnowledgeNode> node = pipeline.add(ofy().load().key(nodeKey));
+    List<Result<List<Edge>>> childEdges = new ArrayList<>();
+    childEdges.add(pipeline.query(where(Edge.class, "parent", nodeKey.getRaw())));
+    childEdges.add(pipeline.query(where(Edge.class, "parentKey", websafeNodeKey)));
+    List<Result<List<Edge>>> parentEdges = new ArrayList<>();
+    parentEdges.add(pipeline.query(where(Edge.class, "child", nodeKey.getRaw())));
+    parentEdges.add(pipeline.query(where(Edge.class, "childKey", websafeNodeKey)));
+    List<Result<List<QuestionTag>>> tagQueries = new ArrayList<>();
+    tagQueries.add(pipeline.query(where(QuestionTag.class, "node", nodeKey.getRaw())));
+    tagQueries.add(pipeline.query(where(QuestionTag.class, "nodeKey", websafeNodeKey)));
+    pipeline.join();
+
+    final Key<NodeNeighborhood> key = Key.create(NodeNeighborhood.class, nodeId);
+    if (node.now() == null) {
+      ofy().delete().key(key).now();
+      return null;
+    }
+    List<Edge> children = distinct(childEdges);
+    List<Edge> parents = distinct(parentEdges);
+    List<QuestionTag> tags = distinct(tagQueries);
+    Collections.sort(children, STRONGEST_FIRST);
+    Collections.sort(parents, STRONGEST_FIRST);
+    Collections.sort(tags, STRONGEST_TAG_FIRST);
+
+    final NodeNeighborhood neighborhood = new NodeNeighborhood(node.now(), builtAt);
+    neighborhood.setCounts(parents.size(), children.size(), tags.size());
+    children = children.subList(0, Math.min(children.size(), NodeNeighborhood.MAX_LINKS));
+    parents = parents.subList(0, Math.min(parents.size(), NodeNeighborhood.MAX_LINKS));
+    tags = tags.subList(0, Math.min(tags.size(), NodeNeighborhood.MAX_LINKS));
+
+    // The names of the parents and children, in one batch.
+    Set<Key<KnowledgeNode>> neighborKeys = new LinkedHashSet<>();
+    for (Edge edge : children) {
+      if (edge.getChild() != null) {
+        neighborKeys.add(edge.getChild().getKey());
+      }
+    }
+    for (Edge edge : parents) {
+      if (edge.getParent() != null) {
+        neighborKeys.add(edge.getParent().getKey());
+      }
+    }
+    Map<Key<KnowledgeNode>, KnowledgeNode> neighbors = ofy().load().keys(neighborKeys);
+    for (Edge edge : children) {
+      addLink(neighborhood.getChildren(), edge, edge.getChild() == null
+          ? null : neighbors.get(edge.getChild().getKey()));
+    }
+    for (Edge edge : parents) {
+      addLink(neighborhood.getParents(), edge, edge.getParent() == null
+          ? null : neighbors.get(edge.getParent().getKey()));
+    }
+    for (QuestionTag tag : tags) {
+      if (tag.getQuestion() != null) {
+        neighborhood.getTags().add(new NodeNeighborhood.Tag(
+            tag.getId(), tag.getQuestion().getId(), tag.getStrength()));
+      }
+    }
+
+    return ofy().transact(new Work<NodeNeighborhood>() {
+      @Override
+      public NodeNeighborhood run() {
+        NodeNeighborhood stored = ofy().load().key(key).now();
+        if (stored != null && stored.getBuiltAt() > neighborhood.getBuiltAt()) {
+          return stored;
+        }
+        ofy().save().entity(neighborhood).now();
+        return neighborhood;
+      }
+    });
+  }
+
+  private static <T> Iterator<T> where(Class<T> entityClass, String property, Object value) {
+    return ofy().load().type(entityClass)
+        .filter(new FilterPredicate(property, FilterOperator.EQUAL, value))
+        .chunk(CHUNK_SIZE)
+        .iterator();
+  }
+
+  // An edge or tag may match both its typed and its legacy query.
+  private static <T> List<T> distinct(List<Result<List<T>>> queries) {
+    Map<Key<T>, T> items = new LinkedHashMap<>();
+    for (Result<List<T>> query : queries) {
+      for (T item : query.now()) {
+        items.put(Key.create(item), item);
+      }
+    }
+    return new ArrayList<>(items.values());
+  }
+
+  // Edges to a node deleted meanwhile are left out, the delete refreshes this node again.
+  private static void addLink(List<NodeNeighborhood.Link> links, Edge edge, KnowledgeNode other) {
+    if (other != null) {
+      links.add(new NodeNeighborhood.Link(
+          other.getId(), edge.getId(), other.getName(), edge.getStrength()));
+    }
+  }
+}
@@ -0,0 +1,497 @@
+package main.java.mindtree.service;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.util.LongHashMap;
+
+import static main.java.mindtree.service.OfyService.factory;
+
+/**
+ * Per-instance inverted index over the names and descriptions of the knowledge nodes, for
+ * typeahead search.
+ *
+ * Texts are split into lower case words without accents. The words are kept in a sorted map, so
+ * the words starting with a prefix are one range of it. Like the {@link KnowledgeGraphIndex}, the
+ * index is warmed by the warmup request or on first use, kept up to date by the API methods that
+ * write nodes, and rebuilt by the refresh cron after {@link #MAX_AGE_MILLIS}, or by a search after
+ * {@link #MAX_STALE_MILLIS}, to pick up writes made through other instances.
+ */
+public class NodeSearchIndex {
+  private static final Logger LOG = Logger.getLogger(NodeSearchIndex.class.getName());
+
+  /**
+   * How long a warmed index is served before {@link #refresh} rebuilds it from the datastore.
+   */
+  static final long MAX_AGE_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  /**
+   * How long a warmed index is served before a search rebuilds it, for instances the refresh cron
+   * has not reached.
+   */
+  static final long MAX_STALE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private static final int WARM_CHUNK_SIZE = 1000;
+
+  private static final byte IN_NAME = 1;
+  private static final byte IN_DESCRIPTION = 2;
+
+  private static final float NAME_WEIGHT = 3f;
+  private static final float DESCRIPTION_WEIGHT = 1f;
+  private static final float PREFIX_FACTOR = 0.6f;
+  private static final float NAME_PREFIX_BONUS = 5f;
+
+  private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+  private static final NodeSearchIndex INSTANCE = new NodeSearchIndex();
+
+  /**
+   * One node found by a search.
+   */
+  public static class Hit {
+    private final long nodeId;
+    private final String name;
+    private final float score;
+
+    private Hit(long nodeId, String name, float score) {
+      this.nodeId = nodeId;
+      this.name = name;
+      this.score = score;
+    }
+
+    public long getNodeId() {
+      return nodeId;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public float getScore() {
+      return score;
+    }
+  }
+
+  /**
+   * The indexed text of one node.
+   */
+  private static class Document {
+    private final String name;
+    private final String normalizedName;
+    private final String[] words;
+
+    Document(String name, String normalizedName, String[] words) {
+      this.name = name;
+      this.normalizedName = normalizedName;
+      this.words = words;
+    }
+  }
+
+  /**
+   * The nodes containing one word, with the fields the word occurs in.
+   */
+  private static class Postings {
+    private long[] nodeIds = new long[2];
+    private byte[] fields = new byte[2];
+    private int size;
+
+    void add(long nodeId, byte field) {
+      if (size == nodeIds.length) {
+        nodeIds = Arrays.copyOf(nodeIds, size * 2);
+        fields = Arrays.copyOf(fields, size * 2);
+      }
+      nodeIds[size] = nodeId;
+      fields[size] = field;
+      size++;
+    }
+
+    void remove(long nodeId) {
+      for (int i = 0; i < size; i++) {
+        if (nodeIds[i] == nodeId) {
+          size--;
+          nodeIds[i] = nodeIds[size];
+          fields[i] = fields[size];
+          return;
+        }
+      }
+    }
+  }
+
+  /**
+   * A node matching the words of a query seen so far.
+   */
+  private static class Candidate {
+    private final long nodeId;
+    private float score;
+    private float wordScore;
+    private int matchedWords;
+    private Document document;
+
+    Candidate(long nodeId) {
+      this.nodeId = nodeId;
+    }
+  }
+
+  /**
+   * Best first: higher score, then shorter name, then smaller id.
+   */
+  private static final Comparator<Candidate> RANKING = new Comparator<Candidate>() {
+    @Override
+    public int compare(Candidate a, Candidate b) {
+      if (a.score != b.score) {
+        return a.score > b.score ? -1 : 1;
+      }
+      int lengthA = a.document.name == null ? 0 : a.document.name.length();
+      int lengthB = b.document.name == null ? 0 : b.document.name.length();
+      if (lengthA != lengthB) {
+        return lengthA < lengthB ? -1 : 1;
+      }
+      return Long.compare(a.nodeId, b.nodeId);
+    }
+  };
+
+  /**
+   * A write seen while the index is rebuilt, replayed onto the rebuilt index.
+   */
+  private static class PendingOp {
+    private final long nodeId;
+    private final String name;
+    private final String description;
+    private final boolean remove;
+
+    PendingOp(long nodeId, String name, String description, boolean remove) {
+      this.nodeId = nodeId;
+      this.name = name;
+      this.description = description;
+      this.remove = remove;
+    }
+  }
+
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final ReentrantLock rebuildLock = new ReentrantLock();
+
+  // Guarded by lock.
+  private LongHashMap<Document> documents = new LongHashMap<>();
+  private TreeMap<String, Postings> words = new TreeMap<>();
+  private List<PendingOp> pendingOps;
+
+  private volatile long warmedAt;
+
+  private NodeSearchIndex() {}
+
+  public static NodeSearchIndex get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Splits a text into lower case words without accents.
+   *
+   * @return the distinct words in order of first occurrence.
+   */
+  static List<String> tokenize(String text) {
+    if (text == null || text.isEmpty()) {
+      return Collections.emptyList();
+    }
+    Set<String> tokens = new LinkedHashSet<>();
+    String normalized = normalize(text);
+    int start = -1;
+    for (int i = 0; i <= normalized.length(); i++) {
+      boolean wordChar = i < normalized.length()
+          && Character.isLetterOrDigit(normalized.charAt(i));
+      if (wordChar && start < 0) {
+        start = i;
+      } else if (!wordChar && start >= 0) {
+        tokens.add(normalized.substring(start, i));
+        start = -1;
+      }
+    }
+    return new ArrayList<>(tokens);
+  }
+
+  private static String normalize(String text) {
+    String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+    return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Indexes a created or updated node.
+   */
+  public void put(KnowledgeNode node) {
+    apply(new PendingOp(node.getId(), node.getName(), node.getDescription(), false));
+  }
+
+  /**
+   * Removes a deleted node.
+   */
+  public void remove(long nodeId) {
+    apply(new PendingOp(nodeId, null, null, true));
+  }
+
+  /**
+   * Finds the nodes containing every word of the query, each word matching a whole word or the
+   * start of one, so that the last word can still be typed.
+   *
+   * A word found in the name weighs more than one found in the description only, and a whole
+   * word more than a prefix. Nodes whose name starts with the whole query get a bonus.
+   *
+   * @param query the text typed so far.
+   * @param limit the maximum number of hits.
+   * @return the best hits, best first.
+   */
+  public List<Hit> search(String query, int limit) {
+    List<String> queryWords = tokenize(query);
+    if (queryWords.isEmpty() || limit < 1) {
+      return Collections.emptyList();
+    }
+    ensureWarm();
+    lock.readLock().lock();
+    try {
+      // Start from the rarest word to keep the candidates few.
+      final List<NavigableMap<String, Postings>> ranges = new ArrayList<>();
+      final int[] sizes = new int[queryWords.size()];
+      for (int w = 0; w < queryWords.size(); w++) {
+        String word = queryWords.get(w);
+        NavigableMap<String, Postings> range =
+            words.subMap(word, true, word + Character.MAX_VALUE, false);
+        ranges.add(range);
+        for (Postings postings : range.values()) {
+          sizes[w] += postings.size;
+        }
+      }
+      Integer[] order = new Integer[queryWords.size()];
+      for (int w = 0; w < order.length; w++) {
+        order[w] = w;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        @Override
+        public int compare(Integer a, Integer b) {
+          return Integer.compare(sizes[a], sizes[b]);
+        }
+      });
+
+      LongHashMap<Candidate> candidates = new LongHashMap<>();
+      for (int step = 0; step < order.length; step++) {
+        String word = queryWords.get(order[step]);
+        for (Map.Entry<String, Postings> entry : ranges.get(order[step]).entrySet()) {
+          float match = entry.getKey().length() == word.length() ? 1f : PREFIX_FACTOR;
+          Postings postings = entry.getValue();
+          for (int i = 0; i < postings.size; i++) {
+            long nodeId = postings.nodeIds[i];
+            Candidate candidate = candidates.get(nodeId);
+            if (candidate == null) {
+              if (step > 0) {
+                continue;
+              }
+              candidate = new Candidate(nodeId);
+              candidates.put(nodeId, candidate);
+            } else if (candidate.matchedWords < step) {
+              continue;
+            }
+            float wordScore = match
+                * ((postings.fields[i] & IN_NAME) != 0 ? NAME_WEIGHT : DESCRIPTION_WEIGHT);
+            if (candidate.matchedWords == step) {
+              // First term matching this word.
+              candidate.matchedWords = step + 1;
+              candidate.wordScore = wordScore;
+              candidate.score += wordScore;
+            } else if (wordScore > candidate.wordScore) {
+              candidate.score += wordScore - candidate.wordScore;
+              candidate.wordScore = wordScore;
+            }
+          }
+        }
+      }
+
+      String normalizedQuery = normalize(query.trim());
+      PriorityQueue<Candidate> best =
+          new PriorityQueue<>(limit, Collections.reverseOrder(RANKING));
+      for (long nodeId : candidates.keys()) {
+        Candidate candidate = candidates.get(nodeId);
+        if (candidate.matchedWords < order.length) {
+          continue;
+        }
+        candidate.document = documents.get(nodeId);
+        if (candidate.document.normalizedName.startsWith(normalizedQuery)) {
+          candidate.score += NAME_PREFIX_BONUS;
+        }
+        best.add(candidate);
+        if (best.size() > limit) {
+          best.poll();
+        }
+      }
+      List<Candidate> ranked = new ArrayList<>(best);
+      Collections.sort(ranked, RANKING);
+      List<Hit> hits = new ArrayList<>(ranked.size());
+      for (Candidate candidate : ranked) {
+        hits.add(new Hit(candidate.nodeId, candidate.document.name, candidate.score));
+      }
+      return hits;
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Warms the index if it was never built, blocking searches until the first build finishes. An
+   * index older than {@link #MAX_STALE_MILLIS}, or invalidated, is rebuilt by one request while
+   * the others keep searching the stale one.
+   */
+  public void ensureWarm() {
+    rebuildIfOlder(MAX_STALE_MILLIS);
+  }
+
+  /**
+   * Rebuilds the index if it is older than {@link #MAX_AGE_MILLIS}, run from the warmup and cron
+   * requests so that user requests do not pay for the scan.
+   */
+  public void refresh() {
+    rebuildIfOlder(MAX_AGE_MILLIS);
+  }
+
+  private void rebuildIfOlder(long maxAgeMillis) {
+    long age = System.currentTimeMillis() - warmedAt;
+    if (warmedAt != 0 && age < maxAgeMillis) {
+      return;
+    }
+    if (warmedAt == 0) {
+      rebuildLock.lock();
+    } else if (!rebuildLock.tryLock()) {
+      return;
+    }
+    try {
+      if (warmedAt == 0 || System.currentTimeMillis() - warmedAt >= maxAgeMillis) {
+        rebuild();
+      }
+    } finally {
+      rebuildLock.unlock();
+    }
+  }
+
+  /**
+   * Forces a rebuild on the next search.
+   */
+  public void invalidate() {
+    if (warmedAt != 0) {
+      warmedAt = 1;
+    }
+  }
+
+  private void rebuild() {
+    long start = System.currentTimeMillis();
+    lock.writeLock().lock();
+    try {
+      pendingOps = new ArrayList<>();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    LongHashMap<Document> newDocuments = new LongHashMap<>();
+    TreeMap<String, Postings> newWords = new TreeMap<>();
+    try {
+      // A session of its own and no memcache, so that the scanned nodes stay in neither. The
+      // description is not indexed, so the nodes are loaded whole.
+      Iterable<KnowledgeNode> nodes = factory().begin().cache(false).load()
+          .type(KnowledgeNode.class)
+          .chunk(WARM_CHUNK_SIZE);
+      for (KnowledgeNode node : nodes) {
+        index(newDocuments, newWords, node.getId(), node.getName(), node.getDescription());
+      }
+    } catch (RuntimeException e) {
+      lock.writeLock().lock();
+      try {
+        pendingOps = null;
+      } finally {
+        lock.writeLock().unlock();
+      }
+      LOG.log(Level.WARNING, "Failed to warm the knowledge node search index", e);
+      throw e;
+    }
+    lock.writeLock().lock();
+    try {
+      documents = newDocuments;
+      words = newWords;
+      for (PendingOp op : pendingOps) {
+        applyLocked(op);
+      }
+      pendingOps = null;
+      warmedAt = System.currentTimeMillis();
+    } finally {
+      lock.writeLock().unlock();
+    }
+    LOG.info("Indexed " + newDocuments.size() + " knowledge nodes for search in "
+        + (System.currentTimeMillis() - start) + " ms");
+  }
+
+  private void apply(PendingOp op) {
+    lock.writeLock().lock();
+    try {
+      if (pendingOps != null) {
+        pendingOps.add(op);
+      }
+      if (warmedAt != 0) {
+        applyLocked(op);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  private void applyLocked(PendingOp op) {
+    unindex(documents, words, op.nodeId);
+    if (!op.remove) {
+      index(documents, words, op.nodeId, op.name, op.description);
+    }
+  }
+
+  private static void index(LongHashMap<Document> documents, TreeMap<String, Postings> index,
+      long nodeId, String name, String description) {
+    unindex(documents, index, nodeId);
+    List<String> nameWords = tokenize(name);
+    Set<String> allWords = new LinkedHashSet<>(nameWords);
+    allWords.addAll(tokenize(description));
+    for (String word : allWords) {
+      Postings postings = index.get(word);
+      if (postings == null) {
+        postings = new Postings();
+        index.put(word, postings);
+      }
+      postings.add(nodeId, nameWords.contains(word) ? IN_NAME : IN_DESCRIPTION);
+    }
+    documents.put(nodeId, new Document(name, name == null ? "" : normalize(name),
+        allWords.toArray(new String[allWords.size()])));
+  }
+
+  private static void unindex(
+      LongHashMap<Document> documents, TreeMap<String, Postings> index, long nodeId) {
+    Document document = documents.remove(nodeId);
+    if (document == null) {
+      return;
+    }
+    for (String word : document.words) {
+      Postings postings = index.get(word);
+      if (postings != null) {
+        postings.remove(nodeId);
+        if (postings.size == 0) {
+          index.remove(word);
+        }
+      }
+    }
+  }
+}
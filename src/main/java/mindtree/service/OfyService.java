@@ -1,37 +1,115 @@
 package main.java.mindtree.service;
 
+import com.googlecode.objectify.KeyRange;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import main.java.mindtree.domain.AppEngineUser;
+import main.java.mindtree.domain.AppliedCounts;
+import main.java.mindtree.domain.AppliedStrengths;
+import main.java.mindtree.domain.Archive;
+import main.java.mindtree.domain.CompactionJob;
+import main.java.mindtree.domain.CounterShard;
 import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.ImportJob;
 import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.Mastery;
+import main.java.mindtree.domain.MindTreeEntity;
+import main.java.mindtree.domain.NodeNeighborhood;
 import main.java.mindtree.domain.Profile;
 import main.java.mindtree.domain.Quiz;
 import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.domain.RecountJob;
+import main.java.mindtree.domain.Tombstone;
+import main.java.mindtree.form.EdgeForm;
+import main.java.mindtree.form.KnowledgeNodeForm;
+import main.java.mindtree.form.MindTreeForm;
+import main.java.mindtree.form.QuestionTagForm;
+import main.java.mindtree.form.QuizForm;
 
 /**
  * Custom Objectify Service that this application should use.
  */
 public class OfyService {
+    /**
+     * The factories creating MindTreeEntity objects from client forms, by entity class.
+     */
+    private static final ConcurrentMap<Class<?>, MindTreeEntity.Factory<?, ?>> ENTITY_FACTORIES =
+        new ConcurrentHashMap<>();
+
+    /**
+     * The (Long, String, form) constructors of entity classes without a registered factory.
+     */
+    private static final ConcurrentMap<Class<?>, MethodHandle> ENTITY_CONSTRUCTORS =
+        new ConcurrentHashMap<>();
+
     /**
      * This static block ensure the entity registration.
      */
     static {
+        factory().register(AppEngineUser.class);
+        factory().register(AppliedCounts.class);
+        factory().register(AppliedStrengths.class);
+        factory().register(Archive.class);
+        factory().register(CompactionJob.class);
+        factory().register(CounterShard.class);
         factory().register(Edge.class);
+        factory().register(ImportJob.class);
         factory().register(KnowledgeNode.class);
+        factory().register(Mastery.class);
+        factory().register(NodeNeighborhood.class);
         factory().register(Profile.class);
         factory().register(Quiz.class);
         factory().register(QuestionTag.class);
+        factory().register(RecountJob.class);
+        factory().register(Tombstone.class);
+
+        registerEntityFactory(Edge.class, new MindTreeEntity.Factory<Edge, EdgeForm>() {
+            @Override
+            public Edge create(Long id, String createdBy, EdgeForm form) {
+                return new Edge(id, createdBy, form);
+            }
+        });
+        registerEntityFactory(KnowledgeNode.class,
+            new MindTreeEntity.Factory<KnowledgeNode, KnowledgeNodeForm>() {
+                @Override
+                public KnowledgeNode create(Long id, String createdBy, KnowledgeNodeForm form) {
+                    return new KnowledgeNode(id, createdBy, form);
+                }
+            });
+        registerEntityFactory(Quiz.class, new MindTreeEntity.Factory<Quiz, QuizForm>() {
+            @Override
+            public Quiz create(Long id, String createdBy, QuizForm form) {
+                return new Quiz(id, createdBy, form);
+            }
+        });
+        registerEntityFactory(QuestionTag.class,
+            new MindTreeEntity.Factory<QuestionTag, QuestionTagForm>() {
+                @Override
+                public QuestionTag create(Long id, String createdBy, QuestionTagForm form) {
+                    return new QuestionTag(id, createdBy, form);
+                }
+            });
     }
 
     /**
      * Use this static method for getting the Objectify service object in order to make sure the
-     * above static block is executed before using Objectify.
+     * above static block is executed before using Objectify. While the request is counted by
+     * {@link DatastoreOps}, the returned object counts the operations issued through it; other
+     * requests get the Objectify of the thread itself.
      * @return Objectify service object.
      */
     public static Objectify ofy() {
-        return ObjectifyService.ofy();
+        DatastoreOps ops = DatastoreOps.current();
+        return ops == null ? ObjectifyService.ofy() : ops.instrument(ObjectifyService.ofy());
     }
 
     /**
@@ -41,4 +119,79 @@ public class OfyService {
     public static ObjectifyFactory factory() {
         return ObjectifyService.factory();
     }
+
+    /**
+     * Reserves the ids of new entities. Entities of every kind take their ids from the one
+     * MindTreeEntity range, so that ids reserved one at a time and in batches never collide.
+     * @param count the number of ids.
+     * @return the reserved ids, as keys of the MindTreeEntity range.
+     */
+    public static KeyRange<?> allocateIds(long count) {
+        return factory().allocateIds(MindTreeEntity.class, count);
+    }
+
+    /**
+     * Registers the factory used by {@link #createEntity} for the given entity class.
+     * @param entityClass the entity class.
+     * @param entityFactory the factory creating instances of the class.
+     */
+    public static <E extends MindTreeEntity<E, F>, F> void registerEntityFactory(
+            Class<E> entityClass, MindTreeEntity.Factory<E, F> entityFactory) {
+        ENTITY_FACTORIES.put(entityClass, entityFactory);
+    }
+
+    /**
+     * Creates a MindTreeEntity from a client form through the registered factory. Classes without
+     * a factory fall back to their (Long, String, form) constructor, resolved once and cached.
+     * @param entityClass the entity class.
+     * @param id the id of the entity.
+     * @param createdBy the user id who creates the entity.
+     * @param form the client side form.
+     * @return the new entity, not saved yet.
+     */
+    @SuppressWarnings("unchecked")
+    public static <E extends MindTreeEntity<?, ?>> E createEntity(
+            Class<E> entityClass, Long id, String createdBy, MindTreeForm form) {
+        MindTreeEntity.Factory<?, ?> entityFactory = ENTITY_FACTORIES.get(entityClass);
+        if (entityFactory != null) {
+            return entityClass.cast(
+                ((MindTreeEntity.Factory<?, Object>) entityFactory).create(id, createdBy, form));
+        }
+        try {
+            return entityClass.cast(entityConstructor(entityClass).invoke(id, createdBy, form));
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    private static MethodHandle entityConstructor(Class<?> entityClass) {
+        MethodHandle handle = ENTITY_CONSTRUCTORS.get(entityClass);
+        if (handle == null) {
+            for (Constructor<?> constructor : entityClass.getDeclaredConstructors()) {
+                Class<?>[] parameterTypes = constructor.getParameterTypes();
+                if (parameterTypes.length == 3
+                        && parameterTypes[0] == Long.class
+                        && parameterTypes[1] == String.class
+                        && MindTreeForm.class.isAssignableFrom(parameterTypes[2])) {
+                    try {
+                        constructor.setAccessible(true);
+                        handle = MethodHandles.lookup().unreflectConstructor(constructor)
+                            .asType(MethodType.methodType(
+                                Object.class, Long.class, String.class, Object.class));
+                    } catch (IllegalAccessException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    break;
+                }
+            }
+            if (handle == null) {
+                throw new IllegalArgumentException(
+                    "No (Long, String, form) constructor in " + entityClass.getName());
+            }
+            ENTITY_CONSTRUCTORS.putIfAbsent(entityClass, handle);
+        }
+        return handle;
+    }
 }
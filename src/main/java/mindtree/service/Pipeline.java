@@ -0,0 +1,102 @@
+package main.java.mindtree.service;
+
+import com.googlecode.objectify.Result;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * The datastore and memcache operations of one request that are in flight at the same time.
+ *
+ * Objectify starts a load, save, delete or query as soon as it is issued and only blocks when
+ * its result is read. An endpoint issues every operation that does not depend on another one
+ * through a pipeline first, reads the results it needs, and joins the pipeline before it
+ * returns, so its latency is that of its longest chain of dependent operations instead of the
+ * sum of all of them.
+ *
+ * Not thread safe, a pipeline belongs to one request.
+ */
+public class Pipeline {
+  private final List<Result<?>> pending = new ArrayList<>();
+
+  /**
+   * @param result an operation already issued.
+   * @return the same result.
+   */
+  public <T> Result<T> add(Result<T> result) {
+    pending.add(result);
+    return result;
+  }
+
+  /**
+   * Tracks a query. The query must already be running, which creating its iterator does.
+   *
+   * @param iterator the iterator of the query.
+   * @return the results of the query, read when the returned result is first asked for.
+   */
+  public <T> Result<List<T>> query(final Iterator<T> iterator) {
+    return add(new Result<List<T>>() {
+      private List<T> items;
+
+      @Override
+      public List<T> now() {
+        if (items == null) {
+          List<T> drained = new ArrayList<>();
+          while (iterator.hasNext()) {
+            drained.add(iterator.next());
+          }
+          items = drained;
+        }
+        return items;
+      }
+    });
+  }
+
+  /**
+   * Tracks an asynchronous memcache call.
+   *
+   * @param future the future of the call.
+   * @return the value of the call, null when it failed.
+   */
+  public <T> Result<T> future(final Future<T> future) {
+    return add(new Result<T>() {
+      @Override
+      public T now() {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        } catch (ExecutionException e) {
+          // Memcache is best effort, its error handler already logged the failure.
+          return null;
+        }
+      }
+    });
+  }
+
+  /**
+   * Waits for every operation of the pipeline, also after one of them failed.
+   *
+   * @throws RuntimeException the failure of the first operation that failed.
+   */
+  public void join() {
+    RuntimeException failure = null;
+    for (Result<?> result : pending) {
+      try {
+        result.now();
+      } catch (RuntimeException e) {
+        if (failure == null) {
+          failure = e;
+        }
+      }
+    }
+    pending.clear();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package main.java.mindtree.service;
+
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Memcache backed cache of list query results.
+ *
+ * A page is cached as the keys of its entities plus its next page token, the entities themselves
+ * are then batch loaded through the Objectify entity cache. Cache keys embed a generation counter
+ * per entity kind, which every write to the kind bumps, so a write makes all cached pages of the
+ * kind unreachable at once instead of deleting them one by one.
+ *
+ * List queries are eventually consistent, so a query shortly after a write may still miss it.
+ * Pages of a kind written less than {@link #SETTLE_MILLIS} ago are therefore served but not
+ * cached, or the stale page would outlive the write for the whole {@link #PAGE_EXPIRATION}.
+ */
+public class QueryCache {
+  private static final QueryCache INSTANCE = new QueryCache();
+
+  private static final String NAMESPACE = "QueryCache";
+
+  /**
+   * Bounds how long unreachable pages occupy memcache.
+   */
+  private static final Expiration PAGE_EXPIRATION = Expiration.byDeltaSeconds(10 * 60);
+
+  /**
+   * How long after a write queries of the kind may still miss it.
+   */
+  static final int SETTLE_MILLIS = 10 * 1000;
+
+  /**
+   * The keys and next page token of one cached page.
+   */
+  public static class Page implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<Key> keys;
+
+    private final String nextPageToken;
+
+    public Page(List<Key> keys, String nextPageToken) {
+      this.keys = new ArrayList<>(keys);
+      this.nextPageToken = nextPageToken;
+    }
+
+    public List<Key> getKeys() {
+      return keys;
+    }
+
+    public String getNextPageToken() {
+      return nextPageToken;
+    }
+  }
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+  private final AsyncMemcacheService asyncMemcache =
+      MemcacheServiceFactory.getAsyncMemcacheService(NAMESPACE);
+
+  private QueryCache() {}
+
+  public static QueryCache get() {
+    return INSTANCE;
+  }
+
+  /**
+   * Builds the cache key of one page of a list endpoint.
+   *
+   * @param kind the entity class the endpoint lists.
+   * @param endpoint the name of the endpoint.
+   * @param params every parameter that changes the result, including the page size and token.
+   * @return the cache key, valid until the next write to the kind.
+   */
+  public String pageKey(Class<?> kind, String endpoint, Object... params) {
+    StringBuilder key = new StringBuilder(endpoint)
+        .append(':').append(generation(kind));
+    for (Object param : params) {
+      key.append(':').append(param);
+    }
+    return key.toString();
+  }
+
+  /**
+   * @return the cached page, null on a miss.
+   */
+  public Page getPage(String pageKey) {
+    return (Page) memcache.get(pageKey);
+  }
+
+  /**
+   * Tells whether a query of the kind started now sees every write, which is when the kind was
+   * not written within the last {@link #SETTLE_MILLIS}. Ask before running the query.
+   *
+   * @return true when a page of the kind read now may be cached.
+   */
+  public boolean isSettled(Class<?> kind) {
+    return !memcache.contains(unsettledKey(kind));
+  }
+
+  /**
+   * Caches a page without waiting for memcache.
+   *
+   * @return the future of the put, to join before the request ends.
+   */
+  public Future<Void> putPage(String pageKey, Page page) {
+    return asyncMemcache.put(pageKey, page, PAGE_EXPIRATION);
+  }
+
+  /**
+   * Drops every cached page listing the given kinds, and keeps pages of them from being cached
+   * until the write settles. Call it after the write has completed, so that no page read before
+   * the write is cached under the new generation.
+   *
+   * @param kinds the entity classes that were written.
+   */
+  public void invalidate(Class<?>... kinds) {
+    List<String> generationKeys = new ArrayList<>(kinds.length);
+    Map<String, Boolean> unsettledKeys = new HashMap<>();
+    for (Class<?> kind : kinds) {
+      generationKeys.add(generationKey(kind));
+      unsettledKeys.put(unsettledKey(kind), Boolean.TRUE);
+    }
+    // The marker is set first, so no query started after the bump caches its page before the
+    // marker is seen.
+    memcache.putAll(unsettledKeys, Expiration.byDeltaMillis(SETTLE_MILLIS));
+    // One call for all kinds. Starting from the clock keeps an evicted counter from reusing an
+    // old generation.
+    memcache.incrementAll(generationKeys, 1, System.currentTimeMillis());
+  }
+
+  private long generation(Class<?> kind) {
+    String generationKey = generationKey(kind);
+    Long generation = (Long) memcache.get(generationKey);
+    if (generation == null) {
+      memcache.put(generationKey, System.currentTimeMillis(), null,
+          MemcacheService.SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+      generation = (Long) memcache.get(generationKey);
+    }
+    // Memcache is down, never share pages.
+    return generation == null ? System.nanoTime() : generation;
+  }
+
+  private static String generationKey(Class<?> kind) {
+    return "generation:" + com.googlecode.objectify.Key.getKind(kind);
+  }
+
+  private static String unsettledKey(Class<?> kind) {
+    return "unsettled:" + com.googlecode.objectify.Key.getKind(kind);
+  }
+}
@@ -0,0 +1,91 @@
+package main.java.mindtree.service;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import main.java.mindtree.domain.AppEngineUser;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Resolves the App Engine userId of users whose User object carries none, as the ones of
+ * Android clients.
+ *
+ * The datastore fills in the userId when it stores a User, so the first sight of an email saves
+ * an AppEngineUser and reads it back. The resolved ids are then kept in an in-process LRU in
+ * front of memcache, and the AppEngineUser entity is only read again when both miss, so a known
+ * user costs no datastore write.
+ */
+public class UserIdCache {
+  private static final UserIdCache INSTANCE = new UserIdCache();
+
+  private static final String NAMESPACE = "UserId";
+
+  private static final int MAX_LOCAL_ENTRIES = 10000;
+
+  private final MemcacheService memcache = MemcacheServiceFactory.getMemcacheService(NAMESPACE);
+
+  // Guarded by itself.
+  private final Map<String, String> local =
+      new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+          return size() > MAX_LOCAL_ENTRIES;
+        }
+      };
+
+  private UserIdCache() {}
+
+  public static UserIdCache get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @param user A User object injected by the cloud endpoints.
+   * @return the App Engine userId for the user.
+   */
+  public String userId(User user) {
+    String userId = user.getUserId();
+    if (userId != null) {
+      return userId;
+    }
+    String email = user.getEmail();
+    synchronized (local) {
+      userId = local.get(email);
+    }
+    if (userId != null) {
+      return userId;
+    }
+    userId = (String) memcache.get(email);
+    if (userId == null) {
+      userId = resolve(user);
+      if (userId == null) {
+        // Not a Google account, nothing to cache.
+        return null;
+      }
+      memcache.put(email, userId);
+    }
+    synchronized (local) {
+      local.put(email, userId);
+    }
+    return userId;
+  }
+
+  private static String resolve(User user) {
+    Key<AppEngineUser> key = Key.create(AppEngineUser.class, user.getEmail());
+    // Begin new session for not using session cache.
+    Objectify objectify = ofy().factory().begin();
+    AppEngineUser savedUser = objectify.load().key(key).now();
+    if (savedUser == null || savedUser.getUser().getUserId() == null) {
+      ofy().save().entity(new AppEngineUser(user)).now();
+      savedUser = ofy().factory().begin().load().key(key).now();
+    }
+    return savedUser.getUser().getUserId();
+  }
+}
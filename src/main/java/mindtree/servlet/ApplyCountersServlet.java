@@ -0,0 +1,66 @@
+package main.java.mindtree.servlet;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.service.Counters;
+import main.java.mindtree.util.RequestDeadline;
+
+/**
+ * Adds the counter deltas given by the kind, counter and delta parameters, run from the tasks
+ * enqueued by {@link Counters#applyLater}. A chunk of deltas that fails fails the task, and the
+ * retried task adds the chunks not yet added.
+ *
+ * The cron GET on /crons/purgeAppliedCounts purges the records of the chunks added by tasks that
+ * can no longer be retried.
+ */
+public class ApplyCountersServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(ApplyCountersServlet.class.getName());
+
+  /**
+   * Stop purging when less time than this is left before the request deadline.
+   */
+  private static final long DEADLINE_MARGIN_MILLIS = 15000;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    int purged = 0;
+    int batch;
+    do {
+      batch = Counters.get().purgeApplied();
+      purged += batch;
+    } while (batch > 0 && RequestDeadline.remainingMillis() > DEADLINE_MARGIN_MILLIS);
+    LOG.info("Purged " + purged + " applied counter chunks");
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    String batchId = request.getParameter("batch");
+    Counters.Deltas deltas;
+    try {
+      deltas = Counters.Deltas.parse(request.getParameterValues("kind"),
+          request.getParameterValues("counter"), request.getParameterValues("delta"));
+    } catch (IllegalArgumentException e) {
+      // Retrying would not help, so the task succeeds.
+      LOG.warning("Bad counter deltas: " + e.getMessage());
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+    if (batchId == null) {
+      LOG.warning("Counter deltas without a batch id");
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+    Counters.get().apply(batchId, deltas);
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -0,0 +1,60 @@
+package main.java.mindtree.servlet;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.service.EdgeStrengths;
+import main.java.mindtree.util.RequestDeadline;
+
+/**
+ * Adds the strength nudges of the window given by the window parameter to their edges, run from
+ * the flush tasks enqueued by {@link EdgeStrengths#nudge}. A group of edges that fails fails the
+ * task, and the retried task applies the edges not yet applied.
+ *
+ * The cron GET on /crons/purgeAppliedStrengths purges the records of the edges applied by tasks
+ * that can no longer be retried.
+ */
+public class ApplyEdgeStrengthsServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(ApplyEdgeStrengthsServlet.class.getName());
+
+  /**
+   * Stop purging when less time than this is left before the request deadline.
+   */
+  private static final long DEADLINE_MARGIN_MILLIS = 15000;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    int purged = 0;
+    int batch;
+    do {
+      batch = EdgeStrengths.get().purgeApplied();
+      purged += batch;
+    } while (batch > 0 && RequestDeadline.remainingMillis() > DEADLINE_MARGIN_MILLIS);
+    LOG.info("Purged " + purged + " applied edge strength groups");
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    long window;
+    try {
+      window = Long.parseLong(request.getParameter("window"));
+    } catch (NumberFormatException e) {
+      // Retrying would not help, so the task succeeds.
+      LOG.warning("Bad edge strength window: " + e.getMessage());
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+    int updated = EdgeStrengths.get().flush(window);
+    LOG.info("Updated the strengths of " + updated + " edges of window " + window);
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
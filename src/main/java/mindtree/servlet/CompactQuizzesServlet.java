@@ -0,0 +1,272 @@
+package main.java.mindtree.servlet;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.domain.Archive;
+import main.java.mindtree.domain.CompactionJob;
+import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.domain.Quiz;
+import main.java.mindtree.domain.Tombstone;
+import main.java.mindtree.service.Counters;
+import main.java.mindtree.service.Neighborhoods;
+import main.java.mindtree.service.Pipeline;
+import main.java.mindtree.service.QueryCache;
+import main.java.mindtree.util.EntityJson;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Moves expired quizzes and their question tags out of their kinds into {@link Archive}, leaving
+ * a {@link Tombstone} for each so that the change feed reports them deleted.
+ *
+ * The cron GET on /crons/compactQuizzes starts a run, unless one is making progress. The run
+ * archives {@link #BATCH_SIZE} quizzes per task, each task enqueueing the next one
+ * {@link #PAUSE_MILLIS} later, so the compaction only ever holds a sliver of the datastore
+ * throughput the API serves from. The {@link CompactionJob} saved after every batch is the
+ * checkpoint a run stopped by a failure continues from.
+ */
+public class CompactQuizzesServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(CompactQuizzesServlet.class.getName());
+
+  private static final String TASK_PATH = "/tasks/compactQuizzes";
+
+  private static final String JOB_NAME = "expiredQuizzes";
+
+  /**
+   * The quizzes archived per task. A quiz has few tags, so a batch stays well within one
+   * datastore batch of writes.
+   */
+  private static final int BATCH_SIZE = 20;
+
+  /**
+   * The pause between two batches.
+   */
+  private static final long PAUSE_MILLIS = 1000;
+
+  /**
+   * A run whose last batch is older than this has stopped, and the next cron continues it.
+   */
+  private static final long STALE_MILLIS = 10 * 60 * 1000;
+
+  private static final int SAVE_CHUNK_SIZE = 500;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    long now = System.currentTimeMillis();
+    CompactionJob job = ofy().load().type(CompactionJob.class).id(JOB_NAME).now();
+    if (job == null) {
+      job = new CompactionJob(JOB_NAME);
+    } else if (!job.isDone() && now - job.getUpdatedMillis() < STALE_MILLIS) {
+      LOG.info("Compaction run " + job.getRun() + " is still running");
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+    job.start(now);
+    ofy().save().entity(job).now();
+    LOG.info("Starting compaction run " + job.getRun()
+        + (job.getCursor() != null ? " from its checkpoint" : ""));
+    enqueue(job, job.getBatches(), 0);
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    long run;
+    int batch;
+    try {
+      run = Long.parseLong(request.getParameter("run"));
+      batch = Integer.parseInt(request.getParameter("batch"));
+    } catch (NumberFormatException e) {
+      // Retrying would not help, so the task succeeds.
+      LOG.warning("Bad compaction task: " + e.getMessage());
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+    CompactionJob job = ofy().load().type(CompactionJob.class).id(JOB_NAME).now();
+    if (job == null || job.isDone() || job.getRun() != run || batch < job.getBatches()) {
+      // A task of a run that was restarted or of a batch that was done before a retry.
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+
+    String nextCursor = compactBatch(job);
+    ofy().save().entity(job).now();
+    if (nextCursor != null) {
+      enqueue(job, job.getBatches(), PAUSE_MILLIS);
+    } else {
+      LOG.info("Compaction run " + run + " done, archived " + job.getArchivedQuizzes()
+          + " quizzes and " + job.getArchivedQuestionTags() + " question tags");
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  /**
+   * Archives and deletes the next batch of expired quizzes and advances the job past it.
+   *
+   * A batch that fails halfway is done again by the retried task. Its archive rows are keyed by
+   * the entities, so writing them again only overwrites them, and its counter updates are keyed
+   * by the pass and the batch, so they are applied once. The expired quiz query is eventually
+   * consistent and can return quizzes an earlier batch deleted: entities that already have a
+   * tombstone are deleted again but not archived, stamped or counted again.
+   *
+   * @return the cursor after the batch, null when it was the last one.
+   */
+  private static String compactBatch(CompactionJob job) throws IOException {
+    Query<Quiz> query = ofy().load().type(Quiz.class)
+        .filter(Quiz.expiredQuizFilter())
+        .limit(BATCH_SIZE);
+    if (job.getCursor() != null) {
+      query = query.startAt(Cursor.fromWebSafeString(job.getCursor()));
+    }
+    List<Quiz> quizzes = new ArrayList<>();
+    QueryResultIterator<Quiz> iterator = query.iterator();
+    while (iterator.hasNext()) {
+      quizzes.add(iterator.next());
+    }
+    String nextCursor =
+        quizzes.size() == BATCH_SIZE ? iterator.getCursor().toWebSafeString() : null;
+
+    // The tag queries of all quizzes run at the same time. Tags not yet rewritten by
+    // MigrateKeysServlet still hold the quiz key in the legacy string property.
+    Pipeline pipeline = new Pipeline();
+    List<Result<List<Key<QuestionTag>>>> tagQueries = new ArrayList<>();
+    for (Quiz quiz : quizzes) {
+      Key<Quiz> quizKey = Key.create(Quiz.class, quiz.getId());
+      tagQueries.add(pipeline.query(tagKeysWhere("question", quizKey.getRaw())));
+      tagQueries.add(pipeline.query(tagKeysWhere("questionKey", quizKey.getString())));
+    }
+    pipeline.join();
+    List<Key<?>> deleted = new ArrayList<>();
+    for (Quiz quiz : quizzes) {
+      deleted.add(Key.create(Quiz.class, quiz.getId()));
+    }
+    // A tag migrated between the two queries of its quiz is returned by both.
+    Set<Key<QuestionTag>> tagKeySet = new LinkedHashSet<>();
+    for (Result<List<Key<QuestionTag>>> tagQuery : tagQueries) {
+      tagKeySet.addAll(tagQuery.now());
+    }
+    List<Key<QuestionTag>> tagKeys = new ArrayList<>(tagKeySet);
+    deleted.addAll(tagKeys);
+    List<String> deletedKeys = new ArrayList<>(deleted.size());
+    for (Key<?> key : deleted) {
+      deletedKeys.add(key.getString());
+    }
+    // Both loads run at the same time.
+    Map<Key<QuestionTag>, QuestionTag> tags = ofy().load().keys(tagKeys);
+    Set<String> tombstoned = ofy().load().type(Tombstone.class).ids(deletedKeys).keySet();
+
+    Date now = new Date();
+    List<Archive> archives = new ArrayList<>();
+    List<Tombstone> tombstones = new ArrayList<>();
+    for (Quiz quiz : quizzes) {
+      Key<Quiz> quizKey = Key.create(Quiz.class, quiz.getId());
+      if (!tombstoned.contains(quizKey.getString())) {
+        archives.add(new Archive(quizKey, quizKey, now, toJson(quiz)));
+        tombstones.add(new Tombstone(quizKey));
+      }
+    }
+    int archivedQuizzes = tombstones.size();
+    Counters.Deltas deltas = new Counters.Deltas();
+    List<Long> nodeIds = new ArrayList<>();
+    for (QuestionTag tag : tags.values()) {
+      Key<QuestionTag> tagKey = Key.create(QuestionTag.class, tag.getId());
+      if (tombstoned.contains(tagKey.getString())) {
+        continue;
+      }
+      archives.add(new Archive(tagKey, tag.getQuestion(), now, toJson(tag)));
+      tombstones.add(new Tombstone(tagKey));
+      deltas.add(QuestionTag.class, tag.getCreatedBy(), -1);
+      if (tag.getNode() != null) {
+        nodeIds.add(tag.getNode().getKey().getId());
+      }
+    }
+
+    // Nothing is deleted before its archive row is written and its tag is counted off, so a
+    // failure in between leaves the batch for the retry. Expired quizzes are already off the
+    // counters.
+    ofy().save().entities(archives).now();
+    Counters.get().apply(
+        "compaction/" + job.getName() + "/" + job.getPass() + "/" + job.getBatches(), deltas);
+    for (int from = 0; from < tombstones.size(); from += SAVE_CHUNK_SIZE) {
+      pipeline.add(ofy().save().entities(
+          tombstones.subList(from, Math.min(from + SAVE_CHUNK_SIZE, tombstones.size()))));
+    }
+    for (int from = 0; from < deleted.size(); from += SAVE_CHUNK_SIZE) {
+      pipeline.add(ofy().delete().keys(
+          deleted.subList(from, Math.min(from + SAVE_CHUNK_SIZE, deleted.size()))));
+    }
+    pipeline.join();
+    if (!deleted.isEmpty()) {
+      QueryCache.get().invalidate(Quiz.class, QuestionTag.class);
+      Neighborhoods.get().refreshLater(nodeIds);
+    }
+    job.advance(nextCursor, archivedQuizzes, tombstones.size() - archivedQuizzes,
+        System.currentTimeMillis());
+    return nextCursor;
+  }
+
+  private static QueryResultIterator<Key<QuestionTag>> tagKeysWhere(String property, Object value) {
+    return ofy().load().type(QuestionTag.class)
+        .filter(new FilterPredicate(property, FilterOperator.EQUAL, value))
+        .keys()
+        .iterator();
+  }
+
+  /**
+   * @return the entity as one line of the export format.
+   */
+  private static String toJson(Object pojo) throws IOException {
+    Entity entity = ofy().save().toEntity(pojo);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try (JsonGenerator json = EntityJson.createGenerator(out)) {
+      EntityJson.write(json, entity);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Enqueues a batch of the run, named so that a batch is enqueued once even when the task
+   * enqueueing it is retried.
+   */
+  private static void enqueue(CompactionJob job, int batch, long countdownMillis) {
+    try {
+      QueueFactory.getDefaultQueue().add(TaskOptions.Builder.withUrl(TASK_PATH)
+          .taskName("compactQuizzes-" + job.getRun() + "-" + batch)
+          .param("run", String.valueOf(job.getRun()))
+          .param("batch", String.valueOf(batch))
+          .countdownMillis(countdownMillis));
+    } catch (TaskAlreadyExistsException e) {
+      // Enqueued by an earlier attempt.
+    }
+  }
+}
@@ -0,0 +1,149 @@
+package main.java.mindtree.servlet;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Key;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.domain.Quiz;
+import main.java.mindtree.util.EntityJson;
+import main.java.mindtree.util.RequestDeadline;
+
+/**
+ * Exports the mind tree as newline delimited JSON, one {@link EntityJson} line per entity.
+ *
+ * The knowledge nodes and quizzes come first and the edges and question tags after them, so that
+ * {@link ImportServlet} meets every entity before the references to it. The entities are read
+ * with query cursors and written out as they arrive, so memory does not grow with the tree.
+ *
+ * Shortly before the request deadline, or when the response grows close to the App Engine limit,
+ * the export stops with a checkpoint line. A GET on /admin/export?checkpoint=... continues from
+ * there; the responses concatenated in order form the whole export.
+ */
+public class ExportServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(ExportServlet.class.getName());
+
+  private static final int BATCH_SIZE = 500;
+
+  /**
+   * Stop when less time than this is left before the request deadline.
+   */
+  static final long DEADLINE_MARGIN_MILLIS = 10000;
+
+  // App Engine rejects responses over 32 MB.
+  private static final long MAX_RESPONSE_BYTES = 24L * 1024 * 1024;
+
+  // The kinds to export, in order.
+  private static final List<String> KINDS = new ArrayList<>();
+
+  static {
+    KINDS.add(Key.getKind(KnowledgeNode.class));
+    KINDS.add(Key.getKind(Quiz.class));
+    KINDS.add(Key.getKind(Edge.class));
+    KINDS.add(Key.getKind(QuestionTag.class));
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    int kindIndex = 0;
+    Cursor cursor = null;
+    String checkpoint = request.getParameter("checkpoint");
+    if (checkpoint != null) {
+      int separator = checkpoint.indexOf(':');
+      kindIndex = KINDS.indexOf(separator < 0 ? checkpoint : checkpoint.substring(0, separator));
+      try {
+        if (separator >= 0) {
+          cursor = Cursor.fromWebSafeString(checkpoint.substring(separator + 1));
+        }
+      } catch (IllegalArgumentException e) {
+        kindIndex = -1;
+      }
+      if (kindIndex < 0) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad checkpoint: " + checkpoint);
+        return;
+      }
+    }
+
+    response.setContentType("application/x-ndjson");
+    response.setCharacterEncoding("UTF-8");
+    CountingStream out = new CountingStream(response.getOutputStream());
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    int exported = 0;
+    try (JsonGenerator json = EntityJson.createGenerator(out)) {
+      for (; kindIndex < KINDS.size(); kindIndex++) {
+        String kind = KINDS.get(kindIndex);
+        FetchOptions options =
+            FetchOptions.Builder.withChunkSize(BATCH_SIZE).prefetchSize(BATCH_SIZE);
+        if (cursor != null) {
+          options.startCursor(cursor);
+          cursor = null;
+        }
+        QueryResultIterator<Entity> iterator =
+            datastore.prepare(new Query(kind)).asQueryResultIterator(options);
+        int inBatch = 0;
+        while (iterator.hasNext()) {
+          EntityJson.write(json, iterator.next());
+          exported++;
+          if (++inBatch == BATCH_SIZE) {
+            inBatch = 0;
+            json.flush();
+            if (mustStop(out.count)) {
+              EntityJson.writeCheckpoint(
+                  json, kind + ":" + iterator.getCursor().toWebSafeString());
+              LOG.info("Exported " + exported + " entities, stopped in " + kind);
+              return;
+            }
+          }
+        }
+      }
+    }
+    LOG.info("Exported " + exported + " entities, export done");
+  }
+
+  private static boolean mustStop(long bytesWritten) {
+    return bytesWritten > MAX_RESPONSE_BYTES
+        || RequestDeadline.remainingMillis() < DEADLINE_MARGIN_MILLIS;
+  }
+
+  private static class CountingStream extends FilterOutputStream {
+    private long count;
+
+    CountingStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      count++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      count += len;
+    }
+  }
+}
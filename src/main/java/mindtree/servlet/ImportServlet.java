@@ -0,0 +1,428 @@
+package main.java.mindtree.servlet;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.KeyRange;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.ImportJob;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.MindTreeEntity;
+import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.domain.Quiz;
+import main.java.mindtree.service.Counters;
+import main.java.mindtree.service.KnowledgeGraphIndex;
+import main.java.mindtree.service.NodeSearchIndex;
+import main.java.mindtree.service.QueryCache;
+import main.java.mindtree.util.EntityJson;
+import main.java.mindtree.util.RequestDeadline;
+import main.java.mindtree.util.UpdateSequence;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Imports a mind tree exported by {@link ExportServlet}, POSTed to /admin/import.
+ *
+ * Every entity gets a new id, allocated in one range per batch, and every reference to an entity
+ * met earlier in the input is rewritten to its new key, also the web safe strings of
+ * rows not yet migrated to typed keys. References to entities missing from the input are kept
+ * and counted. The old to new key mapping of a job is saved as ImportedKey rows before the
+ * entities that use it, and the entities of a batch are saved while the next batch is read.
+ *
+ * An import stops shortly before the request deadline and answers with its job id. POSTing the
+ * same input to /admin/import?job=... skips the lines already imported and continues; a batch
+ * that was cut short is imported again under the same new keys. Once the job is done, its
+ * ImportedKey rows are no longer needed and {@link PurgeImportedKeysServlet} deletes them.
+ */
+public class ImportServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(ImportServlet.class.getName());
+
+  private static final int BATCH_SIZE = 500;
+
+  /**
+   * Stop when less time than this is left before the request deadline.
+   */
+  private static final long DEADLINE_MARGIN_MILLIS = 15000;
+
+  static final String MAPPING_KIND = "ImportedKey";
+
+  // The old to new keys remembered within a request, the others are read from the mapping rows.
+  private static final int MAPPING_CACHE_SIZE = 20000;
+
+  // String properties of rows saved before the typed references, holding web safe keys.
+  private static final Set<String> LEGACY_KEY_PROPERTIES =
+      new HashSet<>(Arrays.asList("parentKey", "childKey", "questionKey", "nodeKey"));
+
+  // The kinds of the change feed and the entity counters, by kind name. They are stamped with an
+  // update sequence and counted like saved entities.
+  private static final Map<String, Class<?>> COUNTED_KINDS = new HashMap<>();
+
+  static {
+    for (Class<?> kind : Arrays.<Class<?>>asList(
+        KnowledgeNode.class, Quiz.class, Edge.class, QuestionTag.class)) {
+      COUNTED_KINDS.put(com.googlecode.objectify.Key.getKind(kind), kind);
+    }
+  }
+
+  // The counted kinds take their ids from the range the API creates them with, so that imported
+  // and created entities never get the same id.
+  private static final String ENTITY_ID_KIND =
+      com.googlecode.objectify.Key.getKind(MindTreeEntity.class);
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    ImportJob job;
+    String jobId = request.getParameter("job");
+    if (jobId == null) {
+      job = new ImportJob();
+      ofy().save().entity(job).now();
+    } else {
+      try {
+        job = ofy().load().type(ImportJob.class).id(Long.parseLong(jobId)).now();
+      } catch (NumberFormatException e) {
+        job = null;
+      }
+      if (job == null) {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "No import job found: " + jobId);
+        return;
+      }
+    }
+
+    String error = null;
+    Run run = new Run(job);
+    if (!job.isDone()) {
+      try (JsonParser json = EntityJson.createParser(request.getInputStream())) {
+        run.importAll(json);
+      } catch (JsonParseException | IllegalArgumentException e) {
+        error = e.getMessage();
+      } finally {
+        if (run.created > 0) {
+          QueryCache.get().invalidate(
+              KnowledgeNode.class, Quiz.class, Edge.class, QuestionTag.class);
+          KnowledgeGraphIndex.get().invalidate();
+          NodeSearchIndex.get().invalidate();
+        }
+      }
+    }
+    if (job.isDone()) {
+      // Also when the job was done by an earlier request, in case that one failed to enqueue it.
+      PurgeImportedKeysServlet.enqueue(job.getId(), 0, null);
+    }
+    LOG.info("Import job " + job.getId() + " at " + job.getRecords() + " entities, "
+        + run.created + " saved by this request" + (error == null ? "" : ", failed: " + error));
+
+    response.setStatus(
+        error == null ? HttpServletResponse.SC_OK : HttpServletResponse.SC_BAD_REQUEST);
+    response.setContentType("application/json");
+    try (JsonGenerator json = EntityJson.createGenerator(response.getOutputStream())) {
+      json.writeStartObject();
+      json.writeStringField("job", String.valueOf(job.getId()));
+      json.writeNumberField("records", job.getRecords());
+      json.writeNumberField("unresolvedReferences", job.getUnresolvedReferences());
+      json.writeBooleanField("done", job.isDone());
+      if (error != null) {
+        json.writeStringField("error", error);
+      }
+      json.writeEndObject();
+    }
+  }
+
+  /**
+   * The state of one import request.
+   */
+  private static class Run {
+    private final ImportJob job;
+    private final AsyncDatastoreService datastore =
+        DatastoreServiceFactory.getAsyncDatastoreService();
+
+    private final Map<Key, Key> newKeys = new LinkedHashMap<Key, Key>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, Key> eldest) {
+        return size() > MAPPING_CACHE_SIZE;
+      }
+    };
+
+    // The save of the previous batch, still running while the next one is read.
+    private Future<List<Key>> saving;
+    private int savingRecords;
+    private int savingUnresolved;
+    private Counters.Deltas savingCounts;
+
+    private int unresolved;
+    private int created;
+
+    Run(ImportJob job) {
+      this.job = job;
+    }
+
+    void importAll(JsonParser json) throws IOException {
+      for (long skipped = 0; skipped < job.getRecords(); skipped++) {
+        if (EntityJson.read(json) == null) {
+          throw new IllegalArgumentException("The input ends before the " + job.getRecords()
+              + " entities job " + job.getId() + " already imported");
+        }
+      }
+      try {
+        List<Entity> batch = readBatch(json);
+        while (!batch.isEmpty()) {
+          resolve(batch);
+          List<Entity> mappings = allocate(batch);
+          finishSaving();
+          if (!mappings.isEmpty()) {
+            get(datastore.put(mappings));
+          }
+          List<Entity> copies = new ArrayList<>(batch.size());
+          unresolved = 0;
+          for (Entity entity : batch) {
+            copies.add(copy(entity));
+          }
+          saving = datastore.put(copies);
+          savingRecords = batch.size();
+          savingUnresolved = unresolved;
+          savingCounts = count(copies);
+          if (RequestDeadline.remainingMillis() < DEADLINE_MARGIN_MILLIS) {
+            return;
+          }
+          batch = readBatch(json);
+        }
+        finishSaving();
+        job.finish();
+        ofy().save().entity(job).now();
+      } finally {
+        // Keep the batch already sent when reading the next one failed.
+        finishSaving();
+      }
+    }
+
+    private List<Entity> readBatch(JsonParser json) throws IOException {
+      List<Entity> batch = new ArrayList<>(BATCH_SIZE);
+      Entity entity;
+      while (batch.size() < BATCH_SIZE && (entity = EntityJson.read(json)) != null) {
+        if (entity.getParent() != null) {
+          throw new IllegalArgumentException(
+              "Only root entities can be imported: " + KeyFactory.keyToString(entity.getKey()));
+        }
+        batch.add(entity);
+      }
+      return batch;
+    }
+
+    private void finishSaving() {
+      if (saving == null) {
+        return;
+      }
+      Future<List<Key>> pending = saving;
+      saving = null;
+      created += get(pending).size();
+      // Keyed by where the batch starts, so a run continuing from the checkpoint before the
+      // batch counts it once.
+      Counters.get().apply("import/" + job.getId() + "/" + job.getRecords(), savingCounts);
+      job.advance(savingRecords, savingUnresolved);
+      ofy().save().entity(job).now();
+    }
+
+    // The entity counters of the batch, like the create endpoints update them.
+    private Counters.Deltas count(List<Entity> copies) {
+      Counters.Deltas deltas = new Counters.Deltas();
+      for (Entity copy : copies) {
+        Class<?> kind = COUNTED_KINDS.get(copy.getKind());
+        if (kind != null && !"EXPIRED".equals(copy.getProperty("status"))) {
+          deltas.add(kind, (String) copy.getProperty("createdBy"), 1);
+        }
+      }
+      return deltas;
+    }
+
+    /**
+     * Loads the mappings saved by earlier requests for the keys of the batch and the keys it
+     * refers to.
+     */
+    private void resolve(List<Entity> batch) {
+      Set<Key> keys = new LinkedHashSet<>();
+      for (Entity entity : batch) {
+        keys.add(entity.getKey());
+        for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+          collectKeys(property.getKey(), property.getValue(), keys);
+        }
+      }
+      Map<Key, Key> oldKeys = new HashMap<>();
+      for (Key key : keys) {
+        if (!newKeys.containsKey(key)) {
+          oldKeys.put(mappingKey(key), key);
+        }
+      }
+      if (oldKeys.isEmpty()) {
+        return;
+      }
+      for (Entity mapping : get(datastore.get(oldKeys.keySet())).values()) {
+        newKeys.put(oldKeys.get(mapping.getKey()), (Key) mapping.getProperty("newKey"));
+      }
+    }
+
+    private static void collectKeys(String name, Object value, Set<Key> keys) {
+      if (value instanceof Key) {
+        keys.add((Key) value);
+      } else if (value instanceof Collection) {
+        for (Object item : (Collection<?>) value) {
+          collectKeys(name, item, keys);
+        }
+      } else if (value instanceof String && LEGACY_KEY_PROPERTIES.contains(name)) {
+        Key key = legacyKey((String) value);
+        if (key != null) {
+          keys.add(key);
+        }
+      }
+    }
+
+    /**
+     * Allocates new ids for the entities of the batch that have no mapping yet, one range for the
+     * counted kinds and one per other kind.
+     *
+     * @return the mapping rows to save before the entities.
+     */
+    private List<Entity> allocate(List<Entity> batch) {
+      Map<String, Set<Key>> unmapped = new LinkedHashMap<>();
+      for (Entity entity : batch) {
+        Key key = entity.getKey();
+        if (newKeys.containsKey(key)) {
+          continue;
+        }
+        if (key.getName() != null) {
+          // Named keys do not collide with the ids of the target.
+          newKeys.put(key, key);
+          continue;
+        }
+        Set<Key> keys = unmapped.get(key.getKind());
+        if (keys == null) {
+          keys = new LinkedHashSet<>();
+          unmapped.put(key.getKind(), keys);
+        }
+        keys.add(key);
+      }
+      Map<String, Future<KeyRange>> ranges = new HashMap<>();
+      int entityIds = 0;
+      for (Map.Entry<String, Set<Key>> kind : unmapped.entrySet()) {
+        if (COUNTED_KINDS.containsKey(kind.getKey())) {
+          entityIds += kind.getValue().size();
+        } else {
+          ranges.put(kind.getKey(), datastore.allocateIds(kind.getKey(), kind.getValue().size()));
+        }
+      }
+      Iterator<Key> entityRange = entityIds == 0
+          ? null : get(datastore.allocateIds(ENTITY_ID_KIND, entityIds)).iterator();
+      List<Entity> mappings = new ArrayList<>();
+      for (Map.Entry<String, Set<Key>> kind : unmapped.entrySet()) {
+        boolean counted = COUNTED_KINDS.containsKey(kind.getKey());
+        Iterator<Key> allocated = counted ? entityRange : get(ranges.get(kind.getKey())).iterator();
+        for (Key key : kind.getValue()) {
+          Key newKey = allocated.next();
+          if (counted) {
+            newKey = KeyFactory.createKey(kind.getKey(), newKey.getId());
+          }
+          newKeys.put(key, newKey);
+          Entity mapping = new Entity(mappingKey(key));
+          mapping.setUnindexedProperty("newKey", newKey);
+          mappings.add(mapping);
+        }
+      }
+      return mappings;
+    }
+
+    private Key mappingKey(Key key) {
+      return KeyFactory.createKey(MAPPING_KIND, job.getId() + "/" + KeyFactory.keyToString(key));
+    }
+
+    private Entity copy(Entity entity) {
+      Entity copy = new Entity(newKeys.get(entity.getKey()));
+      for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+        String name = property.getKey();
+        Object value = remap(name, property.getValue());
+        if (entity.isUnindexedProperty(name)) {
+          copy.setUnindexedProperty(name, value);
+        } else {
+          copy.setProperty(name, value);
+        }
+      }
+      if (COUNTED_KINDS.containsKey(copy.getKind())) {
+        copy.setProperty("updateSeq", UpdateSequence.next());
+      }
+      return copy;
+    }
+
+    private Object remap(String name, Object value) {
+      if (value instanceof Key) {
+        return remap((Key) value);
+      } else if (value instanceof Collection) {
+        List<Object> items = new ArrayList<>();
+        for (Object item : (Collection<?>) value) {
+          items.add(remap(name, item));
+        }
+        return items;
+      } else if (value instanceof String && LEGACY_KEY_PROPERTIES.contains(name)) {
+        Key key = legacyKey((String) value);
+        return key == null ? value : KeyFactory.keyToString(remap(key));
+      }
+      return value;
+    }
+
+    private Key remap(Key key) {
+      Key newKey = newKeys.get(key);
+      if (newKey == null) {
+        unresolved++;
+        return key;
+      }
+      return newKey;
+    }
+
+    private static Key legacyKey(String websafeKey) {
+      try {
+        return KeyFactory.stringToKey(websafeKey);
+      } catch (IllegalArgumentException e) {
+        return null;
+      }
+    }
+  }
+
+  private static <T> T get(Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while importing", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,198 @@
+package main.java.mindtree.servlet;
+
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import main.java.mindtree.service.DatastoreOps;
+import main.java.mindtree.service.Metrics;
+
+/**
+ * Records the latency, status and payload sizes of every request in {@link Metrics}, and
+ * attributes the App Engine API calls made while serving it to its endpoint. Also counts the
+ * datastore operations of a sample of the requests through {@link DatastoreOps} and logs their
+ * summary. The datastoreOpsSampling init parameter is the fraction of requests counted, from 0,
+ * the default, to 1.
+ *
+ * API requests are named after their method, so a call of getNodeView through
+ * /_ah/spi/main.java.mindtree.spi.MindTreeApi.getNodeView counts as getNodeView. Other requests
+ * are named after their servlet path.
+ */
+public class MetricsFilter implements Filter {
+  private static final String SPI_PREFIX = "/_ah/spi/";
+
+  private double datastoreOpsSampling;
+
+  @Override
+  public void init(FilterConfig config) {
+    Metrics.get().instrumentApiProxy();
+    String sampling = config.getInitParameter("datastoreOpsSampling");
+    if (sampling != null) {
+      datastoreOpsSampling = Double.parseDouble(sampling);
+    }
+  }
+
+  @Override
+  public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+      throws IOException, ServletException {
+    if (!(request instanceof HttpServletRequest)) {
+      chain.doFilter(request, response);
+      return;
+    }
+    HttpServletRequest httpRequest = (HttpServletRequest) request;
+    String name = endpointName(httpRequest);
+    Metrics.Endpoint endpoint = Metrics.get().endpoint(name);
+    CountingResponse counting = new CountingResponse((HttpServletResponse) response);
+    int status = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+    long start = System.nanoTime();
+    Metrics.get().begin(endpoint);
+    DatastoreOps ops = ThreadLocalRandom.current().nextDouble() < datastoreOpsSampling
+        ? DatastoreOps.begin(name) : null;
+    try {
+      chain.doFilter(request, counting);
+      status = counting.status;
+    } finally {
+      if (ops != null) {
+        ops.end();
+        ops.log();
+      }
+      Metrics.get().end();
+      endpoint.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), status,
+          httpRequest.getContentLength(), counting.bytes());
+    }
+  }
+
+  @Override
+  public void destroy() {}
+
+  static String endpointName(HttpServletRequest request) {
+    String uri = request.getRequestURI();
+    if (uri != null && uri.startsWith(SPI_PREFIX)) {
+      return uri.substring(uri.lastIndexOf('.') + 1);
+    }
+    return request.getServletPath();
+  }
+
+  /**
+   * Remembers the status and counts the bytes and characters written to the response.
+   */
+  private static class CountingResponse extends HttpServletResponseWrapper {
+    private int status = HttpServletResponse.SC_OK;
+    private long streamBytes;
+    private long writerChars;
+    private ServletOutputStream stream;
+    private PrintWriter writer;
+
+    CountingResponse(HttpServletResponse response) {
+      super(response);
+    }
+
+    /**
+     * @return the size of the body, counting characters as bytes when it was written as text.
+     */
+    long bytes() {
+      return streamBytes + writerChars;
+    }
+
+    @Override
+    public void setStatus(int status) {
+      this.status = status;
+      super.setStatus(status);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int status, String message) {
+      this.status = status;
+      super.setStatus(status, message);
+    }
+
+    @Override
+    public void sendError(int status) throws IOException {
+      this.status = status;
+      super.sendError(status);
+    }
+
+    @Override
+    public void sendError(int status, String message) throws IOException {
+      this.status = status;
+      super.sendError(status, message);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+      this.status = HttpServletResponse.SC_FOUND;
+      super.sendRedirect(location);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+      if (stream == null) {
+        final ServletOutputStream out = super.getOutputStream();
+        stream = new ServletOutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            out.write(b);
+            streamBytes++;
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            streamBytes += len;
+          }
+
+          @Override
+          public void flush() throws IOException {
+            out.flush();
+          }
+
+          @Override
+          public void close() throws IOException {
+            out.close();
+          }
+        };
+      }
+      return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null) {
+        writer = new PrintWriter(new FilterWriter(super.getWriter()) {
+          @Override
+          public void write(int c) throws IOException {
+            out.write(c);
+            writerChars++;
+          }
+
+          @Override
+          public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+            writerChars += len;
+          }
+
+          @Override
+          public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+            writerChars += len;
+          }
+        });
+      }
+      return writer;
+    }
+  }
+}
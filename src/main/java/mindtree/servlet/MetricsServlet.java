@@ -0,0 +1,27 @@
+package main.java.mindtree.servlet;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.service.Metrics;
+
+/**
+ * Serves the {@link Metrics} of this instance in the Prometheus text format.
+ */
+public class MetricsServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    response.setContentType("text/plain; version=0.0.4");
+    response.setCharacterEncoding("UTF-8");
+    Writer out = response.getWriter();
+    Metrics.get().writePrometheus(out);
+    out.flush();
+  }
+}
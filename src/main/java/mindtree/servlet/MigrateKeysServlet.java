@@ -0,0 +1,174 @@
+package main.java.mindtree.servlet;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.QuestionTag;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Rewrites the Edge and QuestionTag rows saved with web safe string keys so that they store typed
+ * key references instead.
+ *
+ * Each request migrates one batch and enqueues the next one with its query cursor, so the
+ * migration runs online while the API keeps serving. Rows are loaded and saved again in small
+ * transactions so that a concurrent delete is never undone. Start it with a GET on
+ * /tasks/migrateKeys, running it twice is harmless.
+ *
+ * Only rows that still hold a legacy string key are selected, through the index of that string,
+ * since saving a row again stamps a new update sequence and sends it through the change feed.
+ * Saving drops the legacy strings, so a migrated row leaves the query.
+ *
+ * The tasks of a run are named after the run, the kind and the batch number, so that a retried
+ * task that already enqueued the next batch does not start a second chain over the rest of the
+ * kind, which would save every row again and send it through the change feed once more.
+ */
+public class MigrateKeysServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(MigrateKeysServlet.class.getName());
+
+  private static final String PATH = "/tasks/migrateKeys";
+
+  private static final int BATCH_SIZE = 100;
+
+  // Cross group transactions span at most 25 entity groups.
+  private static final int TRANSACTION_SIZE = 25;
+
+  // The kinds to migrate, in order.
+  private static final List<Class<?>> KINDS = new ArrayList<>();
+
+  // The indexed legacy string property that every unmigrated row of a kind holds.
+  private static final Map<Class<?>, String> LEGACY_PROPERTIES = new HashMap<>();
+
+  static {
+    KINDS.add(Edge.class);
+    LEGACY_PROPERTIES.put(Edge.class, "parentKey");
+    KINDS.add(QuestionTag.class);
+    LEGACY_PROPERTIES.put(QuestionTag.class, "questionKey");
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    migrate(request, response);
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    migrate(request, response);
+  }
+
+  private void migrate(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    int kindIndex = 0;
+    String kind = request.getParameter("kind");
+    if (kind != null) {
+      kindIndex = kindIndex(kind);
+      if (kindIndex < 0) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown kind: " + kind);
+        return;
+      }
+    }
+    long run;
+    int batch;
+    try {
+      String runParam = request.getParameter("run");
+      run = runParam == null ? System.currentTimeMillis() : Long.parseLong(runParam);
+      String batchParam = request.getParameter("batch");
+      batch = batchParam == null ? 0 : Integer.parseInt(batchParam);
+    } catch (NumberFormatException e) {
+      response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid run or batch");
+      return;
+    }
+    String cursor = request.getParameter("cursor");
+    String nextCursor = migrateBatch(KINDS.get(kindIndex), cursor);
+
+    String kindName = Key.getKind(KINDS.get(kindIndex));
+    if (nextCursor != null) {
+      enqueue(run, kindName, batch + 1, nextCursor);
+    } else if (kindIndex + 1 < KINDS.size()) {
+      LOG.info("Migrated all " + kindName + " rows");
+      enqueue(run, Key.getKind(KINDS.get(kindIndex + 1)), 0, null);
+    } else {
+      LOG.info("Migrated all " + kindName + " rows, key migration done");
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  /**
+   * @return the cursor after the batch, null when the batch was the last one of the kind.
+   */
+  private static <T> String migrateBatch(Class<T> kind, String cursor) {
+    Query<T> query = ofy().load().type(kind)
+        .filter(LEGACY_PROPERTIES.get(kind) + " >", "")
+        .limit(BATCH_SIZE);
+    if (cursor != null) {
+      query = query.startAt(Cursor.fromWebSafeString(cursor));
+    }
+    List<Key<T>> keys = new ArrayList<>();
+    QueryResultIterator<Key<T>> iterator = query.keys().iterator();
+    while (iterator.hasNext()) {
+      keys.add(iterator.next());
+    }
+    for (int from = 0; from < keys.size(); from += TRANSACTION_SIZE) {
+      resave(keys.subList(from, Math.min(from + TRANSACTION_SIZE, keys.size())));
+    }
+    return keys.size() == BATCH_SIZE ? iterator.getCursor().toWebSafeString() : null;
+  }
+
+  // Loading converts the legacy string properties, saving writes the typed references.
+  private static <T> void resave(final List<Key<T>> keys) {
+    ofy().transact(new VoidWork() {
+      @Override
+      public void vrun() {
+        ofy().save().entities(ofy().load().keys(keys).values()).now();
+      }
+    });
+  }
+
+  private static void enqueue(long run, String kind, int batch, String cursor) {
+    TaskOptions task = TaskOptions.Builder.withUrl(PATH)
+        .taskName("migrateKeys-" + run + "-" + kind + "-" + batch)
+        .param("run", String.valueOf(run))
+        .param("kind", kind)
+        .param("batch", String.valueOf(batch));
+    if (cursor != null) {
+      task.param("cursor", cursor);
+    }
+    try {
+      QueueFactory.getDefaultQueue().add(task);
+    } catch (TaskAlreadyExistsException e) {
+      // Enqueued by an earlier attempt.
+    }
+  }
+
+  private static int kindIndex(String kind) {
+    for (int i = 0; i < KINDS.size(); i++) {
+      if (Key.getKind(KINDS.get(i)).equals(kind)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
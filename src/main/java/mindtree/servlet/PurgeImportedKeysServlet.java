@@ -0,0 +1,128 @@
+package main.java.mindtree.servlet;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.domain.ImportJob;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Deletes the ImportedKey rows of a done import job, which only a continuing import reads. The
+ * {@link ImportServlet} enqueues it once the job is done, and every task deletes one batch and
+ * enqueues the next one with its query cursor.
+ */
+public class PurgeImportedKeysServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(PurgeImportedKeysServlet.class.getName());
+
+  private static final String PATH = "/tasks/purgeImportedKeys";
+
+  /**
+   * The datastore deletes at most 500 entities per call.
+   */
+  private static final int BATCH_SIZE = 500;
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    long jobId;
+    int batch;
+    Cursor cursor = null;
+    try {
+      jobId = Long.parseLong(request.getParameter("job"));
+      batch = Integer.parseInt(request.getParameter("batch"));
+      if (request.getParameter("cursor") != null) {
+        cursor = Cursor.fromWebSafeString(request.getParameter("cursor"));
+      }
+    } catch (IllegalArgumentException e) {
+      // Retrying would not help, so the task succeeds.
+      LOG.warning("Bad imported keys task: " + e.getMessage());
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+    ImportJob job = ofy().load().type(ImportJob.class).id(jobId).now();
+    if (job == null || !job.isDone()) {
+      // A job that is not done still reads its mapping when it continues.
+      LOG.warning("Import job " + jobId + " is not done, its imported keys are kept");
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+
+    // The rows of a job are named after it, so they form one range of keys.
+    Query query = new Query(ImportServlet.MAPPING_KIND)
+        .setKeysOnly()
+        .setFilter(CompositeFilterOperator.and(
+            new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+                FilterOperator.GREATER_THAN_OR_EQUAL, mappingKey(jobId, "/")),
+            new FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+                FilterOperator.LESS_THAN, mappingKey(jobId, "0"))));
+    FetchOptions options = FetchOptions.Builder.withLimit(BATCH_SIZE);
+    if (cursor != null) {
+      options.startCursor(cursor);
+    }
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    QueryResultList<Entity> rows = datastore.prepare(query).asQueryResultList(options);
+    List<Key> keys = new ArrayList<>(rows.size());
+    for (Entity row : rows) {
+      keys.add(row.getKey());
+    }
+    datastore.delete(keys);
+
+    if (rows.size() == BATCH_SIZE) {
+      enqueue(jobId, batch + 1, rows.getCursor());
+    } else {
+      LOG.info("Deleted the imported keys of import job " + jobId);
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  /**
+   * Enqueues a batch of the purge of a job, named so that a batch is enqueued once even when the
+   * request enqueueing it is retried.
+   *
+   * @param cursor the cursor after the previous batch, null for the first one.
+   */
+  static void enqueue(long jobId, int batch, Cursor cursor) {
+    TaskOptions task = TaskOptions.Builder.withUrl(PATH)
+        .taskName("purgeImportedKeys-" + jobId + "-" + batch)
+        .param("job", String.valueOf(jobId))
+        .param("batch", String.valueOf(batch));
+    if (cursor != null) {
+      task.param("cursor", cursor.toWebSafeString());
+    }
+    try {
+      QueueFactory.getDefaultQueue().add(task);
+    } catch (TaskAlreadyExistsException e) {
+      // Enqueued by an earlier attempt.
+    }
+  }
+
+  // '/' separates the job id from the old key, and '0' is the character after it.
+  private static Key mappingKey(long jobId, String suffix) {
+    return KeyFactory.createKey(ImportServlet.MAPPING_KIND, jobId + suffix);
+  }
+}
@@ -0,0 +1,38 @@
+package main.java.mindtree.servlet;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.service.ChangeFeed;
+import main.java.mindtree.util.RequestDeadline;
+
+/**
+ * The cron GET on /crons/purgeTombstones purges the tombstones the change feed no longer serves.
+ */
+public class PurgeTombstonesServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(PurgeTombstonesServlet.class.getName());
+
+  /**
+   * Stop purging when less time than this is left before the request deadline.
+   */
+  private static final long DEADLINE_MARGIN_MILLIS = 15000;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    int purged = 0;
+    int batch;
+    do {
+      batch = ChangeFeed.get().purgeTombstones();
+      purged += batch;
+    } while (batch > 0 && RequestDeadline.remainingMillis() > DEADLINE_MARGIN_MILLIS);
+    LOG.info("Purged " + purged + " tombstones");
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -0,0 +1,207 @@
+package main.java.mindtree.servlet;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.MindTreeEntity;
+import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.domain.Quiz;
+import main.java.mindtree.domain.RecountJob;
+import main.java.mindtree.service.Counters;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Rebuilds the entity counters of {@link Counters} from the datastore, to count the entities
+ * created before the counters existed or to repair counts after failed updates.
+ *
+ * A GET on /tasks/recount resets the counters of the kinds, from the kind parameter on, and
+ * starts a run that counts them one batch per task, every task enqueueing the next one. The
+ * {@link RecountJob} saved after every batch holds the kind and query cursor of the next one, so
+ * only one run is in progress at a time: a GET while a run makes progress is refused with 409
+ * and resets nothing. Each batch is applied once, even when its task is retried. Writes while a
+ * kind is counted may be counted twice or not at all, so run it while the API is quiet.
+ */
+public class RecountServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(RecountServlet.class.getName());
+
+  private static final String PATH = "/tasks/recount";
+
+  private static final String JOB_NAME = "entityCounts";
+
+  private static final int BATCH_SIZE = 500;
+
+  /**
+   * A run whose last batch is older than this has stopped, and a GET may start a new one.
+   */
+  private static final long STALE_MILLIS = 10 * 60 * 1000;
+
+  // The kinds to count, in order.
+  private static final List<Class<? extends MindTreeEntity<?, ?>>> KINDS = new ArrayList<>();
+
+  static {
+    KINDS.add(KnowledgeNode.class);
+    KINDS.add(Edge.class);
+    KINDS.add(Quiz.class);
+    KINDS.add(QuestionTag.class);
+  }
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    int kindIndex = 0;
+    String kind = request.getParameter("kind");
+    if (kind != null) {
+      kindIndex = kindIndex(kind);
+      if (kindIndex < 0) {
+        response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown kind: " + kind);
+        return;
+      }
+    }
+    final String firstKind = Key.getKind(KINDS.get(kindIndex));
+    final long now = System.currentTimeMillis();
+    // Checked and started in one transaction, so that two GETs never both start a run.
+    RecountJob job = ofy().transact(new Work<RecountJob>() {
+      @Override
+      public RecountJob run() {
+        RecountJob job = ofy().load().type(RecountJob.class).id(JOB_NAME).now();
+        if (job == null) {
+          job = new RecountJob(JOB_NAME);
+        } else if (!job.isDone() && now - job.getUpdatedMillis() < STALE_MILLIS) {
+          return null;
+        }
+        job.start(firstKind, now);
+        ofy().save().entity(job).now();
+        return job;
+      }
+    });
+    if (job == null) {
+      response.sendError(HttpServletResponse.SC_CONFLICT, "A recount is still running");
+      return;
+    }
+    LOG.info("Starting recount run " + job.getRun() + " from " + firstKind);
+    // Tasks only add, so that a retried task does not undo the batches counted before it.
+    for (int i = kindIndex; i < KINDS.size(); i++) {
+      Counters.get().reset(KINDS.get(i));
+    }
+    enqueue(job);
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    long run;
+    int batch;
+    try {
+      run = Long.parseLong(request.getParameter("run"));
+      batch = Integer.parseInt(request.getParameter("batch"));
+    } catch (NumberFormatException e) {
+      // Retrying would not help, so the task succeeds.
+      LOG.warning("Bad recount task: " + e.getMessage());
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+    RecountJob job = ofy().load().type(RecountJob.class).id(JOB_NAME).now();
+    if (job == null || job.isDone() || job.getRun() != run || batch < job.getBatches()) {
+      // A task of a run that was replaced or of a batch that was done before a retry.
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+    int kindIndex = kindIndex(job.getKind());
+    if (kindIndex < 0) {
+      LOG.warning("Recount run " + run + " is at an unknown kind: " + job.getKind());
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+    String nextCursor = countBatch(
+        KINDS.get(kindIndex), job.getCursor(), "recount/" + run + "/" + batch);
+
+    long now = System.currentTimeMillis();
+    if (nextCursor != null) {
+      job.advance(job.getKind(), nextCursor, now);
+    } else if (kindIndex + 1 < KINDS.size()) {
+      LOG.info("Counted all " + job.getKind() + " rows");
+      job.advance(Key.getKind(KINDS.get(kindIndex + 1)), null, now);
+    } else {
+      LOG.info("Counted all " + job.getKind() + " rows, recount run " + run + " done");
+      job.advance(null, null, now);
+    }
+    ofy().save().entity(job).now();
+    if (!job.isDone()) {
+      enqueue(job);
+    }
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+
+  /**
+   * @return the cursor after the batch, null when the batch was the last one of the kind.
+   */
+  private static <T extends MindTreeEntity<?, ?>> String countBatch(
+      Class<T> kind, String cursor, String batchId) {
+    Query<T> query = ofy().load().type(kind).limit(BATCH_SIZE);
+    if (cursor != null) {
+      query = query.startAt(Cursor.fromWebSafeString(cursor));
+    }
+    Counters.Deltas deltas = new Counters.Deltas();
+    int rows = 0;
+    QueryResultIterator<T> iterator = query.iterator();
+    while (iterator.hasNext()) {
+      T entity = iterator.next();
+      rows++;
+      // Deleted quizzes are only marked expired and no longer count.
+      if (!(entity instanceof Quiz && ((Quiz) entity).isExpired())) {
+        deltas.add(kind, entity.getCreatedBy(), 1);
+      }
+    }
+    Counters.get().apply(batchId, deltas);
+    return rows == BATCH_SIZE ? iterator.getCursor().toWebSafeString() : null;
+  }
+
+  /**
+   * Enqueues the next batch of the run, named so that a batch is enqueued once even when the
+   * task enqueueing it is retried.
+   */
+  private static void enqueue(RecountJob job) {
+    TaskOptions task = TaskOptions.Builder.withUrl(PATH)
+        .taskName("recount-" + job.getRun() + "-" + job.getBatches())
+        .param("run", String.valueOf(job.getRun()))
+        .param("batch", String.valueOf(job.getBatches()));
+    try {
+      QueueFactory.getDefaultQueue().add(task);
+    } catch (TaskAlreadyExistsException e) {
+      // Enqueued by an earlier attempt.
+    }
+  }
+
+  private static int kindIndex(String kind) {
+    if (kind == null) {
+      return -1;
+    }
+    for (int i = 0; i < KINDS.size(); i++) {
+      if (Key.getKind(KINDS.get(i)).equals(kind)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
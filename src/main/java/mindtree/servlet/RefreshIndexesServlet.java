@@ -0,0 +1,26 @@
+package main.java.mindtree.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.service.KnowledgeGraphIndex;
+import main.java.mindtree.service.NodeSearchIndex;
+
+/**
+ * The cron GET on /crons/refreshIndexes rebuilds the per-instance indexes of the instance serving
+ * it when they are due, so that user requests do not pay for the scan.
+ */
+public class RefreshIndexesServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    KnowledgeGraphIndex.get().refresh();
+    NodeSearchIndex.get().refresh();
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -0,0 +1,36 @@
+package main.java.mindtree.servlet;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.service.Neighborhoods;
+
+/**
+ * Rebuilds the neighborhood of the knowledge node given by the node parameter, run from the
+ * tasks enqueued by {@link Neighborhoods#refreshLater}.
+ */
+public class RefreshNeighborhoodServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  private static final Logger LOG = Logger.getLogger(RefreshNeighborhoodServlet.class.getName());
+
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    long nodeId;
+    try {
+      nodeId = Long.parseLong(request.getParameter("node"));
+    } catch (NumberFormatException e) {
+      // Retrying would not help, so the task succeeds.
+      LOG.warning("Bad node id: " + request.getParameter("node"));
+      response.setStatus(HttpServletResponse.SC_OK);
+      return;
+    }
+    Neighborhoods.get().rebuild(nodeId);
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -0,0 +1,26 @@
+package main.java.mindtree.servlet;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import main.java.mindtree.service.KnowledgeGraphIndex;
+import main.java.mindtree.service.NodeSearchIndex;
+
+/**
+ * Handles the App Engine warmup request by building the per-instance caches before the instance
+ * serves user traffic.
+ */
+public class WarmupServlet extends HttpServlet {
+  private static final long serialVersionUID = 1L;
+
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    KnowledgeGraphIndex.get().ensureWarm();
+    NodeSearchIndex.get().ensureWarm();
+    response.setStatus(HttpServletResponse.SC_OK);
+  }
+}
@@ -1,25 +1,77 @@
 package main.java.mindtree.spi;
 
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
+import com.google.api.server.spi.response.ServiceUnavailableException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.users.User;
 import com.googlecode.objectify.Key;
-import com.googlecode.objectify.Objectify;
+import com.googlecode.objectify.Result;
 import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.servlet.http.HttpServletRequest;
 
-import main.java.mindtree.domain.AppEngineUser;
 import main.java.mindtree.domain.MindTreeEntity;
+import main.java.mindtree.domain.Tombstone;
 import main.java.mindtree.form.MindTreeForm;
+import main.java.mindtree.response.BatchResult;
+import main.java.mindtree.service.AdmissionControl;
+import main.java.mindtree.service.Counters;
+import main.java.mindtree.service.OfyService;
+import main.java.mindtree.service.Pipeline;
+import main.java.mindtree.service.QueryCache;
+import main.java.mindtree.service.UserIdCache;
 
-import static main.java.mindtree.service.OfyService.factory;
 import static main.java.mindtree.service.OfyService.ofy;
 
 /**
  * Util class to help building APIs.
  */
 class ApiUtils {
+  /**
+   * The largest page a list endpoint returns, whatever limit the client asks for.
+   */
+  static final int MAX_PAGE_SIZE = 1000;
+
+  /**
+   * The largest number of items a batch endpoint accepts.
+   */
+  static final int MAX_BATCH_SIZE = 1000;
+
+  /**
+   * The datastore accepts at most 500 entities per put or delete.
+   */
+  private static final int SAVE_CHUNK_SIZE = 500;
+
+  /**
+   * The batch size of keys-only queries feeding deletes.
+   */
+  static final int KEYS_CHUNK_SIZE = 1000;
+
+  /**
+   * A call costs one token of the expensive budget per this many entities it reads or writes.
+   */
+  static final int ENTITIES_PER_COST = 100;
+
+  /**
+   * The weight of a delete that cascades to an unknown number of edges and tags, that of a
+   * full page.
+   */
+  static final int CASCADE_DELETE_COST = MAX_PAGE_SIZE / ENTITIES_PER_COST;
+
   /**
    * A wrapper class that can embrace a generic result or some kind of exception.
    *
@@ -78,22 +130,14 @@ class ApiUtils {
   }
 
   /**
-   * This is an ugly workaround for null userId for Android clients.
+   * This is an ugly workaround for null userId for Android clients. The resolved ids are cached,
+   * see {@link UserIdCache}.
    *
    * @param user A User object injected by the cloud endpoints.
    * @return the App Engine userId for the user.
    */
   public static String getUserId(User user) {
-    String userId = user.getUserId();
-    if (userId == null) {
-      AppEngineUser appEngineUser = new AppEngineUser(user);
-      ofy().save().entity(appEngineUser).now();
-      // Begin new session for not using session cache.
-      Objectify objectify = ofy().factory().begin();
-      AppEngineUser savedUser = objectify.load().key(appEngineUser.getKey()).now();
-      userId = savedUser.getUser().getUserId();
-    }
-    return userId;
+    return UserIdCache.get().userId(user);
   }
 
   /**
@@ -112,35 +156,196 @@ class ApiUtils {
     }
   }
 
+  /**
+   * Vets a new entity after it is built and before it is saved.
+   *
+   * @param <E> The type of the entity.
+   */
+  interface EntityGuard<E> {
+    /**
+     * @throws NotFoundException when an entity the new one refers to does not exist.
+     * @throws ConflictException when the new entity conflicts with existing ones.
+     */
+    void admit(E entity) throws NotFoundException, ConflictException;
+
+    /**
+     * Undoes {@link #admit} for an entity that could not be saved.
+     */
+    void release(E entity);
+  }
+
   public static MindTreeEntity createEntity (
       User user,
       final MindTreeForm form,
       final Class<? extends MindTreeEntity> entityClass)
-      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+      BadRequestException {
+    return createEntity(user, form, entityClass, null);
+  }
+
+  /**
+   * Creates an entity from a client form, admitted by the given guard before it is saved.
+   *
+   * @param guard The guard to admit the entity, or null to admit every entity.
+   */
+  public static <E extends MindTreeEntity<?, ?>> E createEntity (
+      User user,
+      final MindTreeForm form,
+      final Class<E> entityClass,
+      EntityGuard<? super E> guard)
+      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+      BadRequestException {
     checkSignedIn(user);
     final String userId = getUserId(user);
-    // Start a transaction.
-    TxResult<MindTreeEntity> entity = ofy().transact(new Work<TxResult<MindTreeEntity>>() {
-      @Override
-      public TxResult<MindTreeEntity> run() {
-        try {
-          Key<MindTreeEntity> key = factory().allocateId(MindTreeEntity.class);
-          Class[] cArg = new Class[3];
-          cArg[0] = Long.class;
-          cArg[1] = String.class;
-          cArg[2] = form.getClass();
-          MindTreeEntity entity = entityClass.getDeclaredConstructor(cArg).newInstance(
-              key.getId(),
-              userId,
-              form);
-          ofy().save().entity(entity).now();
-          return new TxResult<>(entity);
-        } catch (Exception e) {
-          return new TxResult<>(e);
+    final E newEntity;
+    try {
+      Key<?> key = OfyService.allocateIds(1).iterator().next();
+      newEntity = OfyService.createEntity(entityClass, key.getId(), userId, form);
+    } catch (IllegalArgumentException e) {
+      // The form references a malformed key.
+      throw new BadRequestException(e.getMessage());
+    }
+    if (guard != null) {
+      guard.admit(newEntity);
+    }
+    E created = null;
+    try {
+      // Start a transaction.
+      TxResult<MindTreeEntity> entity = ofy().transact(new Work<TxResult<MindTreeEntity>>() {
+        @Override
+        public TxResult<MindTreeEntity> run() {
+          try {
+            MindTreeEntity entity = newEntity;
+            ofy().save().entity(entity).now();
+            // Counted if and only if the save commits.
+            Counters.get().applyLater(new Counters.Deltas().add(entityClass, userId, 1));
+            return new TxResult<>(entity);
+          } catch (Exception e) {
+            return new TxResult<>(e);
+          }
         }
+      });
+      created = entityClass.cast(entity.getResult());
+    } finally {
+      if (created == null && guard != null) {
+        guard.release(newEntity);
       }
-    });
-    return entityClass.cast(entity.getResult());
+    }
+    QueryCache.get().invalidate(entityClass);
+    return created;
+  }
+
+  /**
+   * Creates many entities of one kind with a single id allocation and parallel batched puts.
+   *
+   * Items are independent: a missing or invalid form only fails its own item, and a failed put
+   * only fails the items of its chunk. The entities are not written in a transaction.
+   *
+   * @param user A User object injected by the cloud endpoints.
+   * @param forms The client side forms, one per entity.
+   * @param entityClass The class of the entities to create.
+   * @param result The empty result to fill with the created keys and the failed items.
+   * @return the created entities in request order.
+   * @throws UnauthorizedException when the user is not signed in.
+   * @throws BadRequestException when the batch is empty or too large.
+   */
+  public static <E extends MindTreeEntity<?, ?>> List<E> createEntities(
+      User user,
+      List<? extends MindTreeForm> forms,
+      Class<E> entityClass,
+      BatchResult result)
+      throws UnauthorizedException, BadRequestException {
+    return createEntities(user, forms, entityClass, null, result);
+  }
+
+  /**
+   * Creates many entities like {@link #createEntities(User, List, Class, BatchResult)}, each
+   * admitted by the given guard before it is saved. An item the guard rejects fails alone.
+   *
+   * @param guard The guard to admit the entities, or null to admit every entity.
+   */
+  public static <E extends MindTreeEntity<?, ?>> List<E> createEntities(
+      User user,
+      List<? extends MindTreeForm> forms,
+      Class<E> entityClass,
+      EntityGuard<? super E> guard,
+      BatchResult result)
+      throws UnauthorizedException, BadRequestException {
+    checkSignedIn(user);
+    if (forms == null || forms.isEmpty()) {
+      throw new BadRequestException("No items to create");
+    }
+    if (forms.size() > MAX_BATCH_SIZE) {
+      throw new BadRequestException("At most " + MAX_BATCH_SIZE + " items per batch");
+    }
+    String userId = getUserId(user);
+
+    // Reserve the ids of the whole batch in one call, from the range createEntity uses.
+    Iterator<? extends Key<?>> keys = OfyService.allocateIds(forms.size()).iterator();
+    List<E> entities = new ArrayList<>(forms.size());
+    List<Integer> entityIndexes = new ArrayList<>(forms.size());
+    String[] failures = new String[forms.size()];
+    for (int i = 0; i < forms.size(); i++) {
+      Key<?> key = keys.next();
+      MindTreeForm form = forms.get(i);
+      if (form == null) {
+        failures[i] = "Missing item";
+        continue;
+      }
+      try {
+        E entity = OfyService.createEntity(entityClass, key.getId(), userId, form);
+        if (guard != null) {
+          guard.admit(entity);
+        }
+        entities.add(entity);
+        entityIndexes.add(i);
+      } catch (RuntimeException | NotFoundException | ConflictException e) {
+        failures[i] = String.valueOf(e.getMessage());
+      }
+    }
+
+    // Issue all chunks before waiting on any of them.
+    List<Result<Map<Key<E>, E>>> saves = new ArrayList<>();
+    for (int from = 0; from < entities.size(); from += SAVE_CHUNK_SIZE) {
+      int to = Math.min(from + SAVE_CHUNK_SIZE, entities.size());
+      saves.add(ofy().save().entities(entities.subList(from, to)));
+    }
+    Object[] created = new Object[forms.size()];
+    for (int chunk = 0; chunk < saves.size(); chunk++) {
+      int from = chunk * SAVE_CHUNK_SIZE;
+      int to = Math.min(from + SAVE_CHUNK_SIZE, entities.size());
+      try {
+        saves.get(chunk).now();
+        for (int i = from; i < to; i++) {
+          created[entityIndexes.get(i)] = entities.get(i);
+        }
+      } catch (RuntimeException e) {
+        for (int i = from; i < to; i++) {
+          failures[entityIndexes.get(i)] = "Failed to save: " + e.getMessage();
+          if (guard != null) {
+            guard.release(entities.get(i));
+          }
+        }
+      }
+    }
+    QueryCache.get().invalidate(entityClass);
+
+    List<E> createdEntities = new ArrayList<>(entities.size());
+    for (int i = 0; i < forms.size(); i++) {
+      if (created[i] != null) {
+        E entity = entityClass.cast(created[i]);
+        createdEntities.add(entity);
+        result.getKeys().add(entity.getWebsafeKey());
+      } else {
+        result.getKeys().add(null);
+        result.getErrors().add(new BatchResult.ItemError(i, failures[i]));
+      }
+    }
+    if (!createdEntities.isEmpty()) {
+      Counters.get().applyLater(
+          new Counters.Deltas().add(entityClass, userId, createdEntities.size()));
+    }
+    return createdEntities;
   }
 
   public static MindTreeEntity updateEntity (
@@ -169,7 +374,254 @@ class ApiUtils {
       }
     });
     // NotFoundException or ForbiddenException is actually thrown here.
-    return entityClass.cast(result.getResult());
+    MindTreeEntity updated = entityClass.cast(result.getResult());
+    QueryCache.get().invalidate(entityClass);
+    return updated;
+  }
+
+  /**
+   * Runs one page of a query, resuming from the cursor encoded in the page token.
+   *
+   * The results are streamed from the query iterator in a single batch, so the memory used per
+   * request is bounded by the page size instead of the size of the kind.
+   *
+   * @param query The query to page through.
+   * @param pageToken The nextPageToken of the previous page, or null for the first page.
+   * @param limit The page size, capped at {@link #MAX_PAGE_SIZE}.
+   * @return the page with a nextPageToken when there may be more results.
+   * @throws BadRequestException when the limit or the page token is invalid.
+   */
+  public static <T> CollectionResponse<T> queryPage(Query<T> query, String pageToken, int limit)
+      throws BadRequestException {
+    int pageSize = pageSize(limit);
+    QueryResultIterator<T> iterator =
+        startAt(query, pageToken).limit(pageSize).chunk(pageSize).iterator();
+    List<T> items = new ArrayList<>(pageSize);
+    while (iterator.hasNext()) {
+      items.add(iterator.next());
+    }
+    String nextPageToken = null;
+    if (items.size() == pageSize) {
+      nextPageToken = iterator.getCursor().toWebSafeString();
+    }
+    return CollectionResponse.<T>builder()
+        .setItems(items)
+        .setNextPageToken(nextPageToken)
+        .build();
+  }
+
+  /**
+   * Runs one page of a query through the {@link QueryCache}.
+   *
+   * On a miss the page is read with a keys-only query and its keys are cached. Either way the
+   * entities are batch loaded by key, which goes through the Objectify entity cache. Entities
+   * deleted since the page was cached are left out.
+   *
+   * @param kind The entity class the query lists, whose writes invalidate the page.
+   * @param endpoint The name of the endpoint.
+   * @param query The query to page through, not a projection query.
+   * @param pageToken The nextPageToken of the previous page, or null for the first page.
+   * @param limit The page size, capped at {@link #MAX_PAGE_SIZE}.
+   * @param params The other parameters of the endpoint that change the result.
+   * @return the page with a nextPageToken when there may be more results.
+   * @throws BadRequestException when the limit or the page token is invalid.
+   */
+  public static <T> CollectionResponse<T> cachedQueryPage(
+      Class<T> kind, String endpoint, Query<T> query, String pageToken, int limit,
+      Object... params) throws BadRequestException {
+    int pageSize = pageSize(limit);
+    query = startAt(query, pageToken);
+    QueryCache cache = QueryCache.get();
+    String pageKey = cache.pageKey(kind, endpoint, pageSize, pageToken, Arrays.asList(params));
+    QueryCache.Page page = cache.getPage(pageKey);
+    Pipeline pipeline = new Pipeline();
+    if (page == null) {
+      // Asked before the query runs, so that a cached page never started before the write
+      // settled.
+      boolean settled = cache.isSettled(kind);
+      QueryResultIterator<Key<T>> iterator =
+          query.limit(pageSize).chunk(pageSize).keys().iterator();
+      List<com.google.appengine.api.datastore.Key> keys = new ArrayList<>(pageSize);
+      while (iterator.hasNext()) {
+        keys.add(iterator.next().getRaw());
+      }
+      String nextPageToken = null;
+      if (keys.size() == pageSize) {
+        nextPageToken = iterator.getCursor().toWebSafeString();
+      }
+      page = new QueryCache.Page(keys, nextPageToken);
+      if (settled) {
+        // The page is cached while its entities load.
+        pipeline.future(cache.putPage(pageKey, page));
+      }
+    }
+
+    List<Key<T>> keys = new ArrayList<>(page.getKeys().size());
+    for (com.google.appengine.api.datastore.Key key : page.getKeys()) {
+      keys.add(Key.<T>create(key));
+    }
+    Map<Key<T>, T> entities = ofy().load().keys(keys);
+    List<T> items = new ArrayList<>(keys.size());
+    for (Key<T> key : keys) {
+      T entity = entities.get(key);
+      if (entity != null) {
+        items.add(entity);
+      }
+    }
+    pipeline.join();
+    return CollectionResponse.<T>builder()
+        .setItems(items)
+        .setNextPageToken(page.getNextPageToken())
+        .build();
+  }
+
+  static int pageSize(int limit) throws BadRequestException {
+    if (limit < 1) {
+      throw new BadRequestException("limit must be positive");
+    }
+    return Math.min(limit, MAX_PAGE_SIZE);
+  }
+
+  private static <T> Query<T> startAt(Query<T> query, String pageToken)
+      throws BadRequestException {
+    if (pageToken == null || pageToken.isEmpty()) {
+      return query;
+    }
+    try {
+      return query.startAt(Cursor.fromWebSafeString(pageToken));
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid page token: " + pageToken);
+    }
+  }
+
+  /**
+   * Deletes the given keys in chunks, issuing every chunk before waiting on any of them, and
+   * leaves a {@link Tombstone} for each key so that the change feed reports the delete.
+   *
+   * @param keys The keys to delete, of any kinds.
+   */
+  public static void deleteKeys(List<? extends Key<?>> keys) {
+    Pipeline pipeline = new Pipeline();
+    deleteKeys(pipeline, keys);
+    pipeline.join();
+  }
+
+  /**
+   * Issues the deletes of the given keys and the saves of their tombstones in chunks without
+   * waiting on them.
+   *
+   * @param pipeline The pipeline to join the deletes with.
+   * @param keys The keys to delete, of any kinds.
+   */
+  public static void deleteKeys(Pipeline pipeline, List<? extends Key<?>> keys) {
+    for (int from = 0; from < keys.size(); from += SAVE_CHUNK_SIZE) {
+      int to = Math.min(from + SAVE_CHUNK_SIZE, keys.size());
+      List<Tombstone> tombstones = new ArrayList<>(to - from);
+      for (Key<?> key : keys.subList(from, to)) {
+        tombstones.add(new Tombstone(key));
+      }
+      pipeline.add(ofy().save().entities(tombstones));
+      pipeline.add(ofy().delete().keys(keys.subList(from, to)));
+    }
+  }
+
+  /**
+   * Parses the fields parameter of a list endpoint into the properties of a projection query.
+   *
+   * The properties come back in the order of the allowed map, so that every selection maps to
+   * one composite index in datastore-indexes.xml.
+   *
+   * @param fields Comma separated field names, or null to load whole entities.
+   * @param allowed The fields the endpoint can project mapped to their indexed properties, in
+   *     index order.
+   * @return the properties to project, empty to load whole entities.
+   * @throws BadRequestException when a field is not allowed.
+   */
+  public static String[] projection(String fields, Map<String, String> allowed)
+      throws BadRequestException {
+    if (fields == null || fields.trim().isEmpty()) {
+      return new String[0];
+    }
+    List<String> requested = new ArrayList<>();
+    for (String field : fields.split(",")) {
+      String name = field.trim();
+      if (!allowed.containsKey(name)) {
+        throw new BadRequestException(
+            "Unknown field " + name + ", expected some of " + allowed.keySet());
+      }
+      requested.add(name);
+    }
+    List<String> properties = new ArrayList<>();
+    for (Map.Entry<String, String> field : allowed.entrySet()) {
+      if (requested.contains(field.getKey())) {
+        properties.add(field.getValue());
+      }
+    }
+    return properties.toArray(new String[properties.size()]);
+  }
+
+  /**
+   * Admits a call that needs a signed in user through the {@link AdmissionControl}, before any
+   * work is done.
+   *
+   * @param user A User object injected by the cloud endpoints, null when not signed in.
+   * @param expensiveCost The weight of the call in the expensive budget, see {@link #cost(int)}.
+   * @throws UnauthorizedException when the user is not signed in, before taking any tokens.
+   * @throws ServiceUnavailableException with a Retry-After header when the user is over budget.
+   */
+  static void admit(User user, int expensiveCost)
+      throws UnauthorizedException, ServiceUnavailableException {
+    checkSignedIn(user);
+    admit(getUserId(user), expensiveCost);
+  }
+
+  /**
+   * Admits a call open to callers who are not signed in through the {@link AdmissionControl},
+   * before any work is done. Those callers are admitted per client address, so that one client
+   * over its budget does not reject the others.
+   *
+   * @param user A User object injected by the cloud endpoints, null when not signed in.
+   * @param request The request injected by the cloud endpoints, null when called directly.
+   * @param expensiveCost The weight of the call in the expensive budget, see {@link #cost(int)}.
+   * @throws ServiceUnavailableException with a Retry-After header when the caller is over budget.
+   */
+  static void admit(User user, HttpServletRequest request, int expensiveCost)
+      throws ServiceUnavailableException {
+    admit(user != null ? getUserId(user)
+        : AdmissionControl.anonymousCaller(request == null ? null : request.getRemoteAddr()),
+        expensiveCost);
+  }
+
+  private static void admit(String caller, int expensiveCost) throws ServiceUnavailableException {
+    long retryAfterMillis = AdmissionControl.get().admit(caller, expensiveCost);
+    if (retryAfterMillis > 0) {
+      throw new TooManyRequestsException(retryAfterMillis);
+    }
+  }
+
+  /**
+   * @param entities How many entities a call reads or writes, such as its page or batch size.
+   * @return the weight of the call in the expensive budget, 0 for fewer than
+   *     {@link #ENTITIES_PER_COST} entities.
+   */
+  static int cost(int entities) {
+    return Math.max(0, Math.min(entities, MAX_PAGE_SIZE)) / ENTITIES_PER_COST;
+  }
+
+  /**
+   * @return the weight of a batch call in the expensive budget, see {@link #cost(int)}.
+   */
+  static int cost(Collection<?> items) {
+    return items == null ? 0 : cost(items.size());
+  }
+
+  /**
+   * @param results How many nodes a traversal or search of an in-memory index may return.
+   * @return the weight of the call in the expensive budget, at least 1 because it walks more of
+   *     the index than it returns.
+   */
+  static int scanCost(int results) {
+    return 1 + cost(results);
   }
 
   public static void checkSignedIn(User user) throws UnauthorizedException {
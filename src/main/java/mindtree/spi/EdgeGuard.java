@@ -0,0 +1,137 @@
+package main.java.mindtree.spi;
+
+import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.NotFoundException;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import main.java.mindtree.domain.Edge;
+import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.form.EdgeForm;
+import main.java.mindtree.service.KnowledgeGraphIndex;
+import main.java.mindtree.service.Pipeline;
+import main.java.mindtree.util.Keys;
+
+import static main.java.mindtree.service.OfyService.ofy;
+
+/**
+ * Admits a new edge only between existing nodes, when no edge joins the same parent and child
+ * yet and the edge closes no dependency cycle.
+ *
+ * Duplicates are looked up in the datastore, since the {@link KnowledgeGraphIndex} of this
+ * instance misses the edges created through other instances until it is rebuilt. Cycles are
+ * checked against the index. Admitting an edge adds it to the index, so the edges of one batch
+ * are checked against each other as well.
+ */
+class EdgeGuard implements ApiUtils.EntityGuard<Edge> {
+  private final Map<Key<KnowledgeNode>, KnowledgeNode> nodes;
+
+  /**
+   * The keys-only queries for the edges already joining a parent and child, by {@link #pair}.
+   */
+  private final Map<String, List<Result<List<Key<Edge>>>>> existing = new HashMap<>();
+
+  /**
+   * Loads the nodes of all the forms in one batch, and starts the queries for the edges already
+   * joining their nodes.
+   */
+  EdgeGuard(Iterable<? extends EdgeForm> forms) {
+    Set<Key<KnowledgeNode>> keys = new HashSet<>();
+    Pipeline pipeline = new Pipeline();
+    for (EdgeForm form : forms) {
+      Key<KnowledgeNode> parentKey = parseKey(form.getParentKey());
+      Key<KnowledgeNode> childKey = parseKey(form.getChildKey());
+      if (parentKey == null || childKey == null) {
+        continue;
+      }
+      keys.add(parentKey);
+      keys.add(childKey);
+      String pair = pair(parentKey, childKey);
+      if (!existing.containsKey(pair)) {
+        // Rows not yet rewritten by MigrateKeysServlet still hold the legacy string properties.
+        List<Result<List<Key<Edge>>>> queries = new ArrayList<>();
+        queries.add(pipeline.query(edgesWhere("parent", parentKey, "child", childKey)));
+        queries.add(pipeline.query(edgesWhere(
+            "parentKey", parentKey.getString(), "childKey", childKey.getString())));
+        existing.put(pair, queries);
+      }
+    }
+    nodes = ofy().load().keys(keys);
+  }
+
+  private static Key<KnowledgeNode> parseKey(String websafeKey) {
+    try {
+      return Keys.parse(KnowledgeNode.class, websafeKey);
+    } catch (IllegalArgumentException e) {
+      // Creating the edge reports the malformed key.
+      return null;
+    }
+  }
+
+  private static Iterator<Key<Edge>> edgesWhere(
+      String parentProperty, Object parent, String childProperty, Object child) {
+    return ofy().load().type(Edge.class)
+        .filter(parentProperty, parent)
+        .filter(childProperty, child)
+        .limit(1)
+        .keys()
+        .iterator();
+  }
+
+  private static String pair(Key<KnowledgeNode> parentKey, Key<KnowledgeNode> childKey) {
+    return parentKey.getString() + "/" + childKey.getString();
+  }
+
+  private boolean exists(Key<KnowledgeNode> parentKey, Key<KnowledgeNode> childKey) {
+    List<Result<List<Key<Edge>>>> queries = existing.get(pair(parentKey, childKey));
+    if (queries == null) {
+      return false;
+    }
+    for (Result<List<Key<Edge>>> query : queries) {
+      if (!query.now().isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void admit(Edge edge) throws NotFoundException, ConflictException {
+    Key<KnowledgeNode> parentKey = edge.getParent().getKey();
+    Key<KnowledgeNode> childKey = edge.getChild().getKey();
+    if (!nodes.containsKey(parentKey)) {
+      throw new NotFoundException("No knowledge node found with key: " + edge.getParentKey());
+    }
+    if (!nodes.containsKey(childKey)) {
+      throw new NotFoundException("No knowledge node found with key: " + edge.getChildKey());
+    }
+    if (exists(parentKey, childKey)) {
+      throw new ConflictException("An edge from " + edge.getParentKey() + " to "
+          + edge.getChildKey() + " already exists");
+    }
+    switch (KnowledgeGraphIndex.get().tryAddEdge(
+        edge.getId(), parentKey.getId(), childKey.getId(), edge.getStrength())) {
+      case DUPLICATE:
+        throw new ConflictException("An edge from " + edge.getParentKey() + " to "
+            + edge.getChildKey() + " already exists");
+      case CYCLE:
+        throw new ConflictException("An edge from " + edge.getParentKey() + " to "
+            + edge.getChildKey() + " closes a cycle");
+      default:
+        break;
+    }
+  }
+
+  @Override
+  public void release(Edge edge) {
+    KnowledgeGraphIndex.get().removeEdge(edge);
+  }
+}
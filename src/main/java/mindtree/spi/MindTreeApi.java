@@ -4,40 +4,87 @@ import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
 import com.google.api.server.spi.config.DefaultValue;
+import com.google.api.server.spi.config.Nullable;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
+import com.google.api.server.spi.response.ServiceUnavailableException;
 import com.google.api.server.spi.response.UnauthorizedException;
 import com.google.appengine.api.datastore.Query.Filter;
 import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.datastore.Query.FilterPredicate;
 import com.google.appengine.api.users.User;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.inject.Named;
+import javax.servlet.http.HttpServletRequest;
 
 import main.java.mindtree.Constants;
 import main.java.mindtree.domain.Edge;
 import main.java.mindtree.domain.KnowledgeNode;
+import main.java.mindtree.domain.Mastery;
+import main.java.mindtree.domain.NodeNeighborhood;
 import main.java.mindtree.domain.Quiz;
 import main.java.mindtree.domain.QuestionTag;
+import main.java.mindtree.form.EdgeBatchForm;
 import main.java.mindtree.form.EdgeForm;
+import main.java.mindtree.form.KnowledgeNodeBatchForm;
 import main.java.mindtree.form.KnowledgeNodeForm;
 import main.java.mindtree.domain.Profile;
 import main.java.mindtree.form.ProfileForm;
+import main.java.mindtree.form.QuestionTagBatchForm;
 import main.java.mindtree.form.QuestionTagForm;
 import main.java.mindtree.form.QuizForm;
+import main.java.mindtree.form.QuizResultForm;
+import main.java.mindtree.response.BatchResult;
+import main.java.mindtree.response.Changes;
+import main.java.mindtree.response.DeleteReport;
+import main.java.mindtree.response.EntityCounts;
+import main.java.mindtree.response.LearningPath;
+import main.java.mindtree.response.MasteryReport;
+import main.java.mindtree.response.NodeAdjacency;
+import main.java.mindtree.response.NodeView;
+import main.java.mindtree.response.SearchHit;
+import main.java.mindtree.response.Subgraph;
+import main.java.mindtree.service.AdmissionControl;
+import main.java.mindtree.service.ChangeFeed;
+import main.java.mindtree.service.CompactGraph;
+import main.java.mindtree.service.EdgeStrengths;
+import main.java.mindtree.service.Counters;
+import main.java.mindtree.service.GraphAnalytics;
+import main.java.mindtree.service.GraphAnalytics.LearningOrder;
+import main.java.mindtree.service.KnowledgeGraphIndex;
+import main.java.mindtree.service.KnowledgeGraphIndex.Neighbors;
+import main.java.mindtree.service.KnowledgeGraphIndex.Traversal;
+import main.java.mindtree.service.MasteryEngine;
+import main.java.mindtree.service.Neighborhoods;
+import main.java.mindtree.service.NodeSearchIndex;
+import main.java.mindtree.service.Pipeline;
+import main.java.mindtree.service.QueryCache;
+import main.java.mindtree.util.Keys;
 
 import static main.java.mindtree.service.OfyService.ofy;
 
 /**
  * Defines mind tree APIs.
+ *
+ * Calls with a user parameter are admitted by the {@link AdmissionControl} before any work is
+ * done, signed in or not. A user over budget gets a 503 with a Retry-After header.
  */
 @Api(name = "mindTreeApi", version = "v1",
     scopes = { Constants.EMAIL_SCOPE }, clientIds = {
@@ -47,6 +94,23 @@ import static main.java.mindtree.service.OfyService.ofy;
 public class MindTreeApi {
 
   private static final String DEFAULT_QUERY_LIMIT = "10";
+  private static final String DEFAULT_TRAVERSAL_DEPTH = "3";
+  private static final String DEFAULT_TRAVERSAL_NODES = "200";
+  private static final int MAX_TRAVERSAL_NODES = 2000;
+  private static final int MAX_SEARCH_HITS = 50;
+
+  // The fields list endpoints can read with projection queries and their properties, in
+  // composite index order.
+  private static final Map<String, String> EDGE_FIELDS = new LinkedHashMap<>();
+  private static final Map<String, String> QUESTION_TAG_FIELDS = new LinkedHashMap<>();
+
+  static {
+    EDGE_FIELDS.put("parentKey", "parent");
+    EDGE_FIELDS.put("childKey", "child");
+    EDGE_FIELDS.put("strength", "strength");
+    QUESTION_TAG_FIELDS.put("nodeKey", "node");
+    QUESTION_TAG_FIELDS.put("strength", "strength");
+  }
   private static final Logger LOG = Logger.getLogger(MindTreeApi.class.getName());
 
   private static String extractDefaultDisplayNameFromEmail(String email) {
@@ -79,8 +143,9 @@ public class MindTreeApi {
    * @throws UnauthorizedException when the User object is null.
    */
   @ApiMethod(name = "getProfile", path = "profile", httpMethod = HttpMethod.GET)
-  public Profile getProfile(final User user) throws UnauthorizedException {
-    ApiUtils.checkSignedIn(user);
+  public Profile getProfile(final User user)
+      throws UnauthorizedException, ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
     return ofy().load().key(Key.create(Profile.class, ApiUtils.getUserId(user))).now();
   }
 
@@ -94,16 +159,17 @@ public class MindTreeApi {
    */
   @ApiMethod(name = "saveProfile", path = "profile", httpMethod = HttpMethod.POST)
   public Profile saveProfile(final User user, final ProfileForm profileForm)
-      throws UnauthorizedException {
-    ApiUtils.checkSignedIn(user);
+      throws UnauthorizedException, ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
+    String userId = ApiUtils.getUserId(user);
     String displayName = profileForm.getDisplayName();
 
-    Profile profile = ofy().load().key(Key.create(Profile.class, ApiUtils.getUserId(user))).now();
+    Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
     if (profile == null) {
       if (displayName == null) {
         displayName = extractDefaultDisplayNameFromEmail(user.getEmail());
       }
-      profile = new Profile(ApiUtils.getUserId(user), displayName, user.getEmail());
+      profile = new Profile(userId, displayName, user.getEmail());
     } else {
       profile.update(displayName);
     }
@@ -130,8 +196,13 @@ public class MindTreeApi {
   public KnowledgeNode createKnowledgeNode(
       final User user,
       final KnowledgeNodeForm knowledgeNodeForm)
-      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
-    return (KnowledgeNode) ApiUtils.createEntity(user, knowledgeNodeForm, KnowledgeNode.class);
+      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+      BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
+    KnowledgeNode node =
+        (KnowledgeNode) ApiUtils.createEntity(user, knowledgeNodeForm, KnowledgeNode.class);
+    NodeSearchIndex.get().put(node);
+    return node;
   }
 
   /**
@@ -140,14 +211,83 @@ public class MindTreeApi {
    * @param user A user who invokes this method, null when the user is not signed in.
    * @param edgeForm An EdgeForm object representing user's inputs.
    * @throws UnauthorizedException when the user is not signed in.
+   * @throws BadRequestException when the parent or child key is malformed or the strength is not
+   *     within 0 and 1.
+   * @throws NotFoundException when the parent or child node does not exist.
+   * @throws ConflictException when an edge from the parent to the child already exists or the
+   *     edge would close a dependency cycle.
    */
   @ApiMethod(
       name = "createEdge",
       path = "createEdge",
       httpMethod = HttpMethod.POST)
   public Edge createEdge(final User user, final EdgeForm edgeForm)
-      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
-    return (Edge) ApiUtils.createEntity(user, edgeForm, Edge.class);
+      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+      BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
+    Edge edge = ApiUtils.createEntity(user, edgeForm, Edge.class,
+        new EdgeGuard(Collections.singletonList(edgeForm)));
+    refreshNeighborhoods(Collections.singletonList(edge));
+    return edge;
+  }
+
+  /**
+   * Creates many knowledge nodes in one call.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param batchForm The forms of the nodes to create, at most 1000.
+   * @return the keys of the created nodes and the items that failed.
+   * @throws UnauthorizedException when the user is not signed in.
+   * @throws BadRequestException when the batch is empty or too large.
+   */
+  @ApiMethod(
+      name = "createKnowledgeNodes",
+      path = "createKnowledgeNodes",
+      httpMethod = HttpMethod.POST)
+  public BatchResult createKnowledgeNodes(
+      final User user,
+      final KnowledgeNodeBatchForm batchForm)
+      throws UnauthorizedException, BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, ApiUtils.cost(batchForm.getItems()));
+    BatchResult result = new BatchResult();
+    List<KnowledgeNode> nodes =
+        ApiUtils.createEntities(user, batchForm.getItems(), KnowledgeNode.class, result);
+    for (KnowledgeNode node : nodes) {
+      NodeSearchIndex.get().put(node);
+    }
+    return result;
+  }
+
+  /**
+   * Creates many edges in one call.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param batchForm The forms of the edges to create, at most 1000.
+   * @return the keys of the created edges and the items that failed, among them the edges whose
+   *     nodes do not exist, duplicate edges and edges that would close a dependency cycle.
+   * @throws UnauthorizedException when the user is not signed in.
+   * @throws BadRequestException when the batch is empty or too large.
+   */
+  @ApiMethod(
+      name = "createEdges",
+      path = "createEdges",
+      httpMethod = HttpMethod.POST)
+  public BatchResult createEdges(final User user, final EdgeBatchForm batchForm)
+      throws UnauthorizedException, BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, ApiUtils.cost(batchForm.getItems()));
+    BatchResult result = new BatchResult();
+    refreshNeighborhoods(ApiUtils.createEntities(user, batchForm.getItems(), Edge.class,
+        new EdgeGuard(batchForm.getItems()), result));
+    return result;
+  }
+
+  private static void refreshNeighborhoods(List<Edge> edges) {
+    List<Long> nodeIds = new ArrayList<>();
+    for (Edge edge : edges) {
+      nodeIds.add(edge.getParent().getKey().getId());
+      nodeIds.add(edge.getChild().getKey().getId());
+    }
+    Neighborhoods.get().refreshLater(nodeIds);
   }
 
   /**
@@ -170,14 +310,22 @@ public class MindTreeApi {
       final KnowledgeNodeForm knowledgeNodeForm,
       @Named("websafeKnowledgeNodeKey")
       final String websafeKnowledgeNodeKey)
-      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
-    return (KnowledgeNode) ApiUtils.updateEntity(
+      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+      ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
+    KnowledgeNode node = (KnowledgeNode) ApiUtils.updateEntity(
         user, knowledgeNodeForm, websafeKnowledgeNodeKey, KnowledgeNode.class);
+    NodeSearchIndex.get().put(node);
+    Neighborhoods.get().refreshWithNeighbors(node.getId());
+    return node;
   }
 
   /**
    * Returns a knowledge node object with the given web safe key.
    *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
    * @param websafeKnowledgeNodeKey The String representation of the knowledge node key.
    * @return a knowledge node object with the given web safe key.
    * @throws NotFoundException when there is no knowledge node with the given key.
@@ -188,8 +336,11 @@ public class MindTreeApi {
       httpMethod = HttpMethod.GET
   )
   public KnowledgeNode getKnowledgeNode(
+      final User user,
+      final HttpServletRequest request,
       @Named("websafeKnowledgeNodeKey") final String websafeKnowledgeNodeKey)
-      throws NotFoundException {
+      throws NotFoundException, ServiceUnavailableException {
+    ApiUtils.admit(user, request, 0);
     Key<KnowledgeNode> knowledgeNodeKey = Key.create(websafeKnowledgeNodeKey);
     KnowledgeNode knowledgeNode = ofy().load().key(knowledgeNodeKey).now();
     if (knowledgeNode == null) {
@@ -199,9 +350,55 @@ public class MindTreeApi {
   }
 
   /**
-   * Deletes a knowledge node object with the given web safe key.
+   * Searches the names and descriptions of the knowledge nodes in the in-memory search index,
+   * for typeahead.
+   *
+   * Every word of the query must match a word of the node or the start of one. Matches in the
+   * name rank above matches in the description only, and whole words above prefixes.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
+   * @param query The text typed so far.
+   * @param limit The number of hits to return, capped at 50.
+   * @return the best matching nodes, best first.
+   * @throws BadRequestException when the limit is not positive.
+   */
+  @ApiMethod(
+      name = "searchKnowledgeNodes",
+      path = "searchKnowledgeNodes",
+      httpMethod = HttpMethod.GET
+  )
+  public CollectionResponse<SearchHit> searchKnowledgeNodes(
+      final User user,
+      final HttpServletRequest request,
+      @Named("query") final String query,
+      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit)
+      throws BadRequestException, ServiceUnavailableException {
+    if (limit < 1) {
+      throw new BadRequestException("limit must be positive");
+    }
+    ApiUtils.admit(user, request, ApiUtils.scanCost(Math.min(limit, MAX_SEARCH_HITS)));
+    List<NodeSearchIndex.Hit> found =
+        NodeSearchIndex.get().search(query, Math.min(limit, MAX_SEARCH_HITS));
+    List<SearchHit> hits = new ArrayList<>(found.size());
+    for (NodeSearchIndex.Hit hit : found) {
+      hits.add(new SearchHit(Key.create(KnowledgeNode.class, hit.getNodeId()).getString(),
+          hit.getName(), hit.getScore()));
+    }
+    return CollectionResponse.<SearchHit>builder().setItems(hits).build();
+  }
+
+  /**
+   * Deletes a knowledge node together with its edges and question tags.
+   *
+   * The queries for the parent edges, the child edges and the tags run in parallel while the node
+   * is loaded, and every delete is issued as soon as its keys are known. The queries project the
+   * creator of each row, to count it off, so no cascaded entity is read whole.
+   *
    * @param user A user who invokes this method, null when the user is not signed in.
    * @param websafeKnowledgeNodeKey The String representation of the key.
+   * @return how many nodes, edges and question tags were deleted.
    * @throws NotFoundException when there is no knowledge node with the given key.
    * @throws UnauthorizedException when user is not logged in.
    */
@@ -210,20 +407,78 @@ public class MindTreeApi {
       path = "deleteKnowledgeNode/{websafeKnowledgeNodeKey}",
       httpMethod = HttpMethod.DELETE
   )
-  public void deleteKnowledgeNode(
+  public DeleteReport deleteKnowledgeNode(
       final User user,
       @Named("websafeKnowledgeNodeKey") final String websafeKnowledgeNodeKey)
-      throws NotFoundException, UnauthorizedException {
-    ApiUtils.checkSignedIn(user);
+      throws NotFoundException, UnauthorizedException, ServiceUnavailableException {
+    ApiUtils.admit(user, ApiUtils.CASCADE_DELETE_COST);
     Key<KnowledgeNode> knowledgeNodeKey = Key.create(websafeKnowledgeNodeKey);
+    // Creating the iterators starts the queries. Rows not yet rewritten by MigrateKeysServlet
+    // still hold the node key in the legacy string properties.
+    Pipeline pipeline = new Pipeline();
+    List<Result<List<Edge>>> edgeQueries = new ArrayList<>();
+    edgeQueries.add(pipeline.query(
+        creatorsWhere(Edge.class, "parent", knowledgeNodeKey.getRaw()).iterator()));
+    edgeQueries.add(pipeline.query(
+        creatorsWhere(Edge.class, "child", knowledgeNodeKey.getRaw()).iterator()));
+    edgeQueries.add(pipeline.query(
+        creatorsWhere(Edge.class, "parentKey", websafeKnowledgeNodeKey).iterator()));
+    edgeQueries.add(pipeline.query(
+        creatorsWhere(Edge.class, "childKey", websafeKnowledgeNodeKey).iterator()));
+    List<Result<List<QuestionTag>>> tagQueries = new ArrayList<>();
+    tagQueries.add(pipeline.query(
+        creatorsWhere(QuestionTag.class, "node", knowledgeNodeKey.getRaw()).iterator()));
+    tagQueries.add(pipeline.query(
+        creatorsWhere(QuestionTag.class, "nodeKey", websafeKnowledgeNodeKey).iterator()));
     KnowledgeNode knowledgeNode = ofy().load().key(knowledgeNodeKey).now();
     if (knowledgeNode == null) {
       throw new NotFoundException("No knowledge node found with key: " + websafeKnowledgeNodeKey);
-    } else {
-      Set<Edge> relatedEdges = getEdgesForNode(websafeKnowledgeNodeKey);
-      ofy().delete().keys(knowledgeNodeKey).now();
-      ofy().delete().entities(relatedEdges).now();
     }
+
+    // Each delete starts as soon as its keys are known, the node delete right away. The edges and
+    // tags are counted off the users who created them.
+    ApiUtils.deleteKeys(pipeline, Collections.singletonList(knowledgeNodeKey));
+    Counters.Deltas deltas =
+        new Counters.Deltas().add(KnowledgeNode.class, knowledgeNode.getCreatedBy(), -1);
+    Set<Key<QuestionTag>> tagKeys = new HashSet<>();
+    for (Result<List<QuestionTag>> tagQuery : tagQueries) {
+      for (QuestionTag tag : tagQuery.now()) {
+        if (tagKeys.add(Key.create(QuestionTag.class, tag.getId()))) {
+          deltas.add(QuestionTag.class, tag.getCreatedBy(), -1);
+        }
+      }
+    }
+    ApiUtils.deleteKeys(pipeline, new ArrayList<>(tagKeys));
+    // A self-referencing edge matches both edge queries.
+    Set<Key<Edge>> edgeKeys = new HashSet<>();
+    for (Result<List<Edge>> edgeQuery : edgeQueries) {
+      for (Edge edge : edgeQuery.now()) {
+        if (edgeKeys.add(Key.create(Edge.class, edge.getId()))) {
+          deltas.add(Edge.class, edge.getCreatedBy(), -1);
+        }
+      }
+    }
+    ApiUtils.deleteKeys(pipeline, new ArrayList<>(edgeKeys));
+    pipeline.join();
+    int tagCount = tagKeys.size();
+    Counters.get().applyLater(deltas);
+    QueryCache.get().invalidate(KnowledgeNode.class, Edge.class, QuestionTag.class);
+    // Drops the neighborhood of the node and the node from those of its neighbors.
+    Neighborhoods.get().refreshWithNeighbors(knowledgeNodeKey.getId());
+    KnowledgeGraphIndex.get().removeNode(knowledgeNodeKey.getId());
+    NodeSearchIndex.get().remove(knowledgeNodeKey.getId());
+    return new DeleteReport(1, edgeKeys.size(), tagCount);
+  }
+
+  /**
+   * @return a query for the rows matching the filter, projected on their creator. Projection
+   *     queries cost as little as keys-only ones.
+   */
+  private static <T> Query<T> creatorsWhere(Class<T> entityClass, String property, Object value) {
+    return ofy().load().type(entityClass)
+        .filter(new FilterPredicate(property, FilterOperator.EQUAL, value))
+        .project("createdBy")
+        .chunk(ApiUtils.KEYS_CHUNK_SIZE);
   }
 
   /**
@@ -233,38 +488,340 @@ public class MindTreeApi {
    * @param edgeForm An EdgeForm object representing user's inputs.
    * @throws NotFoundException when there is no edge with the given parent and child keys.
    * @throws UnauthorizedException when user is not logged in.
+   * @throws BadRequestException when the parent or child key is malformed.
    */
   @ApiMethod(
       name = "deleteEdges",
       path = "deleteEdges",
       httpMethod = HttpMethod.DELETE)
   public void deleteEdges(final User user, final EdgeForm edgeForm)
-      throws NotFoundException, UnauthorizedException {
-    ApiUtils.checkSignedIn(user);
-    final Filter parentKeyFilter =
-        new FilterPredicate("parentKey", FilterOperator.EQUAL, edgeForm.getParentKey());
-    final Filter childKeyFilter =
-        new FilterPredicate("childKey", FilterOperator.EQUAL, edgeForm.getChildKey());
-    List<Edge> edges = ofy().load().type(Edge.class)
-        .filter(parentKeyFilter)
-        .filter(childKeyFilter)
-        .list();
-    ofy().delete().entities(edges).now();
+      throws NotFoundException, UnauthorizedException, BadRequestException,
+      ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
+    Key<KnowledgeNode> parentKey;
+    Key<KnowledgeNode> childKey;
+    try {
+      parentKey = Keys.parse(KnowledgeNode.class, edgeForm.getParentKey());
+      childKey = Keys.parse(KnowledgeNode.class, edgeForm.getChildKey());
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+    // Both queries run at once. Also match rows not yet rewritten by MigrateKeysServlet.
+    // The queries project the creators of the edges, to count them off.
+    Pipeline pipeline = new Pipeline();
+    List<Result<List<Edge>>> edgeQueries = new ArrayList<>();
+    edgeQueries.add(pipeline.query(ofy().load().type(Edge.class)
+        .filter(new FilterPredicate("parentKey", FilterOperator.EQUAL, edgeForm.getParentKey()))
+        .filter(new FilterPredicate("childKey", FilterOperator.EQUAL, edgeForm.getChildKey()))
+        .project("createdBy")
+        .iterator()));
+    edgeQueries.add(pipeline.query(ofy().load().type(Edge.class)
+        .filter(new FilterPredicate("parent", FilterOperator.EQUAL, parentKey.getRaw()))
+        .filter(new FilterPredicate("child", FilterOperator.EQUAL, childKey.getRaw()))
+        .project("createdBy")
+        .iterator()));
+    Set<Key<Edge>> deletedKeys = new HashSet<>();
+    Counters.Deltas deltas = new Counters.Deltas();
+    for (Result<List<Edge>> edgeQuery : edgeQueries) {
+      for (Edge edge : edgeQuery.now()) {
+        if (deletedKeys.add(Key.create(Edge.class, edge.getId()))) {
+          deltas.add(Edge.class, edge.getCreatedBy(), -1);
+        }
+      }
+    }
+    ApiUtils.deleteKeys(pipeline, new ArrayList<>(deletedKeys));
+    pipeline.join();
+    Counters.get().applyLater(deltas);
+    QueryCache.get().invalidate(Edge.class);
+    for (Key<Edge> edgeKey : deletedKeys) {
+      KnowledgeGraphIndex.get().removeEdge(edgeKey.getId(), parentKey.getId(), childKey.getId());
+    }
+    if (!deletedKeys.isEmpty()) {
+      Neighborhoods.get().refreshLater(parentKey.getId(), childKey.getId());
+    }
   }
 
   /**
-   * @param websafeKnowledgeNodeKey the web safe key for a knowledge node
-   * @return a set of edge entities connecting the given node
+   * Nudges the strength of an edge, for signals that adjust it many times per second.
+   *
+   * The nudges of an edge are summed in memcache and written together a few seconds later, see
+   * {@link EdgeStrengths}. The strength stays within 0 and 1. Nudges of an edge that does not
+   * exist are dropped.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param websafeEdgeKey The String representation of the edge key.
+   * @param delta How much to add to the strength, within -1 and 1.
+   * @throws UnauthorizedException when user is not logged in.
+   * @throws BadRequestException when the key is not an edge key or the delta is out of range.
    */
-  private Set<Edge> getEdgesForNode(String websafeKnowledgeNodeKey) {
-    Set<Edge> edges = new HashSet<>();
-    final Filter parentKeyFilter =
-        new FilterPredicate("parentKey", FilterOperator.EQUAL, websafeKnowledgeNodeKey);
-    final Filter childKeyFilter =
-        new FilterPredicate("childKey", FilterOperator.EQUAL, websafeKnowledgeNodeKey);
-    edges.addAll(ofy().load().type(Edge.class).filter(parentKeyFilter).list());
-    edges.addAll(ofy().load().type(Edge.class).filter(childKeyFilter).list());
-    return edges;
+  @ApiMethod(
+      name = "updateEdgeStrength",
+      path = "updateEdgeStrength/{websafeEdgeKey}",
+      httpMethod = HttpMethod.POST)
+  public void updateEdgeStrength(
+      final User user,
+      @Named("websafeEdgeKey") final String websafeEdgeKey,
+      @Named("delta") final double delta)
+      throws UnauthorizedException, BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
+    Key<Edge> edgeKey;
+    try {
+      edgeKey = Keys.parse(Edge.class, websafeEdgeKey);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+    if (!(delta >= -1 && delta <= 1)) {
+      throw new BadRequestException("delta must be within -1 and 1");
+    }
+    EdgeStrengths.get().nudge(edgeKey.getId(), delta);
+  }
+
+  /**
+   * Returns the parents and children of a knowledge node from the in-memory graph index.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
+   * @param websafeKnowledgeNodeKey The String representation of the knowledge node key.
+   * @return the edges connecting the node, seen from the node.
+   * @throws BadRequestException when the key is not a knowledge node key.
+   */
+  @ApiMethod(
+      name = "getNodeAdjacency",
+      path = "getNodeAdjacency/{websafeKnowledgeNodeKey}",
+      httpMethod = HttpMethod.GET
+  )
+  public NodeAdjacency getNodeAdjacency(
+      final User user,
+      final HttpServletRequest request,
+      @Named("websafeKnowledgeNodeKey") final String websafeKnowledgeNodeKey)
+      throws BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, request, 0);
+    long nodeId;
+    try {
+      nodeId = KnowledgeGraphIndex.nodeId(websafeKnowledgeNodeKey);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid knowledge node key: " + websafeKnowledgeNodeKey);
+    }
+    KnowledgeGraphIndex index = KnowledgeGraphIndex.get();
+    NodeAdjacency adjacency = new NodeAdjacency(websafeKnowledgeNodeKey);
+    addLinks(adjacency.getParents(), index.parents(nodeId));
+    addLinks(adjacency.getChildren(), index.children(nodeId));
+    return adjacency;
+  }
+
+  private static void addLinks(List<NodeAdjacency.Link> links, Neighbors neighbors) {
+    for (int i = 0; i < neighbors.size(); i++) {
+      links.add(new NodeAdjacency.Link(
+          Key.create(KnowledgeNode.class, neighbors.nodeId(i)).getString(),
+          Key.create(Edge.class, neighbors.edgeId(i)).getString(),
+          neighbors.strength(i)));
+    }
+  }
+
+  /**
+   * Returns everything the detail page of a knowledge node shows, read from its materialized
+   * neighborhood with one cached key lookup.
+   *
+   * The neighborhood follows changes to the node, its edges and its tags within seconds. A node
+   * whose neighborhood was never built gets it built by this call.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
+   * @param websafeKnowledgeNodeKey The String representation of the knowledge node key.
+   * @return the node, its strongest parents, children and question tags, and their counts.
+   * @throws BadRequestException when the key is not a knowledge node key.
+   * @throws NotFoundException when there is no knowledge node with the given key.
+   */
+  @ApiMethod(
+      name = "getNodeView",
+      path = "getNodeView/{websafeKnowledgeNodeKey}",
+      httpMethod = HttpMethod.GET
+  )
+  public NodeView getNodeView(
+      final User user,
+      final HttpServletRequest request,
+      @Named("websafeKnowledgeNodeKey") final String websafeKnowledgeNodeKey)
+      throws BadRequestException, NotFoundException, ServiceUnavailableException {
+    ApiUtils.admit(user, request, 0);
+    long nodeId;
+    try {
+      nodeId = KnowledgeGraphIndex.nodeId(websafeKnowledgeNodeKey);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid knowledge node key: " + websafeKnowledgeNodeKey);
+    }
+    NodeNeighborhood neighborhood =
+        ofy().load().key(Key.create(NodeNeighborhood.class, nodeId)).now();
+    if (neighborhood == null) {
+      neighborhood = Neighborhoods.get().rebuild(nodeId);
+      if (neighborhood == null) {
+        throw new NotFoundException("No knowledge node found with key: " + websafeKnowledgeNodeKey);
+      }
+    }
+    return new NodeView(neighborhood);
+  }
+
+  /**
+   * Returns the order in which to learn the prerequisites of a knowledge node, computed from the
+   * in-memory graph index.
+   *
+   * Every prerequisite comes after its own prerequisites. Among the nodes that can be learned
+   * next, the one the target depends on most strongly comes first.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
+   * @param websafeKnowledgeNodeKey The String representation of the target node key.
+   * @return the learning path, ending with the target.
+   * @throws BadRequestException when the key is not a knowledge node key.
+   * @throws NotFoundException when there is no knowledge node with the given key.
+   */
+  @ApiMethod(
+      name = "getLearningPath",
+      path = "getLearningPath/{websafeKnowledgeNodeKey}",
+      httpMethod = HttpMethod.GET
+  )
+  public LearningPath getLearningPath(
+      final User user,
+      final HttpServletRequest request,
+      @Named("websafeKnowledgeNodeKey") final String websafeKnowledgeNodeKey)
+      throws BadRequestException, NotFoundException, ServiceUnavailableException {
+    // The prerequisites are not bounded by any parameter, so the call weighs a full page.
+    ApiUtils.admit(user, request, ApiUtils.scanCost(ApiUtils.MAX_PAGE_SIZE));
+    Key<KnowledgeNode> targetKey;
+    try {
+      targetKey = Keys.parse(KnowledgeNode.class, websafeKnowledgeNodeKey);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid knowledge node key: " + websafeKnowledgeNodeKey);
+    }
+    Result<KnowledgeNode> target = ofy().load().key(targetKey);
+    LearningOrder order = GraphAnalytics.get().learningOrder(targetKey.getId());
+    if (target.now() == null) {
+      throw new NotFoundException("No knowledge node found with key: " + websafeKnowledgeNodeKey);
+    }
+
+    LearningPath path = new LearningPath(websafeKnowledgeNodeKey);
+    long[] nodeIds = order.getNodeIds();
+    float[] weights = order.getWeights();
+    for (int i = 0; i < nodeIds.length; i++) {
+      path.getSteps().add(new LearningPath.Step(
+          Key.create(KnowledgeNode.class, nodeIds[i]).getString(), weights[i]));
+    }
+    for (long nodeId : order.getCyclicNodeIds()) {
+      path.getCyclicNodeKeys().add(Key.create(KnowledgeNode.class, nodeId).getString());
+    }
+    return path;
+  }
+
+  /**
+   * Returns the subtree below a knowledge node, i.e. the nodes it depends on, in one call.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
+   * @param websafeKnowledgeNodeKey The String representation of the root node key.
+   * @param maxDepth The number of levels to expand below the root.
+   * @param maxNodes The maximum number of nodes to return, capped at 2000.
+   * @return the reached nodes and the edges among them.
+   * @throws NotFoundException when there is no knowledge node with the given key.
+   * @throws BadRequestException when the key or the limits are invalid.
+   */
+  @ApiMethod(
+      name = "getSubtree",
+      path = "getSubtree/{websafeKnowledgeNodeKey}",
+      httpMethod = HttpMethod.GET
+  )
+  public Subgraph getSubtree(
+      final User user,
+      final HttpServletRequest request,
+      @Named("websafeKnowledgeNodeKey") final String websafeKnowledgeNodeKey,
+      @Named("maxDepth") @DefaultValue(DEFAULT_TRAVERSAL_DEPTH) final int maxDepth,
+      @Named("maxNodes") @DefaultValue(DEFAULT_TRAVERSAL_NODES) final int maxNodes)
+      throws NotFoundException, BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, request, ApiUtils.scanCost(Math.min(maxNodes, MAX_TRAVERSAL_NODES)));
+    return traverse(websafeKnowledgeNodeKey, true, maxDepth, maxNodes);
+  }
+
+  /**
+   * Returns the ancestors of a knowledge node, i.e. the nodes depending on it, in one call.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
+   * @param websafeKnowledgeNodeKey The String representation of the starting node key.
+   * @param maxDepth The number of levels to expand above the node.
+   * @param maxNodes The maximum number of nodes to return, capped at 2000.
+   * @return the reached nodes and the edges among them.
+   * @throws NotFoundException when there is no knowledge node with the given key.
+   * @throws BadRequestException when the key or the limits are invalid.
+   */
+  @ApiMethod(
+      name = "getAncestors",
+      path = "getAncestors/{websafeKnowledgeNodeKey}",
+      httpMethod = HttpMethod.GET
+  )
+  public Subgraph getAncestors(
+      final User user,
+      final HttpServletRequest request,
+      @Named("websafeKnowledgeNodeKey") final String websafeKnowledgeNodeKey,
+      @Named("maxDepth") @DefaultValue(DEFAULT_TRAVERSAL_DEPTH) final int maxDepth,
+      @Named("maxNodes") @DefaultValue(DEFAULT_TRAVERSAL_NODES) final int maxNodes)
+      throws NotFoundException, BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, request, ApiUtils.scanCost(Math.min(maxNodes, MAX_TRAVERSAL_NODES)));
+    return traverse(websafeKnowledgeNodeKey, false, maxDepth, maxNodes);
+  }
+
+  private static Subgraph traverse(
+      String websafeKnowledgeNodeKey, boolean towardsChildren, int maxDepth, int maxNodes)
+      throws NotFoundException, BadRequestException {
+    if (maxDepth < 0 || maxNodes < 1) {
+      throw new BadRequestException("maxDepth must not be negative and maxNodes must be positive");
+    }
+    long rootId;
+    try {
+      rootId = KnowledgeGraphIndex.nodeId(websafeKnowledgeNodeKey);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid knowledge node key: " + websafeKnowledgeNodeKey);
+    }
+    Traversal traversal = KnowledgeGraphIndex.get().traverse(
+        rootId, towardsChildren, maxDepth, Math.min(maxNodes, MAX_TRAVERSAL_NODES));
+
+    // Both batch gets are issued before either result is read, so they run in parallel.
+    List<Key<KnowledgeNode>> nodeKeys = new ArrayList<>();
+    for (long nodeId : traversal.getNodeIds()) {
+      nodeKeys.add(Key.create(KnowledgeNode.class, nodeId));
+    }
+    List<Key<Edge>> edgeKeys = new ArrayList<>();
+    for (long edgeId : traversal.getEdgeIds()) {
+      edgeKeys.add(Key.create(Edge.class, edgeId));
+    }
+    Map<Key<KnowledgeNode>, KnowledgeNode> nodes = ofy().load().keys(nodeKeys);
+    Map<Key<Edge>, Edge> edges = ofy().load().keys(edgeKeys);
+
+    if (nodes.get(nodeKeys.get(0)) == null) {
+      throw new NotFoundException("No knowledge node found with key: " + websafeKnowledgeNodeKey);
+    }
+    // The index of this instance may lag behind deletes made through other instances.
+    Subgraph subgraph = new Subgraph();
+    Set<Long> nodeIdsFound = new HashSet<>();
+    for (Key<KnowledgeNode> nodeKey : nodeKeys) {
+      KnowledgeNode node = nodes.get(nodeKey);
+      if (node != null) {
+        subgraph.getNodes().add(node);
+        nodeIdsFound.add(node.getId());
+      }
+    }
+    for (Key<Edge> edgeKey : edgeKeys) {
+      Edge edge = edges.get(edgeKey);
+      if (edge != null
+          && nodeIdsFound.contains(KnowledgeGraphIndex.nodeId(edge.getParentKey()))
+          && nodeIdsFound.contains(KnowledgeGraphIndex.nodeId(edge.getChildKey()))) {
+        subgraph.getEdges().add(edge);
+      }
+    }
+    subgraph.setTruncated(traversal.isTruncated());
+    return subgraph;
   }
 
   /**
@@ -273,21 +830,25 @@ public class MindTreeApi {
    *
    * @param user An user who invokes this method, null when the user is not signed in.
    * @param limit The number of entities to return
-   * @return a list of knowledge nodes that the user created.
+   * @param pageToken The nextPageToken of the previous page, absent for the first page.
+   * @return a page of knowledge nodes that the user created.
    * @throws UnauthorizedException when the user is not signed in.
+   * @throws BadRequestException when the limit or the page token is invalid.
    */
   @ApiMethod(
       name = "getKnowledgeNodesCreatedBy",
       path = "getKnowledgeNodesCreatedBy",
       httpMethod = HttpMethod.POST
   )
-  public List<KnowledgeNode> getKnowledgeNodesCreated(
+  public CollectionResponse<KnowledgeNode> getKnowledgeNodesCreated(
       final User user,
-      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit)
-      throws UnauthorizedException {
-    ApiUtils.checkSignedIn(user);
+      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit,
+      @Named("pageToken") @Nullable final String pageToken)
+      throws UnauthorizedException, BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, ApiUtils.cost(limit));
     String userId = ApiUtils.getUserId(user);
-    return queryByOwner(userId).limit(limit).list();
+    return ApiUtils.cachedQueryPage(KnowledgeNode.class, "getKnowledgeNodesCreatedBy",
+        queryByOwner(userId), pageToken, limit, userId);
   }
   
   private static Query<KnowledgeNode> queryByOwner(final String userId) {
@@ -300,18 +861,27 @@ public class MindTreeApi {
    * In order to receive the web safe key via the JSON params, uses a POST method.
    *
    * @param user An user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
    * @param limit The number of entities to return
-   * @return all knowledge nodes.
+   * @param pageToken The nextPageToken of the previous page, absent for the first page.
+   * @return a page of all knowledge nodes.
+   * @throws BadRequestException when the limit or the page token is invalid.
    */
   @ApiMethod(
       name = "getAllKnowledgeNodes",
       path = "getAllKnowledgeNodes",
       httpMethod = HttpMethod.POST
   )
-  public List<KnowledgeNode> getAllKnowledgeNodes(
+  public CollectionResponse<KnowledgeNode> getAllKnowledgeNodes(
       final User user,
-      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit) {
-    return ofy().load().type(KnowledgeNode.class).limit(limit).list();
+      final HttpServletRequest request,
+      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit,
+      @Named("pageToken") @Nullable final String pageToken)
+      throws BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, request, ApiUtils.cost(limit));
+    return ApiUtils.cachedQueryPage(KnowledgeNode.class, "getAllKnowledgeNodes",
+        ofy().load().type(KnowledgeNode.class), pageToken, limit);
   }
 
   /**
@@ -319,18 +889,68 @@ public class MindTreeApi {
    * In order to receive the web safe key via the JSON params, uses a POST method.
    *
    * @param user An user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
    * @param limit The number of entities to return
-   * @return all edges.
+   * @param pageToken The nextPageToken of the previous page, absent for the first page.
+   * @param fields Comma separated subset of parentKey, childKey and strength to read with a
+   *     projection query, absent to read whole edges.
+   * @return a page of all edges.
+   * @throws BadRequestException when the limit, the page token or the fields are invalid.
    */
   @ApiMethod(
       name = "getAllEdges",
       path = "getAllEdges",
       httpMethod = HttpMethod.POST
   )
-  public List<Edge> getAllEdges(
+  public CollectionResponse<Edge> getAllEdges(
+      final User user,
+      final HttpServletRequest request,
+      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit,
+      @Named("pageToken") @Nullable final String pageToken,
+      @Named("fields") @Nullable final String fields)
+      throws BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, request, ApiUtils.cost(limit));
+    Query<Edge> query = ofy().load().type(Edge.class);
+    String[] projection = ApiUtils.projection(fields, EDGE_FIELDS);
+    if (projection.length > 0) {
+      // Projected entities cannot be loaded by key, so they bypass the query cache.
+      return ApiUtils.queryPage(query.project(projection), pageToken, limit);
+    }
+    return ApiUtils.cachedQueryPage(Edge.class, "getAllEdges", query, pageToken, limit);
+  }
+
+  /**
+   * Returns the knowledge nodes, edges, quizzes and question tags saved or deleted since a token,
+   * oldest first. Without a token, returns no changes and the token to start from. A token older
+   * than the deletes kept is answered with resyncRequired and a token to start from again.
+   *
+   * @param user An user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
+   * @param sinceToken The nextToken of the previous call, absent to start.
+   * @param limit The number of changes to return
+   * @return a page of changes and the token of the next one.
+   * @throws BadRequestException when the limit or the token is invalid.
+   */
+  @ApiMethod(
+      name = "getChanges",
+      path = "getChanges",
+      httpMethod = HttpMethod.GET
+  )
+  public Changes getChanges(
       final User user,
-      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit) {
-    return ofy().load().type(Edge.class).limit(limit).list();
+      final HttpServletRequest request,
+      @Named("sinceToken") @Nullable final String sinceToken,
+      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit)
+      throws BadRequestException, ServiceUnavailableException {
+    int pageSize = ApiUtils.pageSize(limit);
+    ApiUtils.admit(user, request, ApiUtils.cost(limit));
+    try {
+      return ChangeFeed.get().changesSince(sinceToken, pageSize);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException("Invalid token: " + sinceToken);
+    }
   }
 
 
@@ -349,7 +969,9 @@ public class MindTreeApi {
       path = "createQuiz",
       httpMethod = HttpMethod.POST)
   public Quiz createQuiz(final User user, final QuizForm quizForm)
-      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+      BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
     return (Quiz) ApiUtils.createEntity(user, quizForm, Quiz.class);
   }
 
@@ -359,14 +981,47 @@ public class MindTreeApi {
    * @param user A user who invokes this method, null when the user is not signed in.
    * @param tagForm An QuestionTagForm object representing user's inputs.
    * @throws UnauthorizedException when the user is not signed in.
+   * @throws BadRequestException when the quiz or node key is malformed.
    */
   @ApiMethod(
       name = "createQuestionTag",
       path = "createQuestionTag",
       httpMethod = HttpMethod.POST)
   public QuestionTag createQuestionTag(final User user, final QuestionTagForm tagForm)
-      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
-    return (QuestionTag) ApiUtils.createEntity(user, tagForm, QuestionTag.class);
+      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+      BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
+    QuestionTag tag = (QuestionTag) ApiUtils.createEntity(user, tagForm, QuestionTag.class);
+    Neighborhoods.get().refreshLater(tag.getNode().getKey().getId());
+    return tag;
+  }
+
+  /**
+   * Creates many question tags in one call.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param batchForm The forms of the tags to create, at most 1000.
+   * @return the keys of the created tags and the items that failed.
+   * @throws UnauthorizedException when the user is not signed in.
+   * @throws BadRequestException when the batch is empty or too large.
+   */
+  @ApiMethod(
+      name = "createQuestionTags",
+      path = "createQuestionTags",
+      httpMethod = HttpMethod.POST)
+  public BatchResult createQuestionTags(
+      final User user,
+      final QuestionTagBatchForm batchForm)
+      throws UnauthorizedException, BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, ApiUtils.cost(batchForm.getItems()));
+    BatchResult result = new BatchResult();
+    List<Long> nodeIds = new ArrayList<>();
+    for (QuestionTag tag :
+        ApiUtils.createEntities(user, batchForm.getItems(), QuestionTag.class, result)) {
+      nodeIds.add(tag.getNode().getKey().getId());
+    }
+    Neighborhoods.get().refreshLater(nodeIds);
+    return result;
   }
 
   /**
@@ -389,7 +1044,9 @@ public class MindTreeApi {
       final QuizForm quizForm,
       @Named("websafeQuizKey")
       final String websafeQuizKey)
-      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException {
+      throws UnauthorizedException, NotFoundException, ForbiddenException, ConflictException,
+      ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
     return (Quiz) ApiUtils.updateEntity(user, quizForm, websafeQuizKey, Quiz.class);
   }
 
@@ -400,6 +1057,7 @@ public class MindTreeApi {
    * @param websafeQuestionTagKey An EdgeForm object representing user's inputs.
    * @throws NotFoundException when there is no question tag with the given web safe key.
    * @throws UnauthorizedException when user is not logged in.
+   * @throws BadRequestException when the key is not a question tag key.
    */
   @ApiMethod(
       name = "deleteQuestionTag",
@@ -408,14 +1066,25 @@ public class MindTreeApi {
   public void deleteQuestionTag(
       final User user,
       @Named("websafeQuestionTagKey") final String websafeQuestionTagKey)
-      throws NotFoundException, UnauthorizedException {
-    ApiUtils.checkSignedIn(user);
-    Key<QuestionTag> questionTagKey = Key.create(websafeQuestionTagKey);
+      throws NotFoundException, UnauthorizedException, BadRequestException,
+      ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
+    Key<QuestionTag> questionTagKey;
+    try {
+      questionTagKey = Keys.parse(QuestionTag.class, websafeQuestionTagKey);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
     QuestionTag questionTag = ofy().load().key(questionTagKey).now();
     if (questionTag == null) {
       throw new NotFoundException("No tag found with key: " + websafeQuestionTagKey);
-    } else {
-      ofy().delete().keys(questionTagKey).now();
+    }
+    ApiUtils.deleteKeys(Collections.singletonList(questionTagKey));
+    Counters.get().applyLater(
+        new Counters.Deltas().add(QuestionTag.class, questionTag.getCreatedBy(), -1));
+    QueryCache.get().invalidate(QuestionTag.class);
+    if (questionTag.getNode() != null) {
+      Neighborhoods.get().refreshLater(questionTag.getNode().getKey().getId());
     }
   }
 
@@ -434,15 +1103,21 @@ public class MindTreeApi {
   public void deleteQuiz(
       final User user,
       @Named("websafeQuizKey") final String websafeQuizKey)
-      throws NotFoundException, UnauthorizedException {
-    ApiUtils.checkSignedIn(user);
+      throws NotFoundException, UnauthorizedException, ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
     Key<Quiz> quizKey = Key.create(websafeQuizKey);
     Quiz quiz = ofy().load().key(quizKey).now();
     if (quiz == null) {
       throw new NotFoundException("No quiz found with key: " + websafeQuizKey);
     } else {
+      boolean wasExpired = quiz.isExpired();
       quiz.delete();
       ofy().save().entity(quiz).now();
+      if (!wasExpired) {
+        Counters.get().applyLater(
+            new Counters.Deltas().add(Quiz.class, quiz.getCreatedBy(), -1));
+      }
+      QueryCache.get().invalidate(Quiz.class);
     }
   }
 
@@ -451,18 +1126,27 @@ public class MindTreeApi {
    * In order to receive the web safe key via the JSON params, uses a POST method.
    *
    * @param user An user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
    * @param limit The number of entities to return
-   * @return all active quizzes.
+   * @param pageToken The nextPageToken of the previous page, absent for the first page.
+   * @return a page of all active quizzes.
+   * @throws BadRequestException when the limit or the page token is invalid.
    */
   @ApiMethod(
       name = "getAllActiveQuizzes",
       path = "getAllActiveQuizzes",
       httpMethod = HttpMethod.POST
   )
-  public List<Quiz> getAllActiveQuizzes(
+  public CollectionResponse<Quiz> getAllActiveQuizzes(
       final User user,
-      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit) {
-    return ofy().load().type(Quiz.class).filter(Quiz.activeQuizFilter()).limit(limit).list();
+      final HttpServletRequest request,
+      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit,
+      @Named("pageToken") @Nullable final String pageToken)
+      throws BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, request, ApiUtils.cost(limit));
+    return ApiUtils.cachedQueryPage(Quiz.class, "getAllActiveQuizzes",
+        ofy().load().type(Quiz.class).filter(Quiz.activeQuizFilter()), pageToken, limit);
   }
 
   /**
@@ -470,21 +1154,185 @@ public class MindTreeApi {
    * In order to receive the web safe key via the JSON params, uses a POST method.
    *
    * @param user An user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
    * @param websafeQuestionKey The question key.
    * @param limit The number of entities to return
-   * @return all question tags for a give question key.
+   * @param pageToken The nextPageToken of the previous page, absent for the first page.
+   * @param fields Comma separated subset of nodeKey and strength to read with a projection
+   *     query, absent to read whole tags. The questionKey is the one of the request.
+   * @return a page of the question tags for a give question key.
+   * @throws BadRequestException when the question key, the limit, the page token or the fields
+   *     are invalid.
    */
   @ApiMethod(
       name = "getQuestionTags",
       path = "getQuestionTags",
       httpMethod = HttpMethod.POST
   )
-  public List<QuestionTag> getQuestionTags(
+  public CollectionResponse<QuestionTag> getQuestionTags(
       final User user,
+      final HttpServletRequest request,
       @Named("websafeQuestionKey") final String websafeQuestionKey,
-      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit) {
+      @Named("limit") @DefaultValue(DEFAULT_QUERY_LIMIT) final int limit,
+      @Named("pageToken") @Nullable final String pageToken,
+      @Named("fields") @Nullable final String fields)
+      throws BadRequestException, ServiceUnavailableException {
+    ApiUtils.admit(user, request, ApiUtils.cost(limit));
+    Key<Quiz> questionKey;
+    try {
+      questionKey = Keys.parse(Quiz.class, websafeQuestionKey);
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
     final Filter questionFilter =
-        new FilterPredicate("questionKey", FilterOperator.EQUAL, websafeQuestionKey);
-    return ofy().load().type(QuestionTag.class).filter(questionFilter).limit(limit).list();
+        new FilterPredicate("question", FilterOperator.EQUAL, questionKey.getRaw());
+    Query<QuestionTag> query = ofy().load().type(QuestionTag.class).filter(questionFilter);
+    // A property filtered by equality cannot be projected.
+    String[] projection = ApiUtils.projection(fields, QUESTION_TAG_FIELDS);
+    if (projection.length > 0) {
+      // Projected entities cannot be loaded by key, so they bypass the query cache.
+      return ApiUtils.queryPage(query.project(projection), pageToken, limit);
+    }
+    return ApiUtils.cachedQueryPage(
+        QuestionTag.class, "getQuestionTags", query, pageToken, limit, websafeQuestionKey);
+  }
+
+  /** API For Mastery */
+
+
+  /**
+   * Scores the result of a quiz taken by the user into the user's mastery of the nodes the quiz
+   * is tagged with, and of the nodes depending on them.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param resultForm A QuizResultForm object representing the quiz and its score.
+   * @return the nodes whose mastery changed.
+   * @throws UnauthorizedException when the user is not signed in.
+   * @throws BadRequestException when the quiz key is malformed or the score is not within 0 and 1.
+   * @throws NotFoundException when there is no active or draft quiz with the given key.
+   */
+  @ApiMethod(
+      name = "submitQuizResult",
+      path = "submitQuizResult",
+      httpMethod = HttpMethod.POST)
+  public MasteryReport submitQuizResult(final User user, final QuizResultForm resultForm)
+      throws UnauthorizedException, BadRequestException, NotFoundException,
+      ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
+    final String userId = ApiUtils.getUserId(user);
+    Key<Quiz> quizKey;
+    try {
+      quizKey = Keys.parse(Quiz.class, resultForm.getQuizKey());
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
+    final float score = (float) resultForm.getScore();
+    if (!(score >= 0 && score <= 1)) {
+      throw new BadRequestException("score must be within 0 and 1");
+    }
+
+    // The quiz and its tags load together.
+    Pipeline pipeline = new Pipeline();
+    Result<Quiz> quiz = pipeline.add(ofy().load().key(quizKey));
+    Result<List<QuestionTag>> tags = pipeline.query(ofy().load().type(QuestionTag.class)
+        .filter(new FilterPredicate("question", FilterOperator.EQUAL, quizKey.getRaw()))
+        .iterator());
+    pipeline.join();
+    if (quiz.now() == null || quiz.now().isExpired()) {
+      throw new NotFoundException("No quiz found with key: " + resultForm.getQuizKey());
+    }
+    // A node tagged twice counts once, with its strongest tag.
+    Map<Long, Double> strengths = new LinkedHashMap<>();
+    for (QuestionTag tag : tags.now()) {
+      if (tag.getNode() != null) {
+        Long nodeId = tag.getNode().getKey().getId();
+        Double strength = strengths.get(nodeId);
+        strengths.put(nodeId, strength == null
+            ? tag.getStrength() : Math.max(strength, tag.getStrength()));
+      }
+    }
+    final long[] nodeIds = new long[strengths.size()];
+    final double[] tagStrengths = new double[strengths.size()];
+    int i = 0;
+    for (Map.Entry<Long, Double> entry : strengths.entrySet()) {
+      nodeIds[i] = entry.getKey();
+      tagStrengths[i++] = entry.getValue();
+    }
+
+    // Building the snapshot may rebuild the index, which cannot run in the transaction.
+    final CompactGraph graph = KnowledgeGraphIndex.get().compact();
+    // Submissions of the same user are serialized by the transaction on the user's entity.
+    return ofy().transact(new Work<MasteryReport>() {
+      @Override
+      public MasteryReport run() {
+        Mastery mastery = ofy().load().key(Key.create(Mastery.class, userId)).now();
+        if (mastery == null) {
+          mastery = new Mastery(userId);
+        }
+        long[] changed = MasteryEngine.get().submit(graph, mastery, nodeIds, tagStrengths, score);
+        ofy().save().entity(mastery).now();
+        MasteryReport report = new MasteryReport();
+        for (long nodeId : changed) {
+          report.getNodes().add(nodeMastery(mastery, nodeId));
+        }
+        return report;
+      }
+    });
+  }
+
+  /**
+   * Returns the mastery of the user over every node with quiz results or mastered
+   * prerequisites.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @return the mastery per node, in ascending node id order.
+   * @throws UnauthorizedException when the user is not signed in.
+   */
+  @ApiMethod(
+      name = "getMastery",
+      path = "getMastery",
+      httpMethod = HttpMethod.GET)
+  public MasteryReport getMastery(final User user)
+      throws UnauthorizedException, ServiceUnavailableException {
+    ApiUtils.admit(user, 0);
+    Mastery mastery = ofy().load()
+        .key(Key.create(Mastery.class, ApiUtils.getUserId(user))).now();
+    MasteryReport report = new MasteryReport();
+    if (mastery != null) {
+      for (int i = 0; i < mastery.size(); i++) {
+        report.getNodes().add(nodeMastery(mastery, mastery.nodeId(i)));
+      }
+    }
+    return report;
+  }
+
+  private static MasteryReport.NodeMastery nodeMastery(Mastery mastery, long nodeId) {
+    float evidence = mastery.getEvidence(nodeId);
+    return new MasteryReport.NodeMastery(
+        Key.create(KnowledgeNode.class, nodeId).getString(),
+        mastery.getMastery(nodeId),
+        Float.isNaN(evidence) ? null : (double) evidence);
+  }
+
+  /**
+   * Returns how many knowledge nodes, edges, quizzes and question tags there are, in total and
+   * created by the user, from sharded counters.
+   *
+   * @param user A user who invokes this method, null when the user is not signed in.
+   * @param request The request injected by the cloud endpoints, to admit callers who are not
+   *     signed in per client.
+   * @return the counts in total, and the counts of the user when signed in.
+   */
+  @ApiMethod(
+      name = "getEntityCounts",
+      path = "getEntityCounts",
+      httpMethod = HttpMethod.GET)
+  public EntityCounts getEntityCounts(final User user, final HttpServletRequest request)
+      throws ServiceUnavailableException {
+    ApiUtils.admit(user, request, 0);
+    String userId = user == null ? null : ApiUtils.getUserId(user);
+    return new EntityCounts(
+        Counters.get().counts(Arrays.asList(EntityCounts.counterNames(userId))), userId);
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,35 @@
+package main.java.mindtree.spi;
+
+import com.google.api.server.spi.response.ServiceUnavailableException;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Rejects a call the user has no budget left for, with a Retry-After header.
+ *
+ * Cloud Endpoints v1 turns status codes it does not know, 429 among them, into 404, so the call
+ * is answered with 503 like an overloaded backend.
+ */
+class TooManyRequestsException extends ServiceUnavailableException {
+  private static final long serialVersionUID = 1L;
+
+  private final long retryAfterSeconds;
+
+  /**
+   * @param retryAfterMillis how long to wait, rounded up to whole seconds.
+   */
+  TooManyRequestsException(long retryAfterMillis) {
+    super("Too many requests, retry after " + seconds(retryAfterMillis) + " seconds");
+    this.retryAfterSeconds = seconds(retryAfterMillis);
+  }
+
+  private static long seconds(long millis) {
+    return Math.max(1, (millis + 999) / 1000);
+  }
+
+  @Override
+  public Map<String, String> getHeaders() {
+    return Collections.singletonMap("Retry-After", String.valueOf(retryAfterSeconds));
+  }
+}
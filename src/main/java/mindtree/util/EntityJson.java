@@ -0,0 +1,319 @@
+package main.java.mindtree.util;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Link;
+import com.google.appengine.api.datastore.ShortBlob;
+import com.google.appengine.api.datastore.Text;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes datastore entities as one JSON object per line and reads them back.
+ *
+ * A line holds the kind, the web safe key, the properties and the names of the unindexed
+ * properties:
+ * <pre>
+ * {"kind":"Edge","key":"ag...","properties":{"parent":{"key":"ag..."},"strength":1.0},
+ *  "unindexed":[]}
+ * </pre>
+ * Strings, booleans, integers and finite doubles are plain JSON values, a multi-valued property
+ * is an array. Keys, texts, dates, links, blobs and non-finite doubles are objects with a single
+ * field naming the type. A line {"checkpoint":"..."} marks where a partial export stopped.
+ */
+public class EntityJson {
+  // Lines are separated by the newline written after each object.
+  private static final JsonFactory JSON = new JsonFactory().setRootValueSeparator(null);
+
+  /**
+   * @return a generator writing UTF-8 lines to the stream.
+   */
+  public static JsonGenerator createGenerator(OutputStream out) throws IOException {
+    return JSON.createGenerator(out, JsonEncoding.UTF8);
+  }
+
+  /**
+   * @return a parser reading lines from the stream, in any encoding JSON allows.
+   */
+  public static JsonParser createParser(InputStream in) throws IOException {
+    return JSON.createParser(in);
+  }
+
+  /**
+   * Writes one entity line.
+   *
+   * @throws IllegalArgumentException when a property has a type this format does not cover.
+   */
+  public static void write(JsonGenerator json, Entity entity) throws IOException {
+    json.writeStartObject();
+    json.writeStringField("kind", entity.getKind());
+    json.writeStringField("key", KeyFactory.keyToString(entity.getKey()));
+    json.writeObjectFieldStart("properties");
+    List<String> unindexed = new ArrayList<>();
+    for (Map.Entry<String, Object> property : entity.getProperties().entrySet()) {
+      json.writeFieldName(property.getKey());
+      writeValue(json, property.getValue());
+      if (entity.isUnindexedProperty(property.getKey())) {
+        unindexed.add(property.getKey());
+      }
+    }
+    json.writeEndObject();
+    json.writeArrayFieldStart("unindexed");
+    for (String name : unindexed) {
+      json.writeString(name);
+    }
+    json.writeEndArray();
+    json.writeEndObject();
+    json.writeRaw('\n');
+  }
+
+  /**
+   * Writes the line marking where a partial export stopped.
+   */
+  public static void writeCheckpoint(JsonGenerator json, String checkpoint) throws IOException {
+    json.writeStartObject();
+    json.writeStringField("checkpoint", checkpoint);
+    json.writeEndObject();
+    json.writeRaw('\n');
+  }
+
+  private static void writeValue(JsonGenerator json, Object value) throws IOException {
+    if (value == null) {
+      json.writeNull();
+    } else if (value instanceof String) {
+      json.writeString((String) value);
+    } else if (value instanceof Boolean) {
+      json.writeBoolean((Boolean) value);
+    } else if (value instanceof Long || value instanceof Integer || value instanceof Short
+        || value instanceof Byte) {
+      json.writeNumber(((Number) value).longValue());
+    } else if (value instanceof Double || value instanceof Float) {
+      double number = ((Number) value).doubleValue();
+      if (Double.isNaN(number) || Double.isInfinite(number)) {
+        writeTyped(json, "double", Double.toString(number));
+      } else {
+        json.writeNumber(number);
+      }
+    } else if (value instanceof Key) {
+      writeTyped(json, "key", KeyFactory.keyToString((Key) value));
+    } else if (value instanceof Text) {
+      writeTyped(json, "text", ((Text) value).getValue());
+    } else if (value instanceof Link) {
+      writeTyped(json, "link", ((Link) value).getValue());
+    } else if (value instanceof Date) {
+      json.writeStartObject();
+      json.writeNumberField("date", ((Date) value).getTime());
+      json.writeEndObject();
+    } else if (value instanceof Blob) {
+      json.writeStartObject();
+      json.writeBinaryField("blob", ((Blob) value).getBytes());
+      json.writeEndObject();
+    } else if (value instanceof ShortBlob) {
+      json.writeStartObject();
+      json.writeBinaryField("shortBlob", ((ShortBlob) value).getBytes());
+      json.writeEndObject();
+    } else if (value instanceof Collection) {
+      json.writeStartArray();
+      for (Object item : (Collection<?>) value) {
+        writeValue(json, item);
+      }
+      json.writeEndArray();
+    } else {
+      throw new IllegalArgumentException(
+          "Cannot export a property of type " + value.getClass().getName());
+    }
+  }
+
+  private static void writeTyped(JsonGenerator json, String type, String value)
+      throws IOException {
+    json.writeStartObject();
+    json.writeStringField(type, value);
+    json.writeEndObject();
+  }
+
+  /**
+   * Reads the next entity line, skipping checkpoint lines.
+   *
+   * @return the entity with the key it was exported with, null at the end of the input.
+   * @throws JsonParseException when the input is not a sequence of entity lines.
+   */
+  public static Entity read(JsonParser json) throws IOException {
+    while (true) {
+      JsonToken token = json.nextToken();
+      if (token == null) {
+        return null;
+      }
+      if (token != JsonToken.START_OBJECT) {
+        throw new JsonParseException("Expected an entity object", json.getCurrentLocation());
+      }
+      Entity entity = readEntity(json);
+      if (entity != null) {
+        return entity;
+      }
+    }
+  }
+
+  // Returns null for a checkpoint line.
+  private static Entity readEntity(JsonParser json) throws IOException {
+    String kind = null;
+    String websafeKey = null;
+    List<String> names = new ArrayList<>();
+    List<Object> values = new ArrayList<>();
+    Set<String> unindexed = new HashSet<>();
+    boolean checkpoint = false;
+    while (json.nextToken() == JsonToken.FIELD_NAME) {
+      String field = json.getCurrentName();
+      JsonToken token = json.nextToken();
+      switch (field) {
+        case "kind":
+          kind = json.getValueAsString();
+          break;
+        case "key":
+          websafeKey = json.getValueAsString();
+          break;
+        case "checkpoint":
+          checkpoint = true;
+          break;
+        case "properties":
+          expect(json, token, JsonToken.START_OBJECT);
+          while (json.nextToken() == JsonToken.FIELD_NAME) {
+            names.add(json.getCurrentName());
+            values.add(readValue(json, json.nextToken(), true));
+          }
+          break;
+        case "unindexed":
+          expect(json, token, JsonToken.START_ARRAY);
+          while (json.nextToken() == JsonToken.VALUE_STRING) {
+            unindexed.add(json.getText());
+          }
+          break;
+        default:
+          json.skipChildren();
+          break;
+      }
+    }
+    if (checkpoint) {
+      return null;
+    }
+    if (kind == null || websafeKey == null) {
+      throw new JsonParseException("Missing kind or key", json.getCurrentLocation());
+    }
+    Key key;
+    try {
+      key = KeyFactory.stringToKey(websafeKey);
+    } catch (IllegalArgumentException e) {
+      throw new JsonParseException("Malformed key: " + websafeKey, json.getCurrentLocation(), e);
+    }
+    if (!kind.equals(key.getKind())) {
+      throw new JsonParseException("Not a " + kind + " key: " + websafeKey,
+          json.getCurrentLocation());
+    }
+    Entity entity = new Entity(key);
+    for (int i = 0; i < names.size(); i++) {
+      if (unindexed.contains(names.get(i))) {
+        entity.setUnindexedProperty(names.get(i), values.get(i));
+      } else {
+        entity.setProperty(names.get(i), values.get(i));
+      }
+    }
+    return entity;
+  }
+
+  private static Object readValue(JsonParser json, JsonToken token, boolean allowArray)
+      throws IOException {
+    switch (token) {
+      case VALUE_NULL:
+        return null;
+      case VALUE_STRING:
+        return json.getText();
+      case VALUE_TRUE:
+        return Boolean.TRUE;
+      case VALUE_FALSE:
+        return Boolean.FALSE;
+      case VALUE_NUMBER_INT:
+        return json.getLongValue();
+      case VALUE_NUMBER_FLOAT:
+        return json.getDoubleValue();
+      case START_ARRAY:
+        if (!allowArray) {
+          break;
+        }
+        List<Object> items = new ArrayList<>();
+        JsonToken item;
+        while ((item = json.nextToken()) != JsonToken.END_ARRAY) {
+          items.add(readValue(json, item, false));
+        }
+        return items;
+      case START_OBJECT:
+        return readTyped(json);
+      default:
+        break;
+    }
+    throw new JsonParseException("Unexpected " + token, json.getCurrentLocation());
+  }
+
+  private static Object readTyped(JsonParser json) throws IOException {
+    expect(json, json.nextToken(), JsonToken.FIELD_NAME);
+    String type = json.getCurrentName();
+    json.nextToken();
+    Object value;
+    try {
+      switch (type) {
+        case "key":
+          value = KeyFactory.stringToKey(json.getText());
+          break;
+        case "text":
+          value = new Text(json.getText());
+          break;
+        case "link":
+          value = new Link(json.getText());
+          break;
+        case "double":
+          value = Double.valueOf(json.getText());
+          break;
+        case "date":
+          value = new Date(json.getLongValue());
+          break;
+        case "blob":
+          value = new Blob(json.getBinaryValue());
+          break;
+        case "shortBlob":
+          value = new ShortBlob(json.getBinaryValue());
+          break;
+        default:
+          throw new JsonParseException("Unknown value type: " + type, json.getCurrentLocation());
+      }
+    } catch (IllegalArgumentException e) {
+      throw new JsonParseException("Malformed " + type + " value", json.getCurrentLocation(), e);
+    }
+    expect(json, json.nextToken(), JsonToken.END_OBJECT);
+    return value;
+  }
+
+  private static void expect(JsonParser json, JsonToken token, JsonToken expected)
+      throws JsonParseException {
+    if (token != expected) {
+      throw new JsonParseException("Expected " + expected + " but found " + token,
+          json.getCurrentLocation());
+    }
+  }
+
+  private EntityJson() {}
+}
@@ -0,0 +1,27 @@
+package main.java.mindtree.util;
+
+import com.googlecode.objectify.Key;
+
+/**
+ * Decodes web safe keys sent by clients into typed keys.
+ */
+public class Keys {
+  /**
+   * @param kind the entity class the key must point to.
+   * @param websafeKey the web safe string of the key.
+   * @return the typed key.
+   * @throws IllegalArgumentException when the string is not a valid key of the given kind.
+   */
+  public static <T> Key<T> parse(Class<T> kind, String websafeKey) {
+    if (websafeKey == null) {
+      throw new IllegalArgumentException("Missing " + Key.getKind(kind) + " key");
+    }
+    Key<T> key = Key.create(websafeKey);
+    if (!Key.getKind(kind).equals(key.getKind())) {
+      throw new IllegalArgumentException("Not a " + Key.getKind(kind) + " key: " + websafeKey);
+    }
+    return key;
+  }
+
+  private Keys() {}
+}
@@ -0,0 +1,138 @@
+package main.java.mindtree.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies in microseconds with log-linear buckets, like an HDR
+ * histogram with fixed precision.
+ *
+ * Every power of two is split into {@value #SUB_BUCKETS} buckets, so a recorded value is known
+ * within 1/{@value #SUB_BUCKETS} of itself, from 1 microsecond up to about 18 minutes; longer
+ * values count as the maximum. Recording is two array increments on the stripe of the calling
+ * thread, reading merges the stripes.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BITS = 4;
+  static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+  /**
+   * The largest value told apart from longer ones, 2^30 microseconds.
+   */
+  public static final long MAX_MICROS = (1L << 30) - 1;
+
+  static final int BUCKETS = bucket(MAX_MICROS) + 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(StripedCounter.STRIPES * BUCKETS);
+  private final StripedCounter sum = new StripedCounter();
+
+  /**
+   * @return the bucket of a value from 0 to {@link #MAX_MICROS}.
+   */
+  static int bucket(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (micros >>> shift) - SUB_BUCKETS;
+  }
+
+  /**
+   * @return the smallest value of the bucket.
+   */
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKETS - 1;
+    return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+  }
+
+  /**
+   * @return the largest value of the bucket.
+   */
+  static long upperBound(int bucket) {
+    return bucket + 1 < BUCKETS ? lowerBound(bucket + 1) - 1 : MAX_MICROS;
+  }
+
+  /**
+   * @return the largest value of the bucket the value falls in, a bound that
+   *     {@link Snapshot#countAtMost} counts exactly.
+   */
+  public static long bucketEdge(long micros) {
+    return upperBound(bucket(Math.max(0, Math.min(micros, MAX_MICROS))));
+  }
+
+  public void record(long micros) {
+    long value = Math.max(0, Math.min(micros, MAX_MICROS));
+    counts.getAndIncrement(StripedCounter.stripe() * BUCKETS + bucket(value));
+    sum.add(value);
+  }
+
+  /**
+   * @return the counts of all stripes merged, a snapshot that later records do not change.
+   */
+  public Snapshot snapshot() {
+    long[] merged = new long[BUCKETS];
+    for (int stripe = 0; stripe < StripedCounter.STRIPES; stripe++) {
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        merged[bucket] += counts.get(stripe * BUCKETS + bucket);
+      }
+    }
+    return new Snapshot(merged, sum.sum());
+  }
+
+  /**
+   * The merged counts of a histogram.
+   */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long sumMicros;
+    private final long count;
+
+    Snapshot(long[] counts, long sumMicros) {
+      this.counts = counts;
+      this.sumMicros = sumMicros;
+      long total = 0;
+      for (long c : counts) {
+        total += c;
+      }
+      this.count = total;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getSumMicros() {
+      return sumMicros;
+    }
+
+    /**
+     * @return the number of values up to the bound, leaving out the bucket the bound falls in
+     *     unless the bound is its {@link #bucketEdge}.
+     */
+    public long countAtMost(long micros) {
+      long atMost = 0;
+      for (int bucket = 0; bucket < BUCKETS && upperBound(bucket) <= micros; bucket++) {
+        atMost += counts[bucket];
+      }
+      return atMost;
+    }
+
+    /**
+     * @param quantile between 0 and 1.
+     * @return the upper end of the bucket holding the quantile, 0 when nothing was recorded.
+     */
+    public long quantileMicros(double quantile) {
+      long rank = (long) Math.ceil(quantile * count);
+      long seen = 0;
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        seen += counts[bucket];
+        if (seen >= rank && seen > 0) {
+          return upperBound(bucket);
+        }
+      }
+      return 0;
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package main.java.mindtree.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map keyed by primitive longs.
+ *
+ * Avoids boxing the datastore ids of hot in-memory indexes. Values must not be null. Not thread
+ * safe, callers guard it with their own lock.
+ *
+ * @param <V> The type of the values.
+ */
+public class LongHashMap<V> {
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] keys;
+  private Object[] values;
+  private int mask;
+  private int size;
+
+  public LongHashMap() {
+    this(MIN_CAPACITY);
+  }
+
+  /**
+   * @param expectedSize the number of entries the map should hold without rehashing.
+   */
+  public LongHashMap(int expectedSize) {
+    int capacity = MIN_CAPACITY;
+    while (capacity < expectedSize * 2) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int slot = hash(key) & mask;
+    while (values[slot] != null) {
+      if (keys[slot] == key) {
+        return (V) values[slot];
+      }
+      slot = (slot + 1) & mask;
+    }
+    return null;
+  }
+
+  public boolean containsKey(long key) {
+    return get(key) != null;
+  }
+
+  /**
+   * @return the previous value for the key, or null if there was none.
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new IllegalArgumentException("Null values are not supported.");
+    }
+    int slot = hash(key) & mask;
+    while (values[slot] != null) {
+      if (keys[slot] == key) {
+        V previous = (V) values[slot];
+        values[slot] = value;
+        return previous;
+      }
+      slot = (slot + 1) & mask;
+    }
+    keys[slot] = key;
+    values[slot] = value;
+    if (++size * 2 > values.length) {
+      rehash(values.length << 1);
+    }
+    return null;
+  }
+
+  /**
+   * @return the removed value, or null if the key was absent.
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int slot = hash(key) & mask;
+    while (values[slot] != null) {
+      if (keys[slot] == key) {
+        V previous = (V) values[slot];
+        shiftBack(slot);
+        size--;
+        return previous;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return null;
+  }
+
+  public void clear() {
+    Arrays.fill(values, null);
+    size = 0;
+  }
+
+  /**
+   * @return a snapshot of all keys in no particular order.
+   */
+  public long[] keys() {
+    long[] result = new long[size];
+    int i = 0;
+    for (int slot = 0; slot < values.length; slot++) {
+      if (values[slot] != null) {
+        result[i++] = keys[slot];
+      }
+    }
+    return result;
+  }
+
+  // Backward shift deletion keeps probe chains intact without tombstones.
+  private void shiftBack(int slot) {
+    int gap = slot;
+    int next = (gap + 1) & mask;
+    while (values[next] != null) {
+      int home = hash(keys[next]) & mask;
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        keys[gap] = keys[next];
+        values[gap] = values[next];
+        gap = next;
+      }
+      next = (next + 1) & mask;
+    }
+    values[gap] = null;
+  }
+
+  private void rehash(int capacity) {
+    long[] oldKeys = keys;
+    Object[] oldValues = values;
+    allocate(capacity);
+    for (int slot = 0; slot < oldValues.length; slot++) {
+      if (oldValues[slot] != null) {
+        int target = hash(oldKeys[slot]) & mask;
+        while (values[target] != null) {
+          target = (target + 1) & mask;
+        }
+        keys[target] = oldKeys[slot];
+        values[target] = oldValues[slot];
+      }
+    }
+  }
+
+  private void allocate(int capacity) {
+    keys = new long[capacity];
+    values = new Object[capacity];
+    mask = capacity - 1;
+  }
+
+  private static int hash(long key) {
+    long h = key * 0x9E3779B97F4A7C15L;
+    return (int) (h ^ (h >>> 32));
+  }
+}
@@ -0,0 +1,18 @@
+package main.java.mindtree.util;
+
+import com.google.apphosting.api.ApiProxy;
+
+/**
+ * Tells long running requests, such as imports, exports and purges, how much time they have left.
+ */
+public class RequestDeadline {
+  /**
+   * @return the time left before the deadline of the current request, unbounded outside of one.
+   */
+  public static long remainingMillis() {
+    ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+    return environment == null ? Long.MAX_VALUE : environment.getRemainingMillis();
+  }
+
+  private RequestDeadline() {}
+}
@@ -0,0 +1,42 @@
+package main.java.mindtree.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counter for many writers and rare readers.
+ *
+ * Each thread adds to one of several cells picked by its id, every cell on its own cache line, so
+ * request threads counting at the same time rarely contend. Reading sums the cells and is not an
+ * atomic snapshot of concurrent adds.
+ */
+public class StripedCounter {
+  static final int STRIPES = 8;
+
+  // 8 longs, one 64 byte cache line per cell.
+  private static final int PADDING = 8;
+
+  private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+  /**
+   * @return the stripe of the current thread, below {@link #STRIPES}.
+   */
+  static int stripe() {
+    return (int) Thread.currentThread().getId() & (STRIPES - 1);
+  }
+
+  public void increment() {
+    cells.getAndIncrement(stripe() * PADDING);
+  }
+
+  public void add(long delta) {
+    cells.getAndAdd(stripe() * PADDING, delta);
+  }
+
+  public long sum() {
+    long sum = 0;
+    for (int i = 0; i < STRIPES; i++) {
+      sum += cells.get(i * PADDING);
+    }
+    return sum;
+  }
+}
@@ -0,0 +1,43 @@
+package main.java.mindtree.util;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the update sequence numbers the change feed orders writes by.
+ *
+ * A number is the write time in microseconds shifted left by {@value #SALT_BITS} bits, with a
+ * random salt of this instance in the low bits. So numbers grow with time across instances, up to
+ * their clock skew, never repeat on one instance and only collide between two instances that drew
+ * the same salt and write in the same microsecond.
+ */
+public class UpdateSequence {
+  private static final int SALT_BITS = 8;
+
+  private static final long SALT = new SecureRandom().nextInt(1 << SALT_BITS);
+
+  private static final AtomicLong LAST = new AtomicLong();
+
+  /**
+   * @return a number larger than all numbers this instance handed out before.
+   */
+  public static long next() {
+    long now = at(System.currentTimeMillis()) | SALT;
+    while (true) {
+      long last = LAST.get();
+      long next = Math.max(now, last + (1 << SALT_BITS));
+      if (LAST.compareAndSet(last, next)) {
+        return next;
+      }
+    }
+  }
+
+  /**
+   * @return the smallest number of writes at the given time.
+   */
+  public static long at(long millis) {
+    return millis * 1000 << SALT_BITS;
+  }
+
+  private UpdateSequence() {}
+}